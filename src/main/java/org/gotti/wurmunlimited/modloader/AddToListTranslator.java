@@ -1,5 +1,6 @@
 package org.gotti.wurmunlimited.modloader;
 
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.function.Predicate;
@@ -16,7 +17,7 @@ import javassist.Translator;
  */
 public class AddToListTranslator implements Translator {
 
-	private List<String> loaded = new LinkedList<>();
+	private List<String> loaded = Collections.synchronizedList(new LinkedList<>());
 	private Predicate<String> predicate;
 
 	/**
@@ -0,0 +1,413 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.gotti.wurmunlimited.modloader.classhooks.ClassDefinitionListener;
+import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
+
+/**
+ * Class data sharing (AppCDS) setup for the server and the mods.
+ * <p>
+ * Classes defined by the HookManager loader and the mod classloaders are recorded with their final bytes. The JVM
+ * shares classes of custom classloaders only if the defined bytes match the archived class in size and CRC, so the
+ * archive must be created from the transformed bytes. The files are kept in mods/.cache/cds:
+ * <ul>
+ * <li><code>jvm.options</code>: launcher flags to use or create the archive, one per line for a java @argfile</li>
+ * <li><code>classes.jar</code> and <code>classes.lst</code>: the transformed classes and a class list referencing
+ * them for a static dump with <code>java @dump.options</code></li>
+ * </ul>
+ * On JDK 13 and later <code>jvm.options</code> creates a dynamic archive at exit and uses it on the following starts.
+ * On JDK 10 to 12 the archive is created by a static dump. Older JDKs do not support archiving classes of custom
+ * classloaders.
+ * <p>
+ * The archive is tied to a key built from the JVM, the class path, the mod jars and the mod properties. The archive is
+ * deleted and created again as soon as the key changes.
+ * <p>
+ * Recording is enabled with the system property <code>org.gotti.wurmunlimited.modloader.classDataSharing=true</code>.
+ */
+class ClassDataSharing implements ClassDefinitionListener {
+
+	private static Logger logger = Logger.getLogger(ClassDataSharing.class.getName());
+
+	static final String PROPERTY = "org.gotti.wurmunlimited.modloader.classDataSharing";
+
+	static final String ARCHIVE = "modloader.jsa";
+	static final String OPTIONS = "jvm.options";
+	static final String DUMP_OPTIONS = "dump.options";
+	static final String CLASS_LIST = "classes.lst";
+	static final String CLASSES_JAR = "classes.jar";
+	static final String STATE = "cds.properties";
+
+	private static final class Record {
+		final int sequence;
+		final Class<?> definedClass;
+		final ByteBuffer classfile;
+		final long crc;
+
+		Record(int sequence, Class<?> definedClass, ByteBuffer classfile, long crc) {
+			this.sequence = sequence;
+			this.definedClass = definedClass;
+			this.classfile = classfile;
+			this.crc = crc;
+		}
+	}
+
+	private final Path folder;
+	private final int javaVersion;
+	private final AtomicInteger sequence = new AtomicInteger();
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
+	private volatile boolean recording = true;
+	private String key;
+
+	ClassDataSharing(Path folder, int javaVersion) {
+		this.folder = folder;
+		this.javaVersion = javaVersion;
+	}
+
+	/**
+	 * Start recording if enabled and supported.
+	 *
+	 * @param folder
+	 *            Folder for the class list and the archive
+	 * @return recorder or null
+	 */
+	static ClassDataSharing start(Path folder) {
+		if (!Boolean.getBoolean(PROPERTY)) {
+			return null;
+		}
+		final int javaVersion = getJavaVersion();
+		if (javaVersion < 10) {
+			logger.info(String.format("Class data sharing for mods requires Java 10 or later, running %d", javaVersion));
+			return null;
+		}
+
+		final ClassDataSharing classDataSharing = new ClassDataSharing(folder, javaVersion);
+		HookManager.getInstance().setClassDefinitionListener(classDataSharing);
+		ModClassLoader.setClassDefinitionListener(classDataSharing);
+		Runtime.getRuntime().addShutdownHook(new Thread(classDataSharing::writeClassList, "ClassDataSharing"));
+		return classDataSharing;
+	}
+
+	static int getJavaVersion() {
+		final String version = System.getProperty("java.specification.version", "1.8");
+		try {
+			return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+		} catch (NumberFormatException e) {
+			return 8;
+		}
+	}
+
+	@Override
+	public void classDefined(Class<?> definedClass, ByteBuffer classfile) {
+		if (!recording) {
+			return;
+		}
+		final CRC32 crc = new CRC32();
+		crc.update(classfile.duplicate());
+		final String name = definedClass.getName().replace('.', '/');
+		records.putIfAbsent(name, new Record(sequence.getAndIncrement(), definedClass, classfile, crc.getValue()));
+	}
+
+	/**
+	 * Build the key of the archive.
+	 *
+	 * @param version
+	 *            Modloader version
+	 * @param files
+	 *            Mod jars and bundles
+	 * @param mods
+	 *            Mods with their properties
+	 * @return key
+	 */
+	static String createKey(String version, Collection<Path> files, Collection<? extends ModInfo> mods) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			final StringBuilder builder = new StringBuilder();
+			builder.append(version).append('\n');
+			for (String property : new String[] { "java.vm.vendor", "java.vm.version", "java.home", "java.class.path" }) {
+				builder.append(System.getProperty(property)).append('\n');
+			}
+			final List<Path> paths = new ArrayList<>();
+			for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator)) {
+				if (!entry.isEmpty()) {
+					paths.add(Paths.get(entry));
+				}
+			}
+			paths.addAll(files);
+			for (Path path : paths) {
+				builder.append(path.toAbsolutePath());
+				try {
+					builder.append(' ').append(Files.size(path)).append(' ').append(Files.getLastModifiedTime(path).toMillis());
+				} catch (IOException e) {
+					builder.append(" -");
+				}
+				builder.append('\n');
+			}
+			for (ModInfo mod : mods) {
+				builder.append(mod.getName()).append('\n');
+				final Map<String, String> properties = new TreeMap<>();
+				mod.getProperties().forEach((k, v) -> properties.put(k.toString(), v.toString()));
+				properties.forEach((k, v) -> builder.append(k).append('=').append(v).append('\n'));
+			}
+			final StringBuilder hash = new StringBuilder();
+			for (byte b : digest.digest(builder.toString().getBytes(StandardCharsets.UTF_8))) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Check the archive against the key and write the launcher flags for the next start.
+	 *
+	 * @param key
+	 *            Archive key from {@link #createKey(String, Collection, Collection)}
+	 */
+	synchronized void configure(String key) {
+		this.key = key;
+		final Path archive = folder.resolve(ARCHIVE).toAbsolutePath();
+		try {
+			Files.createDirectories(folder);
+			final Properties state = loadState();
+			final boolean dumping = isDumping();
+			final boolean valid = key.equals(state.getProperty("key")) && Files.exists(archive);
+			if (!valid && !dumping) {
+				deleteArchive(archive);
+			}
+
+			final List<String> options = new ArrayList<>();
+			if (javaVersion >= 13) {
+				if (valid || dumping) {
+					options.add("-XX:SharedArchiveFile=" + archive);
+				} else {
+					options.add("-XX:ArchiveClassesAtExit=" + archive);
+				}
+			} else {
+				if (javaVersion == 10) {
+					options.add("-XX:+UseAppCDS");
+				}
+				options.add("-XX:SharedArchiveFile=" + archive);
+				options.add("-Xshare:auto");
+			}
+			write(folder.resolve(OPTIONS), options.stream().map(ClassDataSharing::quote).collect(Collectors.toList()));
+
+			if (!key.equals(state.getProperty("key"))) {
+				state.setProperty("key", key);
+				state.remove("classList");
+				storeState(state);
+			} else if (key.equals(state.getProperty("classList"))) {
+				// The class list for this key is complete. Stop holding on to the class bytes
+				stopRecording();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to configure class data sharing: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Delete an outdated archive. The running JVM may have the archive mapped, which prevents the delete on Windows.
+	 * The archive is replaced at exit anyway, so a failure does not stop the configuration.
+	 */
+	private static void deleteArchive(Path archive) {
+		try {
+			if (Files.deleteIfExists(archive)) {
+				logger.info("Mods or server changed, deleted class data sharing archive " + archive);
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to delete the class data sharing archive " + archive + ": " + e.getMessage(), e);
+		}
+	}
+
+	private void stopRecording() {
+		recording = false;
+		records.clear();
+	}
+
+	private static boolean isDumping() {
+		try {
+			return ManagementFactory.getRuntimeMXBean().getInputArguments().stream().anyMatch(arg -> arg.startsWith("-XX:ArchiveClassesAtExit"));
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write the recorded classes and the class list. Runs once per key on shutdown.
+	 */
+	synchronized void writeClassList() {
+		if (key == null || !recording) {
+			return;
+		}
+		try {
+			final List<Record> list = new ArrayList<>(records.values());
+			list.sort(Comparator.comparingInt(record -> record.sequence));
+
+			final Path jar = folder.resolve(CLASSES_JAR).toAbsolutePath();
+			final Path tmpJar = folder.resolve(CLASSES_JAR + ".tmp");
+			final List<String> lines = new ArrayList<>();
+			final Map<Class<?>, Integer> ids = new HashMap<>();
+			int skipped = 0;
+			try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(tmpJar))) {
+				for (Record record : list) {
+					if (!addClass(record, jar, lines, ids)) {
+						skipped++;
+						continue;
+					}
+					final ByteBuffer classfile = record.classfile.duplicate();
+					final ZipEntry entry = new ZipEntry(record.definedClass.getName().replace('.', '/') + ".class");
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(classfile.remaining());
+					entry.setCompressedSize(classfile.remaining());
+					entry.setCrc(record.crc);
+					out.putNextEntry(entry);
+					final byte[] buffer = new byte[8192];
+					while (classfile.hasRemaining()) {
+						final int n = Math.min(buffer.length, classfile.remaining());
+						classfile.get(buffer, 0, n);
+						out.write(buffer, 0, n);
+					}
+				}
+			}
+			Files.move(tmpJar, jar, StandardCopyOption.REPLACE_EXISTING);
+			write(folder.resolve(CLASS_LIST), lines);
+
+			final List<String> dumpOptions = new ArrayList<>();
+			dumpOptions.add("-Xshare:dump");
+			if (javaVersion == 10) {
+				dumpOptions.add("-XX:+UseAppCDS");
+			}
+			dumpOptions.add("-XX:SharedClassListFile=" + folder.resolve(CLASS_LIST).toAbsolutePath());
+			dumpOptions.add("-XX:SharedArchiveFile=" + folder.resolve(ARCHIVE).toAbsolutePath());
+			dumpOptions.add("-cp");
+			dumpOptions.add(System.getProperty("java.class.path", ""));
+			write(folder.resolve(DUMP_OPTIONS), dumpOptions.stream().map(ClassDataSharing::quote).collect(Collectors.toList()));
+
+			final Properties state = loadState();
+			state.setProperty("key", key);
+			state.setProperty("classList", key);
+			storeState(state);
+			logger.info(String.format("Recorded %d classes for class data sharing, %d classes of other classloaders skipped", ids.size(), skipped));
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write the class data sharing class list: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Add the class list entry of a recorded class. The super class and the interfaces are added first as
+	 * entries of the builtin loaders or must already be listed.
+	 *
+	 * @return false if a super type is defined by a loader which is not recorded
+	 */
+	private boolean addClass(Record record, Path jar, List<String> lines, Map<Class<?>, Integer> ids) {
+		final Class<?> c = record.definedClass;
+		final Class<?> superClass = c.getSuperclass();
+		final Integer superId = superClass != null ? getId(superClass, lines, ids) : null;
+		if (superClass != null && superId == null) {
+			return false;
+		}
+		final StringBuilder interfaces = new StringBuilder();
+		for (Class<?> i : c.getInterfaces()) {
+			final Integer id = getId(i, lines, ids);
+			if (id == null) {
+				return false;
+			}
+			interfaces.append(' ').append(id);
+		}
+
+		final int id = ids.size();
+		ids.put(c, id);
+		final StringBuilder line = new StringBuilder();
+		line.append(c.getName().replace('.', '/')).append(" id: ").append(id);
+		if (superId != null) {
+			line.append(" super: ").append(superId);
+		}
+		if (interfaces.length() > 0) {
+			line.append(" interfaces:").append(interfaces);
+		}
+		line.append(" source: ").append(jar);
+		lines.add(line.toString());
+		return true;
+	}
+
+	private Integer getId(Class<?> c, List<String> lines, Map<Class<?>, Integer> ids) {
+		Integer id = ids.get(c);
+		if (id == null && isBuiltin(c.getClassLoader())) {
+			id = ids.size();
+			ids.put(c, id);
+			lines.add(c.getName().replace('.', '/') + " id: " + id);
+		}
+		return id;
+	}
+
+	private static boolean isBuiltin(ClassLoader loader) {
+		final ClassLoader system = ClassLoader.getSystemClassLoader();
+		return loader == null || loader == system || loader == system.getParent();
+	}
+
+	private Properties loadState() throws IOException {
+		final Properties state = new Properties();
+		try (InputStream inputStream = Files.newInputStream(folder.resolve(STATE))) {
+			state.load(inputStream);
+		} catch (NoSuchFileException e) {
+			// No archive yet
+		}
+		return state;
+	}
+
+	private void storeState(Properties state) throws IOException {
+		try (OutputStream outputStream = Files.newOutputStream(folder.resolve(STATE))) {
+			state.store(outputStream, "Class data sharing");
+		}
+	}
+
+	private static void write(Path file, List<String> lines) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (String line : lines) {
+				writer.write(line);
+				writer.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * Quote an argument for a java @argfile if required.
+	 */
+	static String quote(String argument) {
+		if (argument.indexOf(' ') == -1 && argument.indexOf('\\') == -1 && argument.indexOf('"') == -1) {
+			return argument;
+		}
+		return '"' + argument.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+}
@@ -0,0 +1,259 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.gotti.wurmunlimited.modloader.classhooks.HookException;
+
+/**
+ * Resolves the classpath globs of a mod.
+ * <p>
+ * All globs are matched in a single walk of the mod folder. The walk does not descend deeper than the deepest glob
+ * unless a glob contains <code>**</code>. Matches are ordered by glob and then by path.
+ * <p>
+ * Results are cached together with the modification times of the visited folders. Adding, removing or renaming files
+ * changes the modification time of the containing folder and invalidates the cached result.
+ */
+class ClassPathResolver {
+
+	private static Logger logger = Logger.getLogger(ClassPathResolver.class.getName());
+
+	private static final int VERSION = 1;
+
+	private static class Entry {
+		final Map<String, Long> directories;
+		final List<String> paths;
+
+		Entry(Map<String, Long> directories, List<String> paths) {
+			this.directories = directories;
+			this.paths = paths;
+		}
+	}
+
+	private final Path cacheFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Set<String> used = ConcurrentHashMap.newKeySet();
+	private volatile boolean modified;
+
+	private ClassPathResolver(Path cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Create a resolver without persistent cache.
+	 */
+	ClassPathResolver() {
+		this(null);
+	}
+
+	/**
+	 * Resolve the classpath entries of a mod.
+	 *
+	 * @param modPath
+	 *            Mod folder
+	 * @param classpath
+	 *            Comma separated list of globs relative to the mod folder
+	 * @return matching files
+	 */
+	public List<Path> resolve(Path modPath, String classpath) {
+		final String key = modPath.toAbsolutePath().normalize().toString() + "\n" + classpath;
+		used.add(key);
+
+		final Entry cached = entries.get(key);
+		if (cached != null && isValid(cached)) {
+			final List<Path> paths = new ArrayList<>(cached.paths.size());
+			for (String path : cached.paths) {
+				paths.add(Paths.get(path));
+			}
+			return paths;
+		}
+
+		final Map<String, Long> directories = new LinkedHashMap<>();
+		final List<Path> paths = walk(modPath, classpath, directories);
+		final List<String> names = new ArrayList<>(paths.size());
+		for (Path path : paths) {
+			names.add(path.toString());
+		}
+		entries.put(key, new Entry(directories, names));
+		modified = true;
+		return paths;
+	}
+
+	private static boolean isValid(Entry entry) {
+		for (Map.Entry<String, Long> directory : entry.directories.entrySet()) {
+			try {
+				long lastModified = Files.getLastModifiedTime(Paths.get(directory.getKey())).toMillis();
+				if (lastModified != directory.getValue()) {
+					return false;
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Path> walk(Path modPath, String classpath, Map<String, Long> directories) {
+		final FileSystem fs = modPath.getFileSystem();
+		final String[] globs = classpath.split(",");
+		final List<PathMatcher> matchers = new ArrayList<>(globs.length);
+		final List<List<Path>> matches = new ArrayList<>(globs.length);
+		int maxDepth = 0;
+		for (String glob : globs) {
+			matchers.add(fs.getPathMatcher("glob:" + glob));
+			matches.add(new ArrayList<>());
+			maxDepth = Math.max(maxDepth, getDepth(glob));
+		}
+
+		final SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				directories.put(dir.toString(), attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				if (attrs.isDirectory()) {
+					// Directory at the maximum depth
+					return FileVisitResult.CONTINUE;
+				}
+				Path p = modPath.relativize(file);
+				for (int i = 0; i < matchers.size(); i++) {
+					if (matchers.get(i).matches(p)) {
+						matches.get(i).add(file);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		};
+
+		try {
+			Files.walkFileTree(modPath, EnumSet.noneOf(FileVisitOption.class), maxDepth, visitor);
+		} catch (IOException e) {
+			throw new HookException(e);
+		}
+
+		final Set<Path> pathEntries = new LinkedHashSet<>();
+		for (List<Path> match : matches) {
+			Collections.sort(match);
+			pathEntries.addAll(match);
+		}
+		return new ArrayList<>(pathEntries);
+	}
+
+	/**
+	 * Get the folder depth a glob can match.
+	 */
+	private static int getDepth(String glob) {
+		if (glob.contains("**")) {
+			return Integer.MAX_VALUE;
+		}
+		int depth = 1;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '/' || c == '\\') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Load the resolver cache. A missing or unreadable cache results in an empty cache.
+	 *
+	 * @param cacheFile
+	 *            Cache file
+	 * @return resolver
+	 */
+	public static ClassPathResolver load(Path cacheFile) {
+		final ClassPathResolver resolver = new ClassPathResolver(cacheFile);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			if (in.readInt() != VERSION) {
+				return resolver;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				Map<String, Long> directories = new LinkedHashMap<>();
+				int size = in.readInt();
+				for (int j = 0; j < size; j++) {
+					directories.put(in.readUTF(), in.readLong());
+				}
+				List<String> paths = new ArrayList<>();
+				size = in.readInt();
+				for (int j = 0; j < size; j++) {
+					paths.add(in.readUTF());
+				}
+				resolver.entries.put(key, new Entry(directories, paths));
+			}
+		} catch (NoSuchFileException e) {
+			resolver.entries.clear();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Ignoring classpath cache " + cacheFile + ": " + e.getMessage());
+			resolver.entries.clear();
+		}
+		return resolver;
+	}
+
+	/**
+	 * Write the cache if it changed. Entries which were not requested since loading are dropped.
+	 */
+	public synchronized void save() {
+		if (cacheFile == null || (!modified && used.containsAll(entries.keySet()))) {
+			return;
+		}
+		entries.keySet().retainAll(used);
+		try {
+			Files.createDirectories(cacheFile.getParent());
+			Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					out.writeInt(entry.directories.size());
+					for (Map.Entry<String, Long> directory : entry.directories.entrySet()) {
+						out.writeUTF(directory.getKey());
+						out.writeLong(directory.getValue());
+					}
+					out.writeInt(entry.paths.size());
+					for (String path : entry.paths) {
+						out.writeUTF(path);
+					}
+				}
+			}
+			Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			modified = false;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write classpath cache " + cacheFile + ": " + e.getMessage());
+		}
+	}
+}
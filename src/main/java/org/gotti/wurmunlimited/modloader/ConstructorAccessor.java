@@ -0,0 +1,65 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Call a constructor regardless of its access modifiers.
+ * <p>
+ * Calls without boxing use the handle from {@link #getHandle()} with <code>invokeExact</code>. Accessors are thread
+ * safe and are meant to be kept, e.g. in a static final field.
+ *
+ * @param <T>
+ *            Class declaring the constructor
+ */
+public final class ConstructorAccessor<T> {
+
+	private final Constructor<T> constructor;
+	private final MethodHandle handle;
+	// (Object[])Object
+	private final MethodHandle spreader;
+
+	ConstructorAccessor(MethodHandles.Lookup lookup, Constructor<T> constructor) throws IllegalAccessException {
+		this.constructor = constructor;
+		this.handle = lookup.unreflectConstructor(constructor).asFixedArity();
+		this.spreader = handle.asType(MethodType.genericMethodType(handle.type().parameterCount())).asSpreader(Object[].class, constructor.getParameterCount());
+	}
+
+	/**
+	 * Get the constructor.
+	 */
+	public Constructor<T> getConstructor() {
+		return constructor;
+	}
+
+	/**
+	 * Get the method handle.
+	 */
+	public MethodHandle getHandle() {
+		return handle;
+	}
+
+	/**
+	 * Create a new instance.
+	 *
+	 * @param args
+	 *            Arguments
+	 * @return the new instance
+	 * @throws IllegalArgumentException
+	 *             if the arguments do not match the constructor
+	 * @throws InvocationTargetException
+	 *             wrapping an exception thrown by the constructor
+	 */
+	@SuppressWarnings("unchecked")
+	public T newInstance(Object... args) throws InvocationTargetException {
+		final Object[] arguments = MethodAccessor.checkArguments(constructor, args);
+		try {
+			return (T) (Object) spreader.invokeExact(arguments);
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.gotti.wurmunlimited.modloader.classhooks.CrossReferenceIndex;
+
+/**
+ * Cache for the {@link CrossReferenceIndex} of the game jars.
+ * <p>
+ * The index is stored together with the {@link FileFingerprint} of each jar and is only built again if a jar changed.
+ */
+class CrossReferenceCache {
+
+	private static Logger logger = Logger.getLogger(CrossReferenceCache.class.getName());
+
+	private static final int VERSION = 2;
+
+	private final Path cacheFile;
+
+	CrossReferenceCache(Path cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Get the cached index or build the index.
+	 *
+	 * @param jarFile
+	 *            Indexed jar
+	 * @return index
+	 * @throws IOException
+	 *             if the jar could not be read
+	 */
+	public CrossReferenceIndex get(Path jarFile) throws IOException {
+		return get(Collections.singletonList(jarFile));
+	}
+
+	/**
+	 * Get the cached index of several jars or build the index.
+	 *
+	 * @param jarFiles
+	 *            Indexed jars
+	 * @return index
+	 * @throws IOException
+	 *             if a jar could not be read
+	 */
+	public CrossReferenceIndex get(List<Path> jarFiles) throws IOException {
+		final List<FileFingerprint> fingerprints = new ArrayList<>();
+		boolean changed = false;
+		CrossReferenceIndex cachedIndex = null;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+			if (in.readInt() == VERSION && in.readInt() == jarFiles.size()) {
+				for (Path jarFile : jarFiles) {
+					if (!jarFile.toString().equals(in.readUTF())) {
+						break;
+					}
+					final FileFingerprint cached = FileFingerprint.read(in);
+					final FileFingerprint fingerprint = cached.validate(jarFile);
+					if (fingerprint == null) {
+						break;
+					}
+					changed |= fingerprint != cached;
+					fingerprints.add(fingerprint);
+				}
+				if (fingerprints.size() == jarFiles.size()) {
+					cachedIndex = CrossReferenceIndex.read(in);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Not cached yet
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "Ignoring cross reference cache " + cacheFile, e);
+		}
+		if (cachedIndex != null) {
+			// Replace the cache file after it was closed
+			if (changed) {
+				try {
+					store(jarFiles, fingerprints, cachedIndex);
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Failed to update cross reference cache " + cacheFile, e);
+				}
+			}
+			return cachedIndex;
+		}
+
+		final long start = System.nanoTime();
+		final List<FileFingerprint> current = new ArrayList<>();
+		for (Path jarFile : jarFiles) {
+			current.add(FileFingerprint.of(jarFile));
+		}
+		final CrossReferenceIndex index = CrossReferenceIndex.build(jarFiles);
+		logger.info(String.format("Indexed %d classes of %s in %d ms", index.getClassCount(), jarFiles, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+		try {
+			store(jarFiles, current, index);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write cross reference cache " + cacheFile + ": " + e.getMessage());
+		}
+		return index;
+	}
+
+	private void store(List<Path> jarFiles, List<FileFingerprint> fingerprints, CrossReferenceIndex index) throws IOException {
+		Files.createDirectories(cacheFile.getParent());
+		final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+			out.writeInt(VERSION);
+			out.writeInt(jarFiles.size());
+			for (int i = 0; i < jarFiles.size(); i++) {
+				out.writeUTF(jarFiles.get(i).toString());
+				fingerprints.get(i).write(out);
+			}
+			index.write(out);
+		}
+		Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
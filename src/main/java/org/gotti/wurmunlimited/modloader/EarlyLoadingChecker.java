@@ -1,6 +1,8 @@
 package org.gotti.wurmunlimited.modloader;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,48 +15,104 @@ import javassist.Translator;
 
 /**
  * Helper for checking and logging if a mod loaded and froze a WurmUnlimited class early.
+ * <p>
+ * Checkers can be active on several threads at once. A loaded class is attributed to the checker of the loading
+ * thread. Classes loaded by other threads are attributed to the checker if it's the only active one.
  */
 interface EarlyLoadingChecker extends Closeable {
 	public static final Logger LOGGER = Logger.getLogger(EarlyLoadingChecker.class.getName());
 
 	@Override
 	public void close();
-	
+
 	public static EarlyLoadingChecker init(String modname, String phase) {
 
-		final HookManager hookManager = HookManager.getInstance();
 		final AddToListTranslator translator = new AddToListTranslator(paramString -> paramString.startsWith("com.wurmonline.") && !paramString.endsWith("Exception"));
-		
-		try {
-			hookManager.getLoader().addTranslator(hookManager.getClassPool(), translator);
-			
-			return new EarlyLoadingChecker() {
-				
-				@Override
-				public void close() {
-					
-					for (String classname : translator.getLoadedClasses()) {
-						LOGGER.log(Level.WARNING, String.format("Mod %1$s loaded server class %3$s during phase %2$s", modname, phase, classname));
-					}
-					
-					try {
-						hookManager.getLoader().addTranslator(hookManager.getClassPool(), NOOP_TRANSLATOR);
-					} catch (CannotCompileException | NotFoundException e) {
-					}
+
+		DispatchingTranslator.INSTANCE.begin(translator);
+
+		// Code modifications of the thread belong to the mod
+		final String previousMod = HookManager.getInstance().setCurrentMod(modname);
+
+		return new EarlyLoadingChecker() {
+
+			@Override
+			public void close() {
+
+				HookManager.getInstance().setCurrentMod(previousMod);
+				DispatchingTranslator.INSTANCE.end(translator);
+
+				for (String classname : translator.getLoadedClasses()) {
+					LOGGER.log(Level.WARNING, String.format("Mod %1$s loaded server class %3$s during phase %2$s", modname, phase, classname));
 				}
-			};
-		} catch (CannotCompileException | NotFoundException e) {
-			throw new RuntimeException(e);
-		}
+			}
+		};
 	}
-	
+
 	public final static Translator NOOP_TRANSLATOR = new Translator() {
 		@Override
 		public void start(ClassPool paramClassPool) throws NotFoundException, CannotCompileException {
 		}
-		
+
 		@Override
 		public void onLoad(ClassPool paramClassPool, String paramString) throws NotFoundException, CannotCompileException {
 		}
 	};
-}
\ No newline at end of file
+
+	/**
+	 * Translator installed on the HookManager loader while any checker is active.
+	 */
+	static final class DispatchingTranslator implements Translator {
+
+		static final DispatchingTranslator INSTANCE = new DispatchingTranslator();
+
+		private final ThreadLocal<AddToListTranslator> current = new ThreadLocal<>();
+		private final List<AddToListTranslator> active = new ArrayList<>();
+
+		synchronized void begin(AddToListTranslator translator) {
+			current.set(translator);
+			active.add(translator);
+			if (active.size() == 1) {
+				install(this);
+			}
+		}
+
+		synchronized void end(AddToListTranslator translator) {
+			if (current.get() == translator) {
+				current.remove();
+			}
+			active.remove(translator);
+			if (active.isEmpty()) {
+				install(NOOP_TRANSLATOR);
+			}
+		}
+
+		private static void install(Translator translator) {
+			final HookManager hookManager = HookManager.getInstance();
+			try {
+				hookManager.getLoader().addTranslator(hookManager.getClassPool(), translator);
+			} catch (CannotCompileException | NotFoundException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void start(ClassPool paramClassPool) throws NotFoundException, CannotCompileException {
+		}
+
+		@Override
+		public void onLoad(ClassPool paramClassPool, String paramString) throws NotFoundException, CannotCompileException {
+			AddToListTranslator translator = current.get();
+			if (translator == null) {
+				synchronized (this) {
+					if (active.size() == 1) {
+						translator = active.get(0);
+					}
+				}
+			}
+			if (translator != null) {
+				translator.onLoad(paramClassPool, paramString);
+			}
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Read and write a field regardless of its access modifiers.
+ * <p>
+ * Accessors are created by {@link ReflectionUtil#getFieldAccessor(Field)}. Each accessor is a generated class which
+ * keeps the method handles of the field in constants, so the JIT compiles a read through an accessor held in a static
+ * final field to a plain field read.
+ * <p>
+ * The primitive methods read and write the field without boxing and must match the type of the field exactly. Static
+ * fields ignore the object.
+ *
+ * <pre>
+ * private static final FieldAccessor&lt;Creature, Byte&gt; KINGDOM = ReflectionUtil.getFieldAccessor(Creature.class, "kingdom");
+ * </pre>
+ *
+ * @param <T>
+ *            Class declaring the field
+ * @param <V>
+ *            Field type
+ */
+public abstract class FieldAccessor<T, V> {
+
+	private final Field field;
+
+	protected FieldAccessor(Field field) {
+		this.field = field;
+	}
+
+	/**
+	 * Get the field.
+	 */
+	public final Field getField() {
+		return field;
+	}
+
+	/**
+	 * Check if the field can be written. Static final fields are read only.
+	 */
+	public final boolean isWritable() {
+		return !Modifier.isStatic(field.getModifiers()) || !Modifier.isFinal(field.getModifiers());
+	}
+
+	private RuntimeException wrongType(Class<?> type) {
+		if (type == field.getType() && !isWritable()) {
+			return new IllegalStateException("Static final field " + field + " is read only");
+		}
+		return new IllegalArgumentException("Field " + field + " is not of type " + type.getName());
+	}
+
+	public abstract V get(T object);
+
+	public void set(T object, V value) {
+		throw wrongType(field.getType());
+	}
+
+	public boolean getBoolean(T object) {
+		throw wrongType(boolean.class);
+	}
+
+	public void setBoolean(T object, boolean value) {
+		throw wrongType(boolean.class);
+	}
+
+	public byte getByte(T object) {
+		throw wrongType(byte.class);
+	}
+
+	public void setByte(T object, byte value) {
+		throw wrongType(byte.class);
+	}
+
+	public short getShort(T object) {
+		throw wrongType(short.class);
+	}
+
+	public void setShort(T object, short value) {
+		throw wrongType(short.class);
+	}
+
+	public char getChar(T object) {
+		throw wrongType(char.class);
+	}
+
+	public void setChar(T object, char value) {
+		throw wrongType(char.class);
+	}
+
+	public int getInt(T object) {
+		throw wrongType(int.class);
+	}
+
+	public void setInt(T object, int value) {
+		throw wrongType(int.class);
+	}
+
+	public long getLong(T object) {
+		throw wrongType(long.class);
+	}
+
+	public void setLong(T object, long value) {
+		throw wrongType(long.class);
+	}
+
+	public float getFloat(T object) {
+		throw wrongType(float.class);
+	}
+
+	public void setFloat(T object, float value) {
+		throw wrongType(float.class);
+	}
+
+	public double getDouble(T object) {
+		throw wrongType(double.class);
+	}
+
+	public void setDouble(T object, double value) {
+		throw wrongType(double.class);
+	}
+}
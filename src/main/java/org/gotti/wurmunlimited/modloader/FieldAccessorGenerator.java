@@ -0,0 +1,233 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javassist.CtClass;
+import javassist.CtPrimitiveType;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.DuplicateMemberException;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * Generate a {@link FieldAccessor} subclass for a field.
+ * <p>
+ * A method handle in a static final field is a constant to the JIT and a call with invokeExact is inlined down to
+ * the field access. Handles in instance fields are not constants and are called without inlining. The generated
+ * class gets its handles from its class loader in the static initializer.
+ */
+final class FieldAccessorGenerator {
+
+	private static final String PACKAGE = "org.gotti.wurmunlimited.modloader.accessors.";
+	private static final String ACCESSOR = FieldAccessor.class.getName();
+	private static final String HANDLE = MethodHandle.class.getName();
+	private static final String HANDLE_DESC = Descriptor.of(HANDLE);
+
+	private static final String GETTER = "GETTER";
+	private static final String SETTER = "SETTER";
+	private static final String EXACT_GETTER = "EXACT_GETTER";
+	private static final String EXACT_SETTER = "EXACT_SETTER";
+
+	private static final CtPrimitiveType[] PRIMITIVES = {
+			(CtPrimitiveType) CtClass.booleanType,
+			(CtPrimitiveType) CtClass.byteType,
+			(CtPrimitiveType) CtClass.shortType,
+			(CtPrimitiveType) CtClass.charType,
+			(CtPrimitiveType) CtClass.intType,
+			(CtPrimitiveType) CtClass.longType,
+			(CtPrimitiveType) CtClass.floatType,
+			(CtPrimitiveType) CtClass.doubleType };
+
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	/**
+	 * Defines one accessor class and hands the method handles to its static initializer.
+	 */
+	private static final class AccessorClassLoader extends ClassLoader implements Supplier<MethodHandle[]> {
+		private final MethodHandle[] handles;
+
+		AccessorClassLoader(ClassLoader parent, MethodHandle[] handles) {
+			super(parent);
+			this.handles = handles;
+		}
+
+		@Override
+		public MethodHandle[] get() {
+			return handles;
+		}
+
+		Class<?> define(String name, byte[] classfile) {
+			return defineClass(name, classfile, 0, classfile.length);
+		}
+	}
+
+	private FieldAccessorGenerator() {
+	}
+
+	/**
+	 * Create an accessor for a field.
+	 *
+	 * @param lookup
+	 *            Lookup to create the method handles
+	 * @param field
+	 *            Accessible field
+	 * @return accessor
+	 */
+	@SuppressWarnings("unchecked")
+	static <T, V> FieldAccessor<T, V> create(MethodHandles.Lookup lookup, Field field) throws IllegalAccessException {
+		final Class<?> type = field.getType().isPrimitive() ? field.getType() : Object.class;
+		final boolean isStatic = Modifier.isStatic(field.getModifiers());
+		final boolean writable = !isStatic || !Modifier.isFinal(field.getModifiers());
+
+		// (Object)Object, (Object,Object)void, (Object)P and (Object,P)void with the primitive type or Object
+		final MethodHandle[] handles = new MethodHandle[4];
+		MethodHandle get = lookup.unreflectGetter(field);
+		if (isStatic) {
+			get = MethodHandles.dropArguments(get, 0, Object.class);
+		}
+		handles[0] = get.asType(MethodType.methodType(Object.class, Object.class));
+		handles[2] = get.asType(MethodType.methodType(type, Object.class));
+		if (writable) {
+			MethodHandle set = lookup.unreflectSetter(field);
+			if (isStatic) {
+				set = MethodHandles.dropArguments(set, 0, Object.class);
+			}
+			handles[1] = set.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			handles[3] = set.asType(MethodType.methodType(void.class, Object.class, type));
+		}
+
+		final String name = PACKAGE + field.getDeclaringClass().getSimpleName() + "$" + field.getName() + "$" + counter.incrementAndGet();
+		final AccessorClassLoader loader = new AccessorClassLoader(FieldAccessor.class.getClassLoader(), handles);
+		try {
+			final Class<?> accessorClass = loader.define(name, generate(name, field.getType().isPrimitive() ? toCtClass(field.getType()) : null, writable));
+			return (FieldAccessor<T, V>) accessorClass.getConstructor(Field.class).newInstance(field);
+		} catch (IOException | DuplicateMemberException | NoSuchMethodException | InstantiationException | InvocationTargetException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static CtPrimitiveType toCtClass(Class<?> type) {
+		for (CtPrimitiveType primitive : PRIMITIVES) {
+			if (primitive.getName().equals(type.getName())) {
+				return primitive;
+			}
+		}
+		throw new IllegalArgumentException(type.getName());
+	}
+
+	private static String capitalize(String name) {
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	private static byte[] generate(String name, CtPrimitiveType primitive, boolean writable) throws IOException, DuplicateMemberException {
+		final ClassFile classFile = new ClassFile(false, name, ACCESSOR);
+		classFile.setMajorVersion(ClassFile.JAVA_8);
+		classFile.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SUPER);
+		final ConstPool constPool = classFile.getConstPool();
+
+		final String[] handleNames = writable ? new String[] { GETTER, SETTER, EXACT_GETTER, EXACT_SETTER } : new String[] { GETTER, EXACT_GETTER };
+		for (String handleName : handleNames) {
+			final FieldInfo fieldInfo = new FieldInfo(constPool, handleName, HANDLE_DESC);
+			fieldInfo.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.STATIC | AccessFlag.FINAL);
+			classFile.addField(fieldInfo);
+		}
+
+		// static { MethodHandle[] handles = ((Supplier) Accessor.class.getClassLoader()).get(); GETTER = handles[0]; ... }
+		Bytecode code = new Bytecode(constPool, 0, 0);
+		code.addLdc(constPool.addClassInfo(name));
+		code.addInvokevirtual("java.lang.Class", "getClassLoader", "()Ljava/lang/ClassLoader;");
+		code.addCheckcast(Supplier.class.getName());
+		code.addInvokeinterface(Supplier.class.getName(), "get", "()Ljava/lang/Object;", 1);
+		code.addCheckcast("[" + HANDLE_DESC);
+		final String[] allNames = { GETTER, SETTER, EXACT_GETTER, EXACT_SETTER };
+		for (int i = 0; i < allNames.length; i++) {
+			if (writable || i % 2 == 0) {
+				code.addOpcode(Bytecode.DUP);
+				code.addIconst(i);
+				code.addOpcode(Bytecode.AALOAD);
+				code.addPutstatic(name, allNames[i], HANDLE_DESC);
+			}
+		}
+		code.addOpcode(Bytecode.POP);
+		code.addOpcode(Bytecode.RETURN);
+		addMethod(classFile, MethodInfo.nameClinit, "()V", AccessFlag.STATIC, code);
+
+		// public Accessor(Field field) { super(field); }
+		code = new Bytecode(constPool, 0, 2);
+		code.addAload(0);
+		code.addAload(1);
+		code.addInvokespecial(ACCESSOR, MethodInfo.nameInit, "(Ljava/lang/reflect/Field;)V");
+		code.addOpcode(Bytecode.RETURN);
+		addMethod(classFile, MethodInfo.nameInit, "(Ljava/lang/reflect/Field;)V", AccessFlag.PUBLIC, code);
+
+		addGetter(classFile, name, "get", GETTER, null);
+		if (writable) {
+			addSetter(classFile, name, "set", SETTER, null);
+		}
+		if (primitive != null) {
+			addGetter(classFile, name, "get" + capitalize(primitive.getName()), EXACT_GETTER, primitive);
+			if (writable) {
+				addSetter(classFile, name, "set" + capitalize(primitive.getName()), EXACT_SETTER, primitive);
+			}
+		}
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			classFile.write(out);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static String toDescriptor(CtPrimitiveType primitive) {
+		return primitive == null ? "Ljava/lang/Object;" : String.valueOf(primitive.getDescriptor());
+	}
+
+	// public P getP(Object object) { return (P) HANDLE.invokeExact(object); }
+	private static void addGetter(ClassFile classFile, String name, String methodName, String handleName, CtPrimitiveType primitive) throws DuplicateMemberException {
+		final String desc = "(Ljava/lang/Object;)" + toDescriptor(primitive);
+		final Bytecode code = new Bytecode(classFile.getConstPool(), 0, 2);
+		code.addGetstatic(name, handleName, HANDLE_DESC);
+		code.addAload(1);
+		code.addInvokevirtual(HANDLE, "invokeExact", desc);
+		code.addOpcode(primitive == null ? Bytecode.ARETURN : primitive.getReturnOp());
+		addMethod(classFile, methodName, desc, AccessFlag.PUBLIC | AccessFlag.FINAL, code);
+	}
+
+	// public void setP(Object object, P value) { HANDLE.invokeExact(object, value); }
+	private static void addSetter(ClassFile classFile, String name, String methodName, String handleName, CtPrimitiveType primitive) throws DuplicateMemberException {
+		final String desc = "(Ljava/lang/Object;" + toDescriptor(primitive) + ")V";
+		final Bytecode code = new Bytecode(classFile.getConstPool(), 0, 0);
+		code.addGetstatic(name, handleName, HANDLE_DESC);
+		code.addAload(1);
+		if (primitive == null) {
+			code.addAload(2);
+			code.setMaxLocals(3);
+		} else {
+			code.setMaxLocals(2 + code.addLoad(2, primitive));
+		}
+		code.addInvokevirtual(HANDLE, "invokeExact", desc);
+		code.addOpcode(Bytecode.RETURN);
+		addMethod(classFile, methodName, desc, AccessFlag.PUBLIC | AccessFlag.FINAL, code);
+	}
+
+	private static void addMethod(ClassFile classFile, String methodName, String desc, int accessFlags, Bytecode code) throws DuplicateMemberException {
+		final MethodInfo methodInfo = new MethodInfo(classFile.getConstPool(), methodName, desc);
+		methodInfo.setAccessFlags(accessFlags);
+		methodInfo.setCodeAttribute(code.toCodeAttribute());
+		classFile.addMethod(methodInfo);
+	}
+}
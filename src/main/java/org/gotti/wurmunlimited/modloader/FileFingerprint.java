@@ -0,0 +1,121 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Identity of a file content used to validate cached data.
+ * <p>
+ * The content hash is only computed if size or modification time differ from a cached fingerprint. A file which was
+ * touched but not changed is still recognized by its hash.
+ */
+final class FileFingerprint {
+
+	private final long size;
+	private final long lastModified;
+	private final String hash;
+
+	FileFingerprint(long size, long lastModified, String hash) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.hash = hash;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Check if the file still matches this fingerprint.
+	 *
+	 * @param file
+	 *            File
+	 * @return The fingerprint of the file if it has the same content as this fingerprint, null otherwise
+	 * @throws IOException
+	 */
+	public FileFingerprint validate(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long currentSize = attributes.size();
+		long currentLastModified = attributes.lastModifiedTime().toMillis();
+		if (currentSize != size) {
+			return null;
+		}
+		if (currentLastModified == lastModified) {
+			return this;
+		}
+		String currentHash = hash(file);
+		if (currentHash.equals(hash)) {
+			return new FileFingerprint(currentSize, currentLastModified, currentHash);
+		}
+		return null;
+	}
+
+	/**
+	 * Create the fingerprint for a file.
+	 *
+	 * @param file
+	 *            File
+	 * @return fingerprint
+	 * @throws IOException
+	 */
+	public static FileFingerprint of(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		return new FileFingerprint(attributes.size(), attributes.lastModifiedTime().toMillis(), hash(file));
+	}
+
+	private static String hash(Path file) throws IOException {
+		try (InputStream inputStream = Files.newInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[65536];
+			int len;
+			while ((len = inputStream.read(buffer)) != -1) {
+				digest.update(buffer, 0, len);
+			}
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+			builder.append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeLong(size);
+		out.writeLong(lastModified);
+		out.writeUTF(hash);
+	}
+
+	static FileFingerprint read(DataInput in) throws IOException {
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		String hash = in.readUTF();
+		return new FileFingerprint(size, lastModified, hash);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d/%d/%s", size, lastModified, hash);
+	}
+}
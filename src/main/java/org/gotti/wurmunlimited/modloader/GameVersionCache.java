@@ -0,0 +1,136 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.ClassPool;
+
+/**
+ * Cache for the game version.
+ * <p>
+ * The version is stored together with the {@link FileFingerprint} of the jar providing the version class. The version
+ * is only probed again if that jar changed.
+ */
+class GameVersionCache {
+
+	private static Logger logger = Logger.getLogger(GameVersionCache.class.getName());
+
+	private final Path cacheFile;
+
+	GameVersionCache(Path cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Get the cached version or probe the version.
+	 *
+	 * @param classPool
+	 *            Class pool used to locate the version class
+	 * @param className
+	 *            Version class
+	 * @param probe
+	 *            Probe for the version
+	 * @return game version
+	 */
+	public String get(ClassPool classPool, String className, Supplier<String> probe) {
+		final Path jarFile = locateJar(classPool, className);
+		if (jarFile == null) {
+			return probe.get();
+		}
+
+		String cachedVersion = null;
+		FileFingerprint changed = null;
+		final Properties properties = new Properties();
+		try (InputStream inputStream = Files.newInputStream(cacheFile)) {
+			properties.load(inputStream);
+			final String version = properties.getProperty("version");
+			if (version != null && jarFile.toString().equals(properties.getProperty("jar"))) {
+				final FileFingerprint cached = new FileFingerprint(Long.parseLong(properties.getProperty("size")), Long.parseLong(properties.getProperty("lastModified")), properties.getProperty("hash"));
+				final FileFingerprint fingerprint = cached.validate(jarFile);
+				if (fingerprint != null) {
+					cachedVersion = version;
+					if (fingerprint != cached) {
+						changed = fingerprint;
+					}
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Not cached yet
+		} catch (IOException | RuntimeException e) {
+			logger.log(Level.FINE, "Ignoring game version cache " + cacheFile, e);
+		}
+
+		if (cachedVersion != null) {
+			if (changed != null) {
+				// Touched but unchanged jar, update the cache once the input is closed
+				try {
+					store(jarFile, changed, cachedVersion);
+				} catch (IOException e) {
+					logger.log(Level.FINE, "Failed to update game version cache " + cacheFile + ": " + e.getMessage());
+				}
+			}
+			return cachedVersion;
+		}
+
+		final String version = probe.get();
+		try {
+			store(jarFile, FileFingerprint.of(jarFile), version);
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write game version cache " + cacheFile + ": " + e.getMessage());
+		}
+		return version;
+	}
+
+	private void store(Path jarFile, FileFingerprint fingerprint, String version) throws IOException {
+		final Properties properties = new Properties();
+		properties.setProperty("jar", jarFile.toString());
+		properties.setProperty("size", Long.toString(fingerprint.getSize()));
+		properties.setProperty("lastModified", Long.toString(fingerprint.getLastModified()));
+		properties.setProperty("hash", fingerprint.getHash());
+		properties.setProperty("version", version);
+		Files.createDirectories(cacheFile.getParent());
+		final Path tmpFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+		try (OutputStream outputStream = Files.newOutputStream(tmpFile)) {
+			properties.store(outputStream, "Game version cache");
+		}
+		Files.move(tmpFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Find the jar file providing a class.
+	 *
+	 * @param classPool
+	 *            Class pool
+	 * @param className
+	 *            Class name
+	 * @return Jar file or null if the class is not loaded from a jar
+	 */
+	static Path locateJar(ClassPool classPool, String className) {
+		final URL url = classPool.find(className);
+		if (url == null || !"jar".equals(url.getProtocol())) {
+			return null;
+		}
+		final String file = url.getFile();
+		final int separator = file.indexOf("!/");
+		if (separator == -1) {
+			return null;
+		}
+		try {
+			return Paths.get(new URL(file.substring(0, separator)).toURI());
+		} catch (IOException | URISyntaxException | RuntimeException e) {
+			return null;
+		}
+	}
+}
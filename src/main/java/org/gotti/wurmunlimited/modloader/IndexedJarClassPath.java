@@ -0,0 +1,123 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+/**
+ * ClassPath for the jars of the mods using the shared classloader.
+ * <p>
+ * The class entries of each jar are indexed when the jar is added. A lookup is a single map access regardless of the
+ * number of jars, and classes which are not in any jar are rejected without touching the jars. If several jars contain
+ * a class the first added jar wins, like with separate class paths appended in the same order.
+ */
+class IndexedJarClassPath implements ClassPath {
+
+	private static final class Jar {
+		final JarFile jarFile;
+		final String url;
+
+		Jar(JarFile jarFile, String url) {
+			this.jarFile = jarFile;
+			this.url = url;
+		}
+	}
+
+	private final List<Jar> jars = new ArrayList<>();
+	private final Map<String, Jar> classes = new ConcurrentHashMap<>();
+
+	/**
+	 * Add a jar and index its classes.
+	 *
+	 * @param path
+	 *            Jar file
+	 * @throws NotFoundException
+	 *             if the jar can not be read
+	 */
+	public synchronized void addJar(Path path) throws NotFoundException {
+		try {
+			final JarFile jarFile = new JarFile(path.toFile());
+			final Jar jar = new Jar(jarFile, path.toFile().getCanonicalFile().toURI().toURL().toString());
+			final Enumeration<JarEntry> entries = jarFile.entries();
+			while (entries.hasMoreElements()) {
+				final String name = entries.nextElement().getName();
+				if (name.endsWith(".class")) {
+					classes.putIfAbsent(name.substring(0, name.length() - 6).replace('/', '.'), jar);
+				}
+			}
+			jars.add(jar);
+		} catch (IOException e) {
+			throw new NotFoundException(path.toString(), e);
+		}
+	}
+
+	/**
+	 * Check if the path can be handled by {@link #addJar(Path)}.
+	 */
+	public static boolean isJar(Path path) {
+		final String name = path.getFileName().toString().toLowerCase();
+		return name.endsWith(".jar") || name.endsWith(".zip");
+	}
+
+	@Override
+	public InputStream openClassfile(String classname) throws NotFoundException {
+		final Jar jar = classes.get(classname);
+		if (jar == null) {
+			return null;
+		}
+		try {
+			final JarEntry entry = jar.jarFile.getJarEntry(getEntryName(classname));
+			return entry != null ? jar.jarFile.getInputStream(entry) : null;
+		} catch (IOException e) {
+			throw new NotFoundException("broken jar file?: " + jar.jarFile.getName(), e);
+		}
+	}
+
+	@Override
+	public URL find(String classname) {
+		final Jar jar = classes.get(classname);
+		if (jar == null) {
+			return null;
+		}
+		try {
+			return new URL("jar:" + jar.url + "!/" + getEntryName(classname));
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	private static String getEntryName(String classname) {
+		return classname.replace('.', '/') + ".class";
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Jar jar : jars) {
+			try {
+				jar.jarFile.close();
+			} catch (IOException e) {
+			}
+		}
+		jars.clear();
+		classes.clear();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return jars.stream().map(jar -> jar.jarFile.getName()).collect(Collectors.joining(File.pathSeparator));
+	}
+}
@@ -12,19 +12,60 @@ package org.gotti.wurmunlimited.modloader;
 // Please contact the author if you need another license.
 // This module is provided "as is", without warranties of any kind.
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * A class loader that combines multiple class loaders into one.<br>
+ * <p>
+ * The packages of the delegates are indexed on first use. A class or resource is only looked up in the delegates
+ * owning its package. Delegates which can not be indexed are always asked. Misses are remembered in a bounded cache.
+ * <p>
+ * The loader is parallel capable and locks per class name.
  */
 class JoinClassLoader extends ClassLoader {
 
-	private ClassLoader[] delegateClassLoaders;
+	static {
+		registerAsParallelCapable();
+	}
+
+	private static final int NEGATIVE_CACHE_SIZE = 1024;
+
+	private final ClassLoader[] delegateClassLoaders;
+	private volatile PackageIndex packageIndex;
+	private final Set<String> misses = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(64, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > NEGATIVE_CACHE_SIZE;
+		}
+	}));
 
 	public JoinClassLoader(ClassLoader parent, ClassLoader... delegateClassLoaders) {
 		super(parent);
@@ -32,7 +73,10 @@ class JoinClassLoader extends ClassLoader {
 	}
 
 	protected Class<?> findClass(String name) throws ClassNotFoundException {
-		for (ClassLoader delegate : delegateClassLoaders) {
+		if (misses.contains(name)) {
+			throw new ClassNotFoundException(name);
+		}
+		for (ClassLoader delegate : getDelegates(getPackagePath(name.replace('.', '/')))) {
 			try {
 				return delegate.loadClass(name);
 			} catch (ClassNotFoundException e) {
@@ -44,6 +88,7 @@ class JoinClassLoader extends ClassLoader {
 		String path = name.replace('.', '/') + ".class";
 		URL url = findResource(path);
 		if (url == null) {
+			misses.add(name);
 			throw new ClassNotFoundException(name);
 		}
 		ByteBuffer byteCode;
@@ -55,6 +100,150 @@ class JoinClassLoader extends ClassLoader {
 		return defineClass(name, byteCode, null);
 	}
 
+	/**
+	 * Get the package part of a class or resource path.
+	 */
+	private static String getPackagePath(String path) {
+		int pos = path.lastIndexOf('/');
+		return pos == -1 ? "" : path.substring(0, pos);
+	}
+
+	/**
+	 * Get the delegates which may contain the package.
+	 */
+	private ClassLoader[] getDelegates(String packageName) {
+		PackageIndex index = packageIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = packageIndex;
+				if (index == null) {
+					index = packageIndex = new PackageIndex(delegateClassLoaders);
+				}
+			}
+		}
+		return index.get(packageName);
+	}
+
+	/**
+	 * Get all packages reachable through this loader's delegates.
+	 *
+	 * @return packages or null if a delegate could not be indexed
+	 */
+	private Set<String> getIndexedPackages() {
+		getDelegates("");
+		return packageIndex.unindexed.length == 0 ? packageIndex.packages.keySet() : null;
+	}
+
+	private static final class PackageIndex {
+
+		private final Map<String, ClassLoader[]> packages;
+		private final ClassLoader[] unindexed;
+
+		PackageIndex(ClassLoader[] delegates) {
+			final List<Set<String>> delegatePackages = new ArrayList<>(delegates.length);
+			final Set<String> allPackages = new HashSet<>();
+			final List<ClassLoader> unindexed = new ArrayList<>();
+			for (ClassLoader delegate : delegates) {
+				Set<String> packages = indexDelegate(delegate);
+				delegatePackages.add(packages);
+				if (packages == null) {
+					unindexed.add(delegate);
+				} else {
+					allPackages.addAll(packages);
+				}
+			}
+
+			// Keep the delegate order for packages split across several delegates
+			this.packages = new HashMap<>(allPackages.size() * 2);
+			for (String packageName : allPackages) {
+				final List<ClassLoader> owners = new ArrayList<>(1);
+				for (int i = 0; i < delegates.length; i++) {
+					Set<String> packages = delegatePackages.get(i);
+					if (packages == null || packages.contains(packageName)) {
+						owners.add(delegates[i]);
+					}
+				}
+				this.packages.put(packageName, owners.toArray(new ClassLoader[owners.size()]));
+			}
+			this.unindexed = unindexed.toArray(new ClassLoader[unindexed.size()]);
+		}
+
+		ClassLoader[] get(String packageName) {
+			ClassLoader[] owners = packages.get(packageName);
+			return owners != null ? owners : unindexed;
+		}
+
+		/**
+		 * Index the packages of a mod classloader and of the loaders it imports.
+		 *
+		 * @return packages or null if the delegate can not be indexed
+		 */
+		private static Set<String> indexDelegate(ClassLoader delegate) {
+			if (!(delegate instanceof URLClassLoader)) {
+				return null;
+			}
+			final Set<String> packages = new HashSet<>();
+			if (delegate instanceof ModClassLoader) {
+				// Mapped jars are already indexed and are not part of the URLs
+				for (MappedJar jar : ((ModClassLoader) delegate).getMappedJars()) {
+					for (String name : jar.getNames()) {
+						packages.add(getPackagePath(name));
+					}
+				}
+			}
+			try {
+				for (URL url : ((URLClassLoader) delegate).getURLs()) {
+					if (!"file".equals(url.getProtocol())) {
+						return null;
+					}
+					if (!indexPath(Paths.get(url.toURI()), packages)) {
+						return null;
+					}
+				}
+			} catch (IOException | URISyntaxException | RuntimeException e) {
+				return null;
+			}
+			final ClassLoader parent = delegate.getParent();
+			if (parent instanceof JoinClassLoader) {
+				final Set<String> imported = ((JoinClassLoader) parent).getIndexedPackages();
+				if (imported == null) {
+					return null;
+				}
+				packages.addAll(imported);
+			}
+			return packages;
+		}
+
+		/**
+		 * Add the packages of a classpath entry.
+		 *
+		 * @return false if the entry references further jars through its manifest
+		 */
+		private static boolean indexPath(Path path, Set<String> packages) throws IOException {
+			if (Files.isDirectory(path)) {
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+						packages.add(path.relativize(dir).toString().replace(File.separatorChar, '/'));
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} else if (Files.isRegularFile(path)) {
+				try (JarFile jarFile = new JarFile(path.toFile())) {
+					Manifest manifest = jarFile.getManifest();
+					if (manifest != null && manifest.getMainAttributes().containsKey(Attributes.Name.CLASS_PATH)) {
+						return false;
+					}
+					Enumeration<JarEntry> entries = jarFile.entries();
+					while (entries.hasMoreElements()) {
+						packages.add(getPackagePath(entries.nextElement().getName()));
+					}
+				}
+			}
+			return true;
+		}
+	}
+
 	private ByteBuffer loadResource(URL url) throws IOException {
 		InputStream stream = null;
 		try {
@@ -89,18 +278,23 @@ class JoinClassLoader extends ClassLoader {
 	}
 
 	protected URL findResource(String name) {
-		for (ClassLoader delegate : delegateClassLoaders) {
+		final String key = "/" + name;
+		if (misses.contains(key)) {
+			return null;
+		}
+		for (ClassLoader delegate : getDelegates(getPackagePath(name))) {
 			URL resource = delegate.getResource(name);
 			if (resource != null) {
 				return resource;
 			}
 		}
+		misses.add(key);
 		return null;
 	}
 
 	protected Enumeration<URL> findResources(String name) throws IOException {
 		Vector<URL> vector = new Vector<URL>();
-		for (ClassLoader delegate : delegateClassLoaders) {
+		for (ClassLoader delegate : getDelegates(getPackagePath(name))) {
 			Enumeration<URL> enumeration = delegate.getResources(name);
 			while (enumeration.hasMoreElements()) {
 				vector.add(enumeration.nextElement());
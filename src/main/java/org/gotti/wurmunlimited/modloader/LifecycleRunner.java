@@ -0,0 +1,159 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the lifecycle phases of the mods.
+ * <p>
+ * The mods run in the resolved dependency order. Thread safe mods of the same dependency layer are run concurrently
+ * at the position of the first of them, together with those of them which do not have to wait for a mod of a lower
+ * layer. Without thread safe mods the phase runs in the resolved order.
+ * <p>
+ * Mods declare their thread safety with the property <code>threadSafe</code>.
+ *
+ * @param <E>
+ *            Mod entry type
+ */
+class LifecycleRunner<E extends ModInfo> implements AutoCloseable {
+
+	private final List<E> mods;
+	private final Map<String, Integer> layerIndex = new HashMap<>();
+	private ExecutorService executor;
+
+	/**
+	 * @param mods
+	 *            Mods in the resolved order
+	 * @param layers
+	 *            Dependency layers of the mods. The dependencies of a mod are in lower layers
+	 */
+	LifecycleRunner(List<E> mods, List<List<E>> layers) {
+		this.mods = mods;
+		for (int i = 0; i < layers.size(); i++) {
+			for (E mod : layers.get(i)) {
+				layerIndex.put(mod.getName(), i);
+			}
+		}
+	}
+
+	/**
+	 * Run a phase.
+	 *
+	 * @param phase
+	 *            Phase name reported by the {@link EarlyLoadingChecker}
+	 * @param filter
+	 *            Mods taking part in the phase
+	 * @param threadSafeDefault
+	 *            Thread safety of mods which do not declare it
+	 * @param action
+	 *            Phase action
+	 */
+	public void run(String phase, Predicate<E> filter, boolean threadSafeDefault, Consumer<E> action) {
+		final List<E> participants = mods.stream().filter(filter).collect(Collectors.toList());
+		final boolean[] done = new boolean[participants.size()];
+		for (int i = 0; i < participants.size(); i++) {
+			if (done[i]) {
+				continue;
+			}
+			final E mod = participants.get(i);
+			done[i] = true;
+			if (!mod.isThreadSafe(threadSafeDefault)) {
+				runChecked(phase, mod, action);
+				continue;
+			}
+
+			// Thread safe mods of the same layer unless a mod of a lower layer comes first which did not run yet
+			final int layer = getLayer(mod);
+			final List<E> batch = new ArrayList<>();
+			batch.add(mod);
+			for (int j = i + 1; j < participants.size(); j++) {
+				if (done[j]) {
+					continue;
+				}
+				final E other = participants.get(j);
+				final int otherLayer = getLayer(other);
+				if (otherLayer < layer) {
+					break;
+				} else if (otherLayer == layer && other.isThreadSafe(threadSafeDefault)) {
+					batch.add(other);
+					done[j] = true;
+				}
+			}
+
+			if (batch.size() == 1) {
+				runChecked(phase, mod, action);
+			} else {
+				runConcurrently(phase, batch, action);
+			}
+		}
+	}
+
+	private int getLayer(E mod) {
+		final Integer layer = layerIndex.get(mod.getName());
+		return layer != null ? layer : 0;
+	}
+
+	private void runConcurrently(String phase, List<E> batch, Consumer<E> action) {
+		final List<CompletableFuture<Void>> futures = new ArrayList<>(batch.size());
+		for (E mod : batch) {
+			futures.add(CompletableFuture.runAsync(() -> runChecked(phase, mod, action), getExecutor()));
+		}
+
+		// Wait for all mods of the batch before reporting the first failure
+		Throwable failure = null;
+		for (CompletableFuture<Void> future : futures) {
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new CompletionException(failure);
+		}
+	}
+
+	private void runChecked(String phase, E mod, Consumer<E> action) {
+		try (EarlyLoadingChecker c = EarlyLoadingChecker.init(mod.getName(), phase)) {
+			action.accept(mod);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final AtomicInteger counter = new AtomicInteger();
+			final ThreadFactory threadFactory = runnable -> {
+				Thread thread = new Thread(runnable, "modloader-lifecycle-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+			executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), threadFactory);
+		}
+		return executor;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Read only view of a jar in a byte buffer.
+ * <p>
+ * The central directory is parsed once into an index of entries. Stored entries are returned as slices of the buffer,
+ * deflated entries are inflated into a buffer of the exact size.
+ * <p>
+ * Only plain jars are supported. Zip64, encrypted or signed jars and jars with manifest attributes affecting class
+ * loading (Class-Path, Sealed, Multi-Release) are rejected with a {@link ZipException}. Offsets and sizes are checked
+ * against the buffer, so corrupt jars fail with a {@link ZipException} too.
+ */
+final class MappedJar {
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int CEN_SIZE = 46;
+	private static final int LOC_SIZE = 30;
+
+	private static final int STORED = 0;
+	private static final int DEFLATED = 8;
+
+	static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+	/**
+	 * Central directory entry.
+	 */
+	static final class Entry {
+		final int method;
+		final int compressedSize;
+		final int size;
+		final int localHeaderOffset;
+
+		Entry(int method, int compressedSize, int size, int localHeaderOffset) {
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final Map<String, Entry> entries;
+	private final Manifest manifest;
+
+	/**
+	 * Index a jar held in a buffer.
+	 *
+	 * @param buffer
+	 *            Jar content. The buffer is not modified.
+	 * @throws IOException
+	 *             if the jar is not supported
+	 */
+	MappedJar(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		this.entries = readCentralDirectory(this.buffer);
+		this.manifest = readManifest();
+	}
+
+	/**
+	 * Map a jar file.
+	 *
+	 * @param path
+	 *            Jar file
+	 * @return mapped jar
+	 * @throws IOException
+	 *             if the file can not be read or is not supported
+	 */
+	static MappedJar map(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new ZipException("Jar too large: " + path);
+			}
+			return new MappedJar(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	private static Map<String, Entry> readCentralDirectory(ByteBuffer buffer) throws IOException {
+		final int eocd = findEndOfCentralDirectory(buffer);
+		final int count = buffer.getShort(eocd + 10) & 0xffff;
+		final long cenSize = buffer.getInt(eocd + 12) & 0xffffffffL;
+		final long cenOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+		if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL || cenOffset + cenSize > eocd) {
+			throw new ZipException("Unsupported central directory");
+		}
+
+		final Map<String, Entry> entries = new HashMap<>(count * 2);
+		int pos = (int) cenOffset;
+		for (int i = 0; i < count; i++) {
+			if (pos + CEN_SIZE > eocd || buffer.getInt(pos) != CEN_SIGNATURE) {
+				throw new ZipException("Invalid central directory entry");
+			}
+			final int flags = buffer.getShort(pos + 8) & 0xffff;
+			final int method = buffer.getShort(pos + 10) & 0xffff;
+			final long compressedSize = buffer.getInt(pos + 20) & 0xffffffffL;
+			final long size = buffer.getInt(pos + 24) & 0xffffffffL;
+			final int nameLength = buffer.getShort(pos + 28) & 0xffff;
+			final int extraLength = buffer.getShort(pos + 30) & 0xffff;
+			final int commentLength = buffer.getShort(pos + 32) & 0xffff;
+			final long localHeaderOffset = buffer.getInt(pos + 42) & 0xffffffffL;
+
+			if ((flags & 1) != 0 || (method != STORED && method != DEFLATED) || compressedSize >= Integer.MAX_VALUE || size >= Integer.MAX_VALUE || localHeaderOffset >= Integer.MAX_VALUE) {
+				throw new ZipException("Unsupported entry");
+			}
+			if (pos + CEN_SIZE + nameLength + extraLength + commentLength > eocd || localHeaderOffset + LOC_SIZE + compressedSize > cenOffset) {
+				throw new ZipException("Invalid central directory entry");
+			}
+
+			final byte[] name = new byte[nameLength];
+			((ByteBuffer) buffer.duplicate().position(pos + CEN_SIZE)).get(name);
+			final String entryName = new String(name, StandardCharsets.UTF_8);
+			if (isSignature(entryName)) {
+				throw new ZipException("Signed jar");
+			}
+			entries.putIfAbsent(entryName, new Entry(method, (int) compressedSize, (int) size, (int) localHeaderOffset));
+
+			pos += CEN_SIZE + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private static int findEndOfCentralDirectory(ByteBuffer buffer) throws ZipException {
+		final int end = buffer.limit() - EOCD_SIZE;
+		final int start = Math.max(0, end - 0xffff);
+		for (int pos = end; pos >= start; pos--) {
+			if (buffer.getInt(pos) == EOCD_SIGNATURE && pos + EOCD_SIZE + (buffer.getShort(pos + 20) & 0xffff) == buffer.limit()) {
+				return pos;
+			}
+		}
+		throw new ZipException("End of central directory not found");
+	}
+
+	private static boolean isSignature(String name) {
+		if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) {
+			return false;
+		}
+		final String upper = name.toUpperCase();
+		return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC") || upper.startsWith("META-INF/SIG-");
+	}
+
+	private Manifest readManifest() throws IOException {
+		final ByteBuffer data = getData(MANIFEST_NAME);
+		if (data == null) {
+			return null;
+		}
+		final byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		final Manifest manifest = new Manifest(new ByteArrayInputStream(bytes));
+		final Attributes main = manifest.getMainAttributes();
+		if (main.containsKey(Attributes.Name.CLASS_PATH) || main.containsKey(new Attributes.Name("Multi-Release"))) {
+			throw new ZipException("Unsupported manifest attributes");
+		}
+		if (main.containsKey(Attributes.Name.SEALED)) {
+			throw new ZipException("Sealed jar");
+		}
+		for (Attributes attributes : manifest.getEntries().values()) {
+			if (attributes.containsKey(Attributes.Name.SEALED)) {
+				throw new ZipException("Sealed jar");
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Check if the jar contains an entry.
+	 */
+	boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	/**
+	 * Get the names of all entries.
+	 */
+	Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * Get the uncompressed size of an entry.
+	 *
+	 * @return size or -1 if the entry does not exist
+	 */
+	int getSize(String name) {
+		final Entry entry = entries.get(name);
+		return entry != null ? entry.size : -1;
+	}
+
+	/**
+	 * Get the jar manifest.
+	 *
+	 * @return manifest or null
+	 */
+	Manifest getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * Get the number of entries.
+	 */
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the content of an entry.
+	 *
+	 * @param name
+	 *            Entry name
+	 * @return buffer positioned at the content or null if the entry does not exist. Stored entries are read only views
+	 *         of the mapping, deflated entries are inflated into a private array which is exposed so defineClass can
+	 *         use it without another copy
+	 * @throws IOException
+	 *             if the entry is corrupt
+	 */
+	ByteBuffer getData(String name) throws IOException {
+		final Entry entry = entries.get(name);
+		if (entry == null) {
+			return null;
+		}
+		final int loc = entry.localHeaderOffset;
+		if (buffer.getInt(loc) != LOC_SIGNATURE) {
+			throw new ZipException("Invalid local header for " + name);
+		}
+		final int start = loc + LOC_SIZE + (buffer.getShort(loc + 26) & 0xffff) + (buffer.getShort(loc + 28) & 0xffff);
+		if ((long) start + entry.compressedSize > buffer.limit()) {
+			throw new ZipException("Invalid local header for " + name);
+		}
+		final ByteBuffer data = buffer.duplicate();
+		data.limit(start + entry.compressedSize).position(start);
+
+		if (entry.method == STORED) {
+			return data.slice().asReadOnlyBuffer();
+		}
+
+		// Java 8 inflates from arrays only. The extra byte is required by nowrap inflaters
+		final byte[] input = new byte[entry.compressedSize + 1];
+		data.get(input, 0, entry.compressedSize);
+		final byte[] output = new byte[entry.size];
+		final Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(input);
+			int length = 0;
+			while (length < output.length && !inflater.finished()) {
+				int n = inflater.inflate(output, length, output.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != output.length) {
+				throw new ZipException("Invalid size of " + name);
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid content of " + name + ": " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(output);
+	}
+}
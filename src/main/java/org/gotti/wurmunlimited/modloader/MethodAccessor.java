@@ -0,0 +1,140 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Executable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Call a method regardless of its access modifiers.
+ * <p>
+ * {@link #invoke(Object, Object...)} boxes the arguments and the result. Calls without boxing use the handle from
+ * {@link #getHandle()} with <code>invokeExact</code>. Accessors are thread safe and are meant to be kept, e.g. in a
+ * static final field.
+ *
+ * @param <R>
+ *            Return type
+ */
+public final class MethodAccessor<R> {
+
+	// Primitive types and the wrapper types which widen to them
+	private static final Object[][] WIDENING = {
+			{ boolean.class, Boolean.class },
+			{ byte.class, Byte.class },
+			{ short.class, Short.class, Byte.class },
+			{ char.class, Character.class },
+			{ int.class, Integer.class, Short.class, Character.class, Byte.class },
+			{ long.class, Long.class, Integer.class, Short.class, Character.class, Byte.class },
+			{ float.class, Float.class, Long.class, Integer.class, Short.class, Character.class, Byte.class },
+			{ double.class, Double.class, Float.class, Long.class, Integer.class, Short.class, Character.class, Byte.class } };
+
+	private final Method method;
+	private final MethodHandle handle;
+	// (Object,Object[])Object
+	private final MethodHandle spreader;
+
+	MethodAccessor(MethodHandles.Lookup lookup, Method method) throws IllegalAccessException {
+		this.method = method;
+		this.handle = lookup.unreflect(method).asFixedArity();
+
+		MethodHandle generic = handle;
+		if (Modifier.isStatic(method.getModifiers())) {
+			generic = MethodHandles.dropArguments(generic, 0, Object.class);
+		}
+		generic = generic.asType(MethodType.genericMethodType(generic.type().parameterCount()));
+		this.spreader = generic.asSpreader(Object[].class, method.getParameterCount());
+	}
+
+	/**
+	 * Get the method.
+	 */
+	public Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Get the method handle. Instance methods take the target as first parameter.
+	 */
+	public MethodHandle getHandle() {
+		return handle;
+	}
+
+	/**
+	 * Call the method.
+	 * <p>
+	 * Like {@link Method#invoke(Object, Object...)} a missing target or wrong arguments are reported before the
+	 * method is called.
+	 *
+	 * @param target
+	 *            Target object, ignored for static methods
+	 * @param args
+	 *            Arguments
+	 * @return the result of the method, null for void methods
+	 * @throws NullPointerException
+	 *             if the target of an instance method is null
+	 * @throws IllegalArgumentException
+	 *             if the target or the arguments do not match the method
+	 * @throws InvocationTargetException
+	 *             wrapping an exception thrown by the method
+	 */
+	@SuppressWarnings("unchecked")
+	public R invoke(Object target, Object... args) throws InvocationTargetException {
+		if (!Modifier.isStatic(method.getModifiers())) {
+			if (target == null) {
+				throw new NullPointerException("Target of " + method + " is null");
+			}
+			if (!method.getDeclaringClass().isInstance(target)) {
+				throw new IllegalArgumentException("Target " + target.getClass().getName() + " is not an instance of " + method.getDeclaringClass().getName());
+			}
+		}
+		final Object[] arguments = checkArguments(method, args);
+		try {
+			return (R) (Object) spreader.invokeExact(target, arguments);
+		} catch (Throwable e) {
+			throw new InvocationTargetException(e);
+		}
+	}
+
+	/**
+	 * Check the arguments for a method or constructor.
+	 *
+	 * @return the arguments, an empty array for null
+	 * @throws IllegalArgumentException
+	 *             if the number or the types of the arguments do not match
+	 */
+	static Object[] checkArguments(Executable executable, Object[] args) {
+		final Object[] arguments = args == null ? new Object[0] : args;
+		final Class<?>[] parameterTypes = executable.getParameterTypes();
+		if (arguments.length != parameterTypes.length) {
+			throw new IllegalArgumentException("Wrong number of arguments for " + executable + ": " + arguments.length);
+		}
+		for (int i = 0; i < arguments.length; i++) {
+			if (!isAssignable(parameterTypes[i], arguments[i])) {
+				final String type = arguments[i] == null ? "null" : arguments[i].getClass().getName();
+				throw new IllegalArgumentException("Argument " + i + " of " + executable + " can not be " + type);
+			}
+		}
+		return arguments;
+	}
+
+	private static boolean isAssignable(Class<?> type, Object value) {
+		if (!type.isPrimitive()) {
+			return value == null || type.isInstance(value);
+		}
+		if (value != null) {
+			for (Object[] widening : WIDENING) {
+				if (widening[0] == type) {
+					for (int i = 1; i < widening.length; i++) {
+						if (widening[i] == value.getClass()) {
+							return true;
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,239 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+/**
+ * Single file mod bundle.
+ * <p>
+ * A bundle is a zip file <code>mods/modname.modbundle</code> containing
+ * <ul>
+ * <li><code>mod.properties</code> with the mod properties like in <code>mods/modname.properties</code></li>
+ * <li><code>mod.config</code>, an optional config template which is copied to <code>mods/modname.config</code></li>
+ * <li>the jars listed in the classpath property. The classpath globs are matched against the entry names</li>
+ * </ul>
+ * <p>
+ * The bundle is memory mapped and the nested jars are read in place. Nested jars should be stored uncompressed,
+ * compressed nested jars are inflated into memory once.
+ * <p>
+ * Resources from nested jars have <code>modbundle:</code> URLs which can only be opened through the URL returned by
+ * the classloader.
+ */
+final class ModBundle {
+
+	private static Logger logger = Logger.getLogger(ModBundle.class.getName());
+
+	static final String EXTENSION = ".modbundle";
+	static final String DESCRIPTOR = "mod.properties";
+	static final String CONFIG_TEMPLATE = "mod.config";
+
+	private final Path path;
+	private final MappedJar bundle;
+	private final Map<String, MappedJar> jars = new ConcurrentHashMap<>();
+	private final Handler handler = new Handler();
+
+	private ModBundle(Path path, MappedJar bundle) {
+		this.path = path;
+		this.bundle = bundle;
+	}
+
+	/**
+	 * Open a bundle.
+	 *
+	 * @param path
+	 *            Bundle file
+	 * @return bundle
+	 * @throws IOException
+	 *             if the bundle can not be read
+	 */
+	static ModBundle open(Path path) throws IOException {
+		return new ModBundle(path, MappedJar.map(path));
+	}
+
+	/**
+	 * Get the mod name of a bundle file.
+	 */
+	static String getModName(Path path) {
+		final String name = path.getFileName().toString();
+		return name.substring(0, name.length() - EXTENSION.length());
+	}
+
+	/**
+	 * Read the descriptor and the config template of a bundle.
+	 *
+	 * @param path
+	 *            Bundle file
+	 * @return Metadata
+	 * @throws IOException
+	 *             if the bundle can not be read or has no descriptor
+	 */
+	static ModJarMetadata readMetadata(Path path) throws IOException {
+		final MappedJar bundle = MappedJar.map(path);
+		final ByteBuffer descriptor = bundle.getData(DESCRIPTOR);
+		if (descriptor == null) {
+			throw new ZipException("Missing " + DESCRIPTOR + " in " + path);
+		}
+		logger.log(Level.INFO, "Reading " + path.toString() + "!/" + DESCRIPTOR);
+		final Properties properties = new Properties();
+		properties.load(new ByteArrayInputStream(toArray(descriptor)));
+
+		final ByteBuffer template = bundle.getData(CONFIG_TEMPLATE);
+		return new ModJarMetadata(properties, template != null ? toArray(template) : null);
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Get the bundle file.
+	 */
+	Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Resolve the classpath globs against the entries of the bundle.
+	 *
+	 * @param classpath
+	 *            Comma separated list of globs relative to the bundle root
+	 * @return names of the matching jars, ordered by glob and then by name
+	 */
+	List<String> resolve(String classpath) {
+		final FileSystem fs = FileSystems.getDefault();
+		final List<String> names = new ArrayList<>(bundle.getNames());
+		Collections.sort(names);
+
+		final Set<String> result = new LinkedHashSet<>();
+		for (String glob : classpath.split(",")) {
+			final PathMatcher matcher = fs.getPathMatcher("glob:" + glob.trim());
+			for (String name : names) {
+				if (!name.endsWith("/") && matcher.matches(Paths.get(name))) {
+					result.add(name);
+				}
+			}
+		}
+		return new ArrayList<>(result);
+	}
+
+	/**
+	 * Get a nested jar.
+	 *
+	 * @param name
+	 *            Entry name of the jar
+	 * @return nested jar
+	 * @throws IOException
+	 *             if the jar does not exist or is not supported
+	 */
+	MappedJar getJar(String name) throws IOException {
+		MappedJar jar = jars.get(name);
+		if (jar == null) {
+			final ByteBuffer data = bundle.getData(name);
+			if (data == null) {
+				throw new ZipException("Missing " + name + " in " + path);
+			}
+			jar = new MappedJar(data);
+			final MappedJar existing = jars.putIfAbsent(name, jar);
+			if (existing != null) {
+				jar = existing;
+			}
+		}
+		return jar;
+	}
+
+	/**
+	 * Get the URL of a nested jar. It is used as code source and as base for the resource URLs.
+	 *
+	 * @param name
+	 *            Entry name of the jar
+	 * @return URL
+	 * @throws MalformedURLException
+	 */
+	URL getJarURL(String name) throws MalformedURLException {
+		return new URL(null, "modbundle:" + path.toUri().getRawPath() + "!/" + name, handler);
+	}
+
+	/**
+	 * Opens the resource URLs of the nested jars.
+	 */
+	private final class Handler extends URLStreamHandler {
+
+		@Override
+		protected URLConnection openConnection(URL u) throws IOException {
+			final String path = u.getPath();
+			final int jarStart = path.indexOf("!/");
+			final int entryStart = jarStart != -1 ? path.indexOf("!/", jarStart + 2) : -1;
+			if (entryStart == -1) {
+				throw new MalformedURLException("No entry in " + u);
+			}
+			final MappedJar jar = getJar(path.substring(jarStart + 2, entryStart));
+			final String entry = decode(path.substring(entryStart + 2));
+			final ByteBuffer data = jar.getData(entry);
+			if (data == null) {
+				throw new IOException("Missing " + entry + " in " + u);
+			}
+			return new URLConnection(u) {
+				@Override
+				public void connect() {
+					connected = true;
+				}
+
+				@Override
+				public InputStream getInputStream() {
+					return new ModClassLoader.ByteBufferInputStream(data.duplicate());
+				}
+
+				@Override
+				public long getContentLengthLong() {
+					return data.remaining();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Decode a %-encoded entry name.
+	 */
+	private static String decode(String name) {
+		if (name.indexOf('%') == -1) {
+			return name;
+		}
+		final byte[] bytes = new byte[name.length()];
+		int length = 0;
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (c == '%' && i + 2 < name.length()) {
+				bytes[length++] = (byte) Integer.parseInt(name.substring(i + 1, i + 3), 16);
+				i += 2;
+			} else {
+				bytes[length++] = (byte) c;
+			}
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,341 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.gotti.wurmunlimited.modloader.classhooks.ClassDefinitionListener;
+
+/**
+ * Classloader for mods with their own classloader.
+ * <p>
+ * The mod jars are memory mapped and indexed once. Classes are defined straight from the mapped buffer or, for
+ * compressed entries, from the inflated buffer. Resources from the mapped jars resolve to the same jar: URLs as with a
+ * plain {@link URLClassLoader}.
+ * <p>
+ * Jars which can not be mapped, folders and all entries after them are handled by {@link URLClassLoader} to keep the
+ * lookup order of the classpath.
+ * <p>
+ * Jars nested in a {@link ModBundle} are served from the mapped bundle only.
+ */
+class ModClassLoader extends URLClassLoader {
+
+	private static Logger logger = Logger.getLogger(ModClassLoader.class.getName());
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	private static final class Jar {
+		final MappedJar jar;
+		final URL url;
+		final URL baseUrl;
+		final CodeSource codeSource;
+
+		Jar(MappedJar jar, URL url) throws MalformedURLException {
+			this(jar, url, new URL("jar:" + url + "!/"));
+		}
+
+		Jar(MappedJar jar, URL url, URL baseUrl) {
+			this.jar = jar;
+			this.url = url;
+			this.baseUrl = baseUrl;
+			this.codeSource = new CodeSource(url, (CodeSigner[]) null);
+		}
+
+		/**
+		 * Get the URL of an entry. The name is encoded like {@link URLClassLoader} does.
+		 */
+		URL getResource(String name) throws MalformedURLException {
+			return new URL(baseUrl, encodePath(name));
+		}
+	}
+
+	// Listener for the classes defined from mapped jars by all mod classloaders
+	private static volatile ClassDefinitionListener listener;
+
+	private final List<Jar> jars;
+	private final AtomicInteger definedClasses = new AtomicInteger();
+	private final AtomicLong definedBytes = new AtomicLong();
+
+	ModClassLoader(List<Path> pathEntries, ClassLoader parent) throws MalformedURLException {
+		this(mapJars(pathEntries), pathEntries, parent);
+	}
+
+	/**
+	 * Only the entries after the mapped jars are handed to {@link URLClassLoader}, so a miss does not open the mapped
+	 * jars again.
+	 */
+	private ModClassLoader(List<Jar> jars, List<Path> pathEntries, ClassLoader parent) throws MalformedURLException {
+		super(toURLs(pathEntries.subList(jars.size(), pathEntries.size())), parent);
+		this.jars = jars;
+	}
+
+	/**
+	 * Create a classloader for jars nested in a mod bundle.
+	 *
+	 * @param bundle
+	 *            Mod bundle
+	 * @param names
+	 *            Entry names of the nested jars
+	 * @param parent
+	 *            Parent loader
+	 * @throws IOException
+	 *             if a nested jar is missing or not supported
+	 */
+	ModClassLoader(ModBundle bundle, List<String> names, ClassLoader parent) throws IOException {
+		super(new URL[0], parent);
+		final List<Jar> jars = new ArrayList<>(names.size());
+		for (String name : names) {
+			final URL url = bundle.getJarURL(name);
+			jars.add(new Jar(bundle.getJar(name), url, new URL(url, url.getPath() + "!/")));
+		}
+		this.jars = jars;
+	}
+
+	private static URL[] toURLs(List<Path> pathEntries) throws MalformedURLException {
+		final URL[] urls = new URL[pathEntries.size()];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = pathEntries.get(i).toUri().toURL();
+		}
+		return urls;
+	}
+
+	private static List<Jar> mapJars(List<Path> pathEntries) throws MalformedURLException {
+		final List<Jar> jars = new ArrayList<>(pathEntries.size());
+		for (Path path : pathEntries) {
+			if (!Files.isRegularFile(path)) {
+				break;
+			}
+			try {
+				jars.add(new Jar(MappedJar.map(path), path.toUri().toURL()));
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Not mapping " + path + ": " + e.getMessage());
+				break;
+			}
+		}
+		return jars;
+	}
+
+	/**
+	 * Set the listener notified about the classes defined from mapped jars by all mod classloaders.
+	 *
+	 * @param listener
+	 *            Listener or null to remove the listener
+	 */
+	static void setClassDefinitionListener(ClassDefinitionListener listener) {
+		ModClassLoader.listener = listener;
+	}
+
+	/**
+	 * Get the number of classpath entries served from mapped jars.
+	 */
+	int getMappedJarCount() {
+		return jars.size();
+	}
+
+	/**
+	 * Get the mapped jars in classpath order.
+	 */
+	List<MappedJar> getMappedJars() {
+		final List<MappedJar> result = new ArrayList<>(jars.size());
+		for (Jar jar : jars) {
+			result.add(jar.jar);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of classes defined from mapped jars.
+	 */
+	int getDefinedClasses() {
+		return definedClasses.get();
+	}
+
+	/**
+	 * Get the size of the class files defined from mapped jars.
+	 */
+	long getDefinedBytes() {
+		return definedBytes.get();
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		final String entryName = name.replace('.', '/').concat(".class");
+		for (Jar jar : jars) {
+			if (jar.jar.contains(entryName)) {
+				try {
+					final ByteBuffer bytes = jar.jar.getData(entryName);
+					final ByteBuffer classfile = bytes.duplicate();
+					definePackage(name, jar);
+					definedClasses.incrementAndGet();
+					definedBytes.addAndGet(bytes.remaining());
+					final Class<?> c = defineClass(name, bytes, jar.codeSource);
+					final ClassDefinitionListener l = listener;
+					if (l != null) {
+						l.classDefined(c, classfile);
+					}
+					return c;
+				} catch (IOException e) {
+					throw new ClassNotFoundException(name, e);
+				}
+			}
+		}
+		return super.findClass(name);
+	}
+
+	private void definePackage(String className, Jar jar) {
+		final int index = className.lastIndexOf('.');
+		if (index == -1) {
+			return;
+		}
+		final String packageName = className.substring(0, index);
+		if (getPackage(packageName) != null) {
+			return;
+		}
+		try {
+			final Manifest manifest = jar.jar.getManifest();
+			if (manifest != null) {
+				definePackage(packageName, manifest, jar.url);
+			} else {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			}
+		} catch (IllegalArgumentException e) {
+			// The package was defined by another thread
+		}
+	}
+
+	@Override
+	public URL findResource(String name) {
+		for (Jar jar : jars) {
+			if (jar.jar.contains(name)) {
+				try {
+					return jar.getResource(name);
+				} catch (MalformedURLException e) {
+					break;
+				}
+			}
+		}
+		return super.findResource(name);
+	}
+
+	/**
+	 * Get the resources from the mapped jars followed by those of the unmapped entries. Bundle loaders have no URLs,
+	 * their resources only come from the mapped jars.
+	 */
+	@Override
+	public Enumeration<URL> findResources(String name) throws IOException {
+		final List<URL> urls = new ArrayList<>();
+		for (Jar jar : jars) {
+			if (jar.jar.contains(name)) {
+				urls.add(jar.getResource(name));
+			}
+		}
+		urls.addAll(Collections.list(super.findResources(name)));
+		return Collections.enumeration(urls);
+	}
+
+	private static String encodePath(String name) {
+		StringBuilder builder = null;
+		final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < bytes.length; i++) {
+			final int c = bytes[i] & 0xff;
+			final boolean plain = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "/-_.!~*'()$&+,;=:@".indexOf(c) != -1;
+			if (!plain && builder == null) {
+				builder = new StringBuilder(name.length() + 16);
+				builder.append(new String(bytes, 0, i, StandardCharsets.UTF_8));
+			}
+			if (builder != null) {
+				if (plain) {
+					builder.append((char) c);
+				} else {
+					builder.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+				}
+			}
+		}
+		return builder != null ? builder.toString() : name;
+	}
+
+	/**
+	 * Get a resource stream reading straight from the mapped jar if the resource is not provided by a parent loader.
+	 */
+	@Override
+	public InputStream getResourceAsStream(String name) {
+		final URL url = getResource(name);
+		if (url == null) {
+			return null;
+		}
+		for (Jar jar : jars) {
+			if (jar.jar.contains(name)) {
+				try {
+					if (!url.toString().equals(jar.getResource(name).toString())) {
+						break;
+					}
+					return new ByteBufferInputStream(jar.jar.getData(name));
+				} catch (IOException e) {
+					return null;
+				}
+			}
+		}
+		try {
+			return url.openStream();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public long skip(long n) {
+			final int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package org.gotti.wurmunlimited.modloader;
 
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -14,9 +15,14 @@ import org.gotti.wurmunlimited.modloader.dependency.DependencyProvider;
 class ModInfo implements DependencyProvider {
 	private Properties properties;
 	private String name;
+	private Path bundle;
 	public ModInfo(Properties properties, String name) {
+		this(properties, name, null);
+	}
+	public ModInfo(Properties properties, String name, Path bundle) {
 		this.properties = properties;
 		this.name = name;
+		this.bundle = bundle;
 	}
 	@Override
 	public String getName() {
@@ -25,6 +31,13 @@ class ModInfo implements DependencyProvider {
 	public Properties getProperties() {
 		return properties;
 	}
+	/**
+	 * Get the bundle file of the mod.
+	 * @return bundle or null if the mod is installed in a folder
+	 */
+	public Path getBundle() {
+		return bundle;
+	}
 	@Override
 	public Collection<String> getRequires() {
 		final List<String> set = parseList(getProperties().getProperty("depend.requires", ""));
@@ -47,6 +60,14 @@ class ModInfo implements DependencyProvider {
 	public boolean isOnDemand() {
 		return Boolean.parseBoolean(getProperties().getProperty("depend.ondemand", "false"));
 	}
+	/**
+	 * Check if the mod lifecycle methods can run concurrently with other mods.
+	 * @param defaultValue Value if the mod does not declare the property threadSafe
+	 * @return true if the mod is thread safe
+	 */
+	public boolean isThreadSafe(boolean defaultValue) {
+		return Boolean.parseBoolean(getProperties().getProperty("threadSafe", Boolean.toString(defaultValue)));
+	}
 	public Collection<String> getImport() {
 		return parseList(getProperties().getProperty("depend.import", ""));
 	}
@@ -2,22 +2,20 @@ package org.gotti.wurmunlimited.modloader;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.nio.file.FileSystem;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,10 +36,93 @@ class ModInstanceBuilder<T> {
 	private static Logger logger = Logger.getLogger(ModInstanceBuilder.class.getName());
 
 	private Map<String, ClassLoader> classLoaders = new HashMap<>();
+	private Map<String, List<Path>> preparedEntries = new ConcurrentHashMap<>();
 	private Class<? extends T> modClass;
+	private ClassPathResolver classPathResolver;
+	private IndexedJarClassPath sharedClassPath;
+	private SharedLibraries sharedLibraries;
 
 	public ModInstanceBuilder(Class<? extends T> modClass) {
+		this(modClass, new ClassPathResolver());
+	}
+
+	public ModInstanceBuilder(Class<? extends T> modClass, ClassPathResolver classPathResolver) {
 		this.modClass = modClass;
+		this.classPathResolver = classPathResolver;
+	}
+
+	/**
+	 * Resolve the classpath entries of the mod ahead of {@link #createModInstance(ModInfo)}. This may be called from any
+	 * thread.
+	 * 
+	 * @param entry
+	 *            Mod info
+	 * @return Resolved classpath entries
+	 */
+	List<Path> prepare(ModInfo entry) {
+		final String classpath = entry.getProperties().getProperty("classpath");
+		if (classpath == null) {
+			return Collections.emptyList();
+		}
+		if (entry.getBundle() != null) {
+			// The nested jars are resolved from the bundle index
+			return Collections.singletonList(entry.getBundle());
+		}
+		return preparedEntries.computeIfAbsent(entry.getName(), modname -> getClassLoaderEntries(modname, classpath));
+	}
+
+	/**
+	 * Get the classpath entries resolved by {@link #prepare(ModInfo)} for some mods, including the mod bundles.
+	 * 
+	 * @param mods
+	 *            Mods
+	 * @return classpath entries
+	 */
+	List<Path> getPreparedEntries(List<? extends ModInfo> mods) {
+		final Set<Path> entries = new LinkedHashSet<>();
+		for (ModInfo mod : mods) {
+			if (mod.getBundle() != null) {
+				entries.add(mod.getBundle());
+			} else if (preparedEntries.containsKey(mod.getName())) {
+				entries.addAll(preparedEntries.get(mod.getName()));
+			}
+		}
+		return new ArrayList<>(entries);
+	}
+
+	/**
+	 * Find libraries bundled identically by several mods with their own classloader. Call after
+	 * {@link #prepare(ModInfo)} completed for all mods and before the first {@link #createModInstance(ModInfo)}.
+	 * 
+	 * @param mods
+	 *            All mods
+	 */
+	void planSharedLibraries(List<ModInfo> mods) {
+		// Without an admin setting only the mods opting in share their libraries
+		final boolean configured = SharedLibraries.Mode.isConfigured();
+		final Map<String, List<Path>> classpaths = new LinkedHashMap<>();
+		for (ModInfo mod : mods) {
+			final Properties properties = mod.getProperties();
+			final List<Path> entries = preparedEntries.get(mod.getName());
+			if (entries == null || mod.getBundle() != null || Boolean.parseBoolean(properties.getProperty("sharedClassLoader", "false")) || Boolean.parseBoolean(properties.getProperty("isolateLibraries", "false"))) {
+				continue;
+			}
+			if (!configured && !Boolean.parseBoolean(properties.getProperty("shareLibraries", "false"))) {
+				continue;
+			}
+			classpaths.put(mod.getName(), entries);
+		}
+		final SharedLibraries.Mode mode = configured ? SharedLibraries.Mode.fromSystemProperty() : SharedLibraries.Mode.ISOLATE;
+		sharedLibraries = SharedLibraries.plan(classpaths, mode, HookManager.getInstance().getLoader());
+	}
+
+	/**
+	 * Report the classes saved by shared libraries.
+	 */
+	void reportSharedLibraries() {
+		if (sharedLibraries != null) {
+			sharedLibraries.report();
+		}
 	}
 
 	T createModInstance(ModInfo entry) {
@@ -61,7 +142,14 @@ class ModInstanceBuilder<T> {
 			if (classpath != null) {
 				final Boolean sharedClassLoader = Boolean.valueOf(properties.getProperty("sharedClassLoader", "false"));
 				ClassLoader[] dependencies = entry.getImport().stream().map(classLoaders::get).filter(Objects::nonNull).toArray(ClassLoader[]::new);
-				classloader = createClassLoader(entry.getName(), classpath, loader, sharedClassLoader, dependencies);
+				if (entry.getBundle() != null) {
+					if (sharedClassLoader) {
+						throw new HookException("Mod bundle " + entry.getBundle() + " can not use the shared classloader");
+					}
+					classloader = createBundleClassLoader(entry.getBundle(), classpath, loader, dependencies);
+				} else {
+					classloader = createClassLoader(entry.getName(), prepare(entry), loader, sharedClassLoader, dependencies);
+				}
 				if (!sharedClassLoader) {
 					classLoaders.put(entry.getName(), classloader);
 				}
@@ -70,40 +158,50 @@ class ModInstanceBuilder<T> {
 			}
 
 			return classloader.loadClass(className).asSubclass(modClass).newInstance();
-		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NotFoundException | MalformedURLException e) {
+		} catch (ClassNotFoundException | InstantiationException | IllegalAccessException | NotFoundException | IOException e) {
 			throw new HookException(e);
 		}
 	}
 
-	private List<Path> getClassLoaderEntries(String modname, String classpath) {
-		List<Path> pathEntries = new ArrayList<>();
-
-		String[] entries = classpath.split(",");
-		for (String entry : entries) {
-			Path modPath = Paths.get("mods", modname);
-
-			FileSystem fs = modPath.getFileSystem();
-			final PathMatcher matcher = fs.getPathMatcher("glob:" + entry);
-			SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+	/**
+	 * Get the indexed class path for the jars of shared classloader mods. It is appended to the class pool on first use.
+	 */
+	private IndexedJarClassPath getSharedClassPath(ClassPool classPool) {
+		if (sharedClassPath == null) {
+			sharedClassPath = new IndexedJarClassPath();
+			classPool.appendClassPath(sharedClassPath);
+		}
+		return sharedClassPath;
+	}
 
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					Path p = modPath.relativize(file);
-					if (matcher.matches(p)) {
-						pathEntries.add(file);
-					}
-					return FileVisitResult.CONTINUE;
-				}
-			};
+	/**
+	 * Create the classloader for a mod bundle. The classpath globs are resolved against the bundle entries.
+	 * 
+	 * @param bundlePath
+	 *            Mod bundle
+	 * @param classpath
+	 *            Classpath globs
+	 * @param loader
+	 *            Parent loader
+	 * @param dependencies
+	 *            Dependencies to import
+	 * @return Classloader
+	 * @throws IOException
+	 */
+	private ClassLoader createBundleClassLoader(Path bundlePath, String classpath, Loader loader, ClassLoader... dependencies) throws IOException {
+		final ModBundle bundle = ModBundle.open(bundlePath);
+		final List<String> names = bundle.resolve(classpath);
+		logger.log(Level.INFO, "Classpath: " + bundlePath + "!" + names.toString());
 
-			try {
-				Files.walkFileTree(modPath, visitor);
-			} catch (IOException e) {
-				throw new HookException(e);
-			}
+		ClassLoader parent = loader;
+		if (dependencies.length > 0) {
+			parent = new JoinClassLoader(parent, dependencies);
 		}
+		return new ModClassLoader(bundle, names, parent);
+	}
 
-		return pathEntries;
+	private List<Path> getClassLoaderEntries(String modname, String classpath) {
+		return classPathResolver.resolve(Paths.get("mods", modname), classpath);
 	}
 
 	/**
@@ -111,7 +209,7 @@ class ModInstanceBuilder<T> {
 	 * 
 	 * @param modname
 	 *            Mod name
-	 * @param classpath
+	 * @param pathEntries
 	 *            Classpath entries
 	 * @param loader
 	 *            Parent loader
@@ -123,26 +221,37 @@ class ModInstanceBuilder<T> {
 	 * @throws MalformedURLException
 	 * @throws NotFoundException
 	 */
-	private ClassLoader createClassLoader(String modname, String classpath, Loader loader, Boolean shared, ClassLoader... dependencies) throws MalformedURLException, NotFoundException {
-		List<Path> pathEntries = getClassLoaderEntries(modname, classpath);
+	private ClassLoader createClassLoader(String modname, List<Path> pathEntries, Loader loader, Boolean shared, ClassLoader... dependencies) throws MalformedURLException, NotFoundException {
 		logger.log(Level.INFO, "Classpath: " + pathEntries.toString());
 
 		if (shared) {
 			final ClassPool classPool = HookManager.getInstance().getClassPool();
 			for (Path path : pathEntries) {
-				classPool.appendClassPath(path.toString());
+				if (IndexedJarClassPath.isJar(path)) {
+					getSharedClassPath(classPool).addJar(path);
+				} else {
+					classPool.appendClassPath(path.toString());
+				}
 			}
 			return loader;
 		} else {
-			List<URL> urls = new ArrayList<>();
-			for (Path path : pathEntries) {
-				urls.add(path.toUri().toURL());
+			final List<ClassLoader> delegates = new ArrayList<>();
+			if (dependencies != null) {
+				delegates.addAll(Arrays.asList(dependencies));
+			}
+			List<Path> privateEntries = pathEntries;
+			if (sharedLibraries != null) {
+				final ClassLoader libraries = sharedLibraries.getLibraryLoader(modname, loader);
+				if (libraries != null) {
+					delegates.add(libraries);
+					privateEntries = sharedLibraries.getPrivateEntries(modname, pathEntries);
+				}
 			}
 			ClassLoader parent = loader;
-			if (dependencies != null && dependencies.length > 0) {
-				parent = new JoinClassLoader(parent, dependencies);
+			if (!delegates.isEmpty()) {
+				parent = new JoinClassLoader(parent, delegates.toArray(new ClassLoader[delegates.size()]));
 			}
-			return new URLClassLoader(urls.toArray(new URL[urls.size()]), parent);
+			return new ModClassLoader(privateEntries, parent);
 		}
 	}
 }
\ No newline at end of file
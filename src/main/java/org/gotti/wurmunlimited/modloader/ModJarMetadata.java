@@ -0,0 +1,108 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Metadata packaged in a mod jar.
+ * <p>
+ * The jar is opened once and both the default properties and the config template are read from the central directory
+ * in the same pass.
+ */
+class ModJarMetadata {
+
+	private static Logger logger = Logger.getLogger(ModJarMetadata.class.getName());
+
+	private static final String METADATA_PATH = "META-INF/" + ModLoaderShared.class.getPackage().getName() + "/";
+
+	private final Properties properties;
+	private final byte[] configTemplate;
+
+	ModJarMetadata(Properties properties, byte[] configTemplate) {
+		this.properties = properties;
+		this.configTemplate = configTemplate;
+	}
+
+	/**
+	 * Get the default properties from mods/modname/modname.jar!META-INF/org.gotti.wurmunlimited.modloader/modname.properties
+	 *
+	 * @return Properties. Empty if the jar does not contain any properties
+	 */
+	public Properties getProperties() {
+		return properties;
+	}
+
+	/**
+	 * Get the packaged config template from mods/modname/modname.jar!META-INF/org.gotti.wurmunlimited.modloader/modname.config
+	 *
+	 * @return config template or null if the jar does not contain a template
+	 */
+	public byte[] getConfigTemplate() {
+		return configTemplate;
+	}
+
+	/**
+	 * Extract the packaged config file
+	 *
+	 * @param configFile
+	 *            Target config file
+	 * @throws IOException
+	 */
+	public void copyConfigTemplate(Path configFile) throws IOException {
+		if (configTemplate != null) {
+			logger.log(Level.INFO, "Copying config template to " + configFile);
+			Files.write(configFile, configTemplate, StandardOpenOption.CREATE_NEW);
+		}
+	}
+
+	/**
+	 * Read the mod metadata from the mod jar.
+	 *
+	 * @param modName
+	 *            Mod name
+	 * @param jarFile
+	 *            Jar file of the mod
+	 * @return Metadata. Errors reading the jar are logged and result in empty metadata
+	 */
+	public static ModJarMetadata read(String modName, Path jarFile) {
+		Properties properties = new Properties();
+		byte[] configTemplate = null;
+		try (ZipFile zipFile = new ZipFile(jarFile.toFile())) {
+			ZipEntry propsEntry = zipFile.getEntry(METADATA_PATH + modName + ".properties");
+			if (propsEntry != null) {
+				logger.log(Level.INFO, "Reading " + jarFile.toString() + "!/" + propsEntry.getName());
+				try (InputStream inputStream = zipFile.getInputStream(propsEntry)) {
+					properties.load(inputStream);
+				}
+			}
+			ZipEntry configEntry = zipFile.getEntry(METADATA_PATH + modName + ".config");
+			if (configEntry != null) {
+				try (InputStream inputStream = zipFile.getInputStream(configEntry)) {
+					configTemplate = readFully(inputStream);
+				}
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, e.getMessage(), e);
+		}
+		return new ModJarMetadata(properties, configTemplate);
+	}
+
+	static byte[] readFully(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int len;
+		while ((len = inputStream.read(buffer)) != -1) {
+			out.write(buffer, 0, len);
+		}
+		return out.toByteArray();
+	}
+}
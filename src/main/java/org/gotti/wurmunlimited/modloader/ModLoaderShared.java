@@ -1,28 +1,29 @@
 package org.gotti.wurmunlimited.modloader;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.URI;
 import java.nio.file.DirectoryStream;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
+import org.gotti.wurmunlimited.modloader.classhooks.CrossReferenceIndex;
 import org.gotti.wurmunlimited.modloader.classhooks.HookException;
 import org.gotti.wurmunlimited.modloader.classhooks.HookManager;
 import org.gotti.wurmunlimited.modloader.dependency.DependencyResolver;
@@ -41,6 +42,10 @@ public abstract class ModLoaderShared<T extends Versioned> implements Versioned
 	
 	private static Logger logger = Logger.getLogger(ModLoaderShared.class.getName());
 	
+	private static final String STEAM_VERSION_CLASS = "com.wurmonline.shared.constants.SteamVersion";
+	// Classes of the server jar and the client jar
+	private static final String[] GAME_CLASSES = { "com.wurmonline.server.Server", "com.wurmonline.client.WurmClientBase" };
+	
 	private class Entry extends ModInfo implements ModEntry<T> {
 		
 		T mod;
@@ -81,38 +86,91 @@ public abstract class ModLoaderShared<T extends Versioned> implements Versioned
 	 * in the properties file in the jar to force loading the mod. Setting depend.ondemand=false in modname.config will then
 	 * disable the mod per user request, although removing the files of the mod would probably be a better option.
 	 * <p>
+	 * A mod can also be installed as a single file bundle mods/modname.modbundle (see {@link ModBundle}). The properties
+	 * from the bundle descriptor replace the jar properties. The mod is not set to ondemand loading, mods/modname.properties
+	 * and mods/modname.config still override the bundle descriptor.
+	 * <p>
+	 * The parsed files are kept in the mod index and are only read again if they changed.
 	 *
 	 * @param modDir mods folder
+	 * @param index mod metadata index
 	 * @return
 	 * @throws IOException
 	 */
-	private List<ModInfo> discoverMods(Path modDir) throws IOException {
-		final List<ModInfo> unorderedMods = new ArrayList<>();
+	List<ModInfo> discoverMods(Path modDir, ModMetadataIndex index) throws IOException {
+		final List<ModCandidate> candidates = new ArrayList<>();
 		final Set<String> handled = new HashSet<>();
 		
+		final Map<String, Path> modInfos = new HashMap<>();
 		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(modDir, "*.properties")) {
 			for (Path modInfo : directoryStream) {
-				String modName = modInfo.getFileName().toString().replaceAll("\\.properties$", "");
-				Path modJar = modDir.resolve(modName).resolve(modName + ".jar");
-				ModInfo mod = loadModFromInfo(modName, modInfo, modJar);
-				unorderedMods.add(mod);
+				modInfos.put(modInfo.getFileName().toString().replaceAll("\\.properties$", ""), modInfo);
+			}
+		}
+		
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(modDir, "*" + ModBundle.EXTENSION)) {
+			for (Path bundle : directoryStream) {
+				String modName = ModBundle.getModName(bundle);
+				candidates.add(new ModCandidate(modName, modInfos.get(modName), null, bundle));
 				handled.add(modName);
 			}
 		}
 		
+		for (Map.Entry<String, Path> modInfo : modInfos.entrySet()) {
+			String modName = modInfo.getKey();
+			if (handled.add(modName)) {
+				Path modJar = modDir.resolve(modName).resolve(modName + ".jar");
+				candidates.add(new ModCandidate(modName, modInfo.getValue(), modJar, null));
+			}
+		}
+		
+		final List<ModCandidate> onDemandCandidates = new ArrayList<>();
 		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(modDir, path -> Files.isDirectory(path) && !handled.contains(path.getFileName().toString()))) {
 			for (Path modInfo : directoryStream) {
 				String modName = modInfo.getFileName().toString();
 				Path modJar = modDir.resolve(modName).resolve(modName + ".jar");
 				if (Files.exists(modJar)) {
-					ModInfo mod = loadModFromInfo(modName, null, modJar);
-					unorderedMods.add(mod);
+					onDemandCandidates.add(new ModCandidate(modName, null, modJar, null));
 					handled.add(modName);
 				}
 			}
 		}
 		
-		return unorderedMods;
+		// Directory listings are not ordered. Sort them to get the same list on every run
+		final Comparator<ModCandidate> byName = Comparator.comparing(candidate -> candidate.modName);
+		candidates.sort(byName);
+		onDemandCandidates.sort(byName);
+		candidates.addAll(onDemandCandidates);
+		
+		// Reading the mod files is mostly I/O. Read them concurrently but keep the encounter order
+		try {
+			return candidates.parallelStream().map(candidate -> {
+				try {
+					return loadModFromInfo(index, candidate.modName, candidate.modInfo, candidate.modJar, candidate.bundle);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Mod found in the mods folder.
+	 */
+	private static class ModCandidate {
+		final String modName;
+		final Path modInfo;
+		final Path modJar;
+		final Path bundle;
+		
+		ModCandidate(String modName, Path modInfo, Path modJar, Path bundle) {
+			this.modName = modName;
+			this.modInfo = modInfo;
+			this.modJar = modJar;
+			this.bundle = bundle;
+		}
 	}
 	
 	public List<? extends ModEntry<T>> loadModsFromModDir(Path modDir) throws IOException {
@@ -124,23 +182,75 @@ public abstract class ModLoaderShared<T extends Versioned> implements Versioned
 			modLoaderProvided += "@" + version;
 		}
 		
-		Set<String> provided = new LinkedHashSet<>();
-		provided.add(modLoaderProvided);
+		// Record the defined classes as early as possible
+		final ClassDataSharing classDataSharing = ClassDataSharing.start(getCacheFile("cds"));
 		
-		String steamVersion = getGameVersion();
-		provided.add("wurmunlimited@" + steamVersion);
-		logger.info(String.format("Game version %1$s", steamVersion));
+		// The cross reference index is loaded when a mod first asks for it
+		HookManager.getInstance().setCrossReferenceIndex(this::getCrossReferenceIndex);
 		
-		// Discover installed (and possibly enabled) mods from modDir
-		final List<ModInfo> unorderedMods = discoverMods(modDir);
+		final Set<String> provided = new LinkedHashSet<>();
+		provided.add(modLoaderProvided);
+		final Set<String> resolverProvided = Collections.singleton(modLoaderProvided);
 		
-		ModInstanceBuilder<T> entryBuilder = new ModInstanceBuilder<T>(modClass);
-		List<Entry> mods = new DependencyResolver<ModInfo>().provided(Collections.singleton(modLoaderProvided)).order(unorderedMods).stream().map(modInfo -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modInfo.getName(), "load")) {
-				modInfo.getProperties().put("steamVersion", steamVersion);
-				return new Entry(entryBuilder.createModInstance(modInfo), modInfo.getProperties(), modInfo.getName());
-			}
-		}).collect(Collectors.toList());
+		final List<Entry> mods;
+		final List<List<Entry>> layers;
+		final List<Path> modFiles;
+		final ModInstanceBuilder<T> entryBuilder;
+		try (StartupPipeline pipeline = new StartupPipeline()) {
+			// Probing the game version does not depend on the mods
+			final CompletableFuture<String> gameVersion = pipeline.async("game version", this::getGameVersion);
+			
+			// Discover installed (and possibly enabled) mods from modDir
+			final ModMetadataIndex index = ModMetadataIndex.load(getCacheFile("mods.idx"));
+			final List<ModInfo> unorderedMods = pipeline.run("discovery", () -> discoverMods(modDir, index));
+			
+			// Resolve the classpaths and warm up the page cache while the dependencies are ordered
+			final ClassPathResolver classPathResolver = ClassPathResolver.load(getCacheFile("classpath.idx"));
+			entryBuilder = new ModInstanceBuilder<T>(modClass, classPathResolver);
+			final CompletableFuture<Void> classpaths = CompletableFuture.allOf(unorderedMods.stream()
+					.map(modInfo -> pipeline.async("classpath", () -> {
+						try {
+							return entryBuilder.prepare(modInfo);
+						} catch (HookException e) {
+							// Reported when the mod instance is created
+							return null;
+						}
+					}))
+					.toArray(CompletableFuture[]::new));
+			
+			final DependencyResolver<ModInfo> resolver = new DependencyResolver<ModInfo>().provided(resolverProvided).cache(index);
+			final List<ModInfo> orderedMods = pipeline.run("dependencies", () -> resolver.order(unorderedMods));
+			// Plan the shared libraries for the mods which are actually loaded
+			final CompletableFuture<Void> libraries = pipeline.then("libraries", classpaths, () -> {
+				entryBuilder.planSharedLibraries(orderedMods);
+				return null;
+			});
+			// Warm up the page cache for the mods which are loaded
+			pipeline.background("prefetch", classpaths, () -> pipeline.prefetch(entryBuilder.getPreparedEntries(orderedMods)));
+			final CompletableFuture<List<List<ModInfo>>> modLayers = pipeline.async("layers", () -> resolver.orderLayers(orderedMods));
+			index.save();
+			
+			final String steamVersion = pipeline.join(gameVersion);
+			provided.add("wurmunlimited@" + steamVersion);
+			logger.info(String.format("Game version %1$s", steamVersion));
+			
+			pipeline.join(classpaths);
+			classPathResolver.save();
+			pipeline.join(libraries);
+			mods = pipeline.run("instances", () -> orderedMods.stream().map(modInfo -> {
+				try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modInfo.getName(), "load")) {
+					modInfo.getProperties().put("steamVersion", steamVersion);
+					return new Entry(entryBuilder.createModInstance(modInfo), modInfo.getProperties(), modInfo.getName());
+				}
+			}).collect(Collectors.toList()));
+			modFiles = entryBuilder.getPreparedEntries(orderedMods);
+			
+			final Map<String, Entry> byName = new HashMap<>();
+			mods.forEach(mod -> byName.put(mod.getName(), mod));
+			layers = pipeline.join(modLayers).stream().map(layer -> layer.stream().map(modInfo -> byName.get(modInfo.getName())).collect(Collectors.toList())).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 		
 		mods.stream().forEach(modEntry -> {
 			String implementationVersion = modEntry.mod.getVersion();
@@ -150,144 +260,160 @@ public abstract class ModLoaderShared<T extends Versioned> implements Versioned
 			logger.info(String.format("Loading %1$s as %2$s (%3$s)", modEntry.mod.getClass().getName(),  modEntry.getName(), implementationVersion));
 		});
 		
-		// new style mods with initable will do configure, preInit, init
-		mods.stream().filter(modEntry -> (modEntry.mod instanceof Initable || modEntry.mod instanceof PreInitable) && modEntry.mod instanceof Configurable).forEach(modEntry -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modEntry.getName(), "configure")) {
+		// Mods in the same dependency layer are independent. Mods declaring threadSafe=true run concurrently with the other
+		// thread safe mods of their layer, all other mods run in the resolved order.
+		try (LifecycleRunner<Entry> runner = new LifecycleRunner<>(mods, layers)) {
+			// new style mods with initable will do configure, preInit, init
+			runner.run("configure", modEntry -> (modEntry.mod instanceof Initable || modEntry.mod instanceof PreInitable) && modEntry.mod instanceof Configurable, false, modEntry -> {
 				((Configurable) modEntry.mod).configure(modEntry.getProperties());
-				}
 			});
 
-		try (EarlyLoadingChecker c = EarlyLoadingChecker.init("ModComm", "init")) {
-			modcommInit();
-		}
+			try (EarlyLoadingChecker c = EarlyLoadingChecker.init("ModComm", "init")) {
+				modcommInit();
+			}
 
-		mods.stream().filter(modEntry -> modEntry.mod instanceof PreInitable).forEach(modEntry -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modEntry.getName(), "preinit")) {
+			runner.run("preinit", modEntry -> modEntry.mod instanceof PreInitable, false, modEntry -> {
 				((PreInitable)modEntry.mod).preInit();
-				}
 			});
 
-		preInit();
+			preInit();
 
-		mods.stream().filter(modEntry -> modEntry.mod instanceof Initable).forEach(modEntry -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modEntry.getName(), "init")) {
+			runner.run("init", modEntry -> modEntry.mod instanceof Initable, false, modEntry -> {
 				((Initable)modEntry.mod).init();
-				}
 			});
 
-		init();
+			init();
 
-		// old style mods without initable or preinitable will just be configured, but they are handled last
-		mods.stream().filter(modEntry -> !(modEntry.mod instanceof Initable || modEntry.mod instanceof PreInitable) && modEntry.mod instanceof Configurable).forEach(modEntry -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modEntry.getName(), "configure")) {
+			// old style mods without initable or preinitable will just be configured, but they are handled last
+			runner.run("configure", modEntry -> !(modEntry.mod instanceof Initable || modEntry.mod instanceof PreInitable) && modEntry.mod instanceof Configurable, false, modEntry -> {
 				((Configurable) modEntry.mod).configure(modEntry.getProperties());
-				}
 			});
-		
-		// Send the list of initialized mods to all modlisteners
-		mods.stream().filter(modEntry -> modEntry.mod instanceof ModListener).forEach(modEntry -> {
-			try (EarlyLoadingChecker c = EarlyLoadingChecker.init(modEntry.getName(), "modListener")) {
+			
+			// Send the list of initialized mods to all modlisteners
+			runner.run("modListener", modEntry -> modEntry.mod instanceof ModListener, false, modEntry -> {
 				mods.stream().forEach(mod -> ((ModListener)modEntry.mod).modInitialized(mod));
-				}
 			});
+		}
 		
+		entryBuilder.reportSharedLibraries();
+		HookManager.getInstance().reportStartup();
 		
-		return mods;
-	}
-	
-	/**
-	 * Load the default properties from mods/modname/modname.jar!META-INF/org.gotti.wurmunlimited.modloader/modname.properties
-	 *
-	 * @param modName Modname
-	 * @param jarFile Jar-file of the mod
-	 * @return Properties
-	 * @throws IOException
-	 */
-	private Properties loadDefaultPropertiesFromJar(String modName, Path jarFile) throws IOException {
-		try (FileSystem fs = FileSystems.newFileSystem(URI.create("jar:" + jarFile.toUri()), new HashMap<>())) {
-			Path propsFile = fs.getPath("/META-INF/" + ModLoaderShared.class.getPackage().getName() + "/" + modName + ".properties");
-			if (Files.exists(propsFile)) {
-				logger.log(Level.INFO, "Reading " + jarFile.toString() + "!" + propsFile.toString());
-				try (InputStream inputStream = Files.newInputStream(propsFile)) {
-					Properties properties = new Properties();
-					properties.load(inputStream);
-					return properties;
-				}
-			}
-		} catch (IOException e) {
-			logger.log(Level.WARNING, e.getMessage(), e);
-		}
-		return new Properties();
-	}
-	
-	/**
-	 * Extract the packaged config file
-	 * @param modName Mod name
-	 * @param jarFile Mod jar
-	 * @param configFile Target config file
-	 * @throws IOException
-	 */
-	private void copyConfigFromJar(String modName, Path jarFile, Path configFile) throws IOException {
-		try (FileSystem fs = FileSystems.newFileSystem(URI.create("jar:" + jarFile.toUri()), new HashMap<>())) {
-			Path configTemplate = fs.getPath("/META-INF/" + ModLoaderShared.class.getPackage().getName() + "/" + modName + ".config");
-			if (Files.exists(configTemplate)) {
-				logger.log(Level.INFO, "Copying " + jarFile + "!" + configTemplate + " to " + configFile);
-				Files.copy(configTemplate, configFile);
-			}
-		} catch (IOException e) {
-			logger.log(Level.WARNING, e.getMessage(), e);
+		if (classDataSharing != null) {
+			classDataSharing.configure(ClassDataSharing.createKey(version, modFiles, mods));
 		}
+		
+		return mods;
 	}
 	
 	/**
 	 * Load mod properties from .properties and .config files
+	 * @param index Mod metadata index
 	 * @param modName Modname
 	 * @param modInfo properties file
 	 * @param jarFile jar file
+	 * @param bundle mod bundle or null
 	 * @return Mod properties
 	 * @throws IOException
 	 */
-	private ModInfo loadModFromInfo(String modName, Path modInfo, Path jarFile) throws IOException {
+	private ModInfo loadModFromInfo(ModMetadataIndex index, String modName, Path modInfo, Path jarFile, Path bundle) throws IOException {
 		Path configFile = Paths.get("mods", modName + ".config");
 		
 		Properties properties = new Properties();
-		if (jarFile != null && Files.exists(jarFile)) {
+		if (bundle != null) {
+			final ModJarMetadata metadata = index.getBundleMetadata(bundle);
+			properties.putAll(metadata.getProperties());
+			
+			if (!Files.exists(configFile)) {
+				try {
+					metadata.copyConfigTemplate(configFile);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, e.getMessage(), e);
+				}
+			}
+		} else if (jarFile != null && Files.exists(jarFile)) {
 			if (modInfo == null || !Files.exists(modInfo)) {
 				properties.put("depend.ondemand", "true");
 			}
-			properties.putAll(loadDefaultPropertiesFromJar(modName, jarFile));
+			final ModJarMetadata metadata = index.getJarMetadata(modName, jarFile);
+			properties.putAll(metadata.getProperties());
 			
 			if (!Files.exists(configFile)) {
-				copyConfigFromJar(modName, jarFile, configFile);
+				try {
+					metadata.copyConfigTemplate(configFile);
+				} catch (IOException e) {
+					logger.log(Level.WARNING, e.getMessage(), e);
+				}
 			}
 		}
 
 		if (modInfo != null) {
-			logger.log(Level.INFO, "Reading " + modInfo.toString());
-			try (InputStream inputStream = Files.newInputStream(modInfo)) {
-				properties.load(inputStream);
-			}
+			properties.putAll(index.getProperties(modInfo));
 		}
 
 		if (Files.exists(configFile)) {
-			try (InputStream inputStream = Files.newInputStream(configFile)) {
-				logger.log(Level.INFO, "Reading " + configFile.toString());
-				properties.load(inputStream);
-			}
+			properties.putAll(index.getProperties(configFile));
 		}
 		
-		return new ModInfo(properties, modName);
+		return new ModInfo(properties, modName, bundle);
+	}
+	
+	/**
+	 * Get the location of a file in the modloader cache folder.
+	 * @param name File name
+	 * @return Path of the cache file
+	 */
+	static Path getCacheFile(String name) {
+		return Paths.get("mods", ".cache", name);
 	}
 	
 	/**
-	 * Get the server version as announced on steam
+	 * Get the server version as announced on steam.
+	 * <p>
+	 * The version is cached and only probed again if the jar providing the version changed.
 	 * @return Steam game version
 	 */
 	public String getGameVersion() {
 		final ClassPool classPool = HookManager.getInstance().getClassPool();
-		
+		return new GameVersionCache(getCacheFile("gameversion.properties")).get(classPool, STEAM_VERSION_CLASS, () -> probeGameVersion(classPool));
+	}
+	
+	/**
+	 * Get the cross reference index of the game jar (server or client) and the shared jar.
+	 * <p>
+	 * The index is cached and only built again if a jar changed.
+	 * @return cross reference index
+	 */
+	private CrossReferenceIndex getCrossReferenceIndex() {
+		final ClassPool classPool = HookManager.getInstance().getClassPool();
+		final List<Path> jarFiles = new ArrayList<>();
+		for (String className : GAME_CLASSES) {
+			final Path jarFile = GameVersionCache.locateJar(classPool, className);
+			if (jarFile != null && !jarFiles.contains(jarFile)) {
+				jarFiles.add(jarFile);
+			}
+		}
+		if (jarFiles.isEmpty()) {
+			throw new HookException("Game jar not found");
+		}
+		final Path sharedJar = GameVersionCache.locateJar(classPool, STEAM_VERSION_CLASS);
+		if (sharedJar != null && !jarFiles.contains(sharedJar)) {
+			jarFiles.add(sharedJar);
+		}
+		try {
+			return new CrossReferenceCache(getCacheFile("xref.idx")).get(jarFiles);
+		} catch (IOException e) {
+			throw new HookException(e);
+		}
+	}
+	
+	/**
+	 * Load the version class and get the version from it.
+	 * @param classPool Class pool
+	 * @return Steam game version
+	 */
+	private String probeGameVersion(ClassPool classPool) {
 		try (DefrostingClassLoader loader = new DefrostingClassLoader(classPool)) {
-			final Class<?> clazz = loader.loadClass("com.wurmonline.shared.constants.SteamVersion");
+			final Class<?> clazz = loader.loadClass(STEAM_VERSION_CLASS);
 			final Method getCurrentVersion = ReflectionUtil.getMethod(clazz, "getCurrentVersion");
 			return getCurrentVersion.invoke(clazz).toString();
 		} catch (NotFoundException | CannotCompileException | ClassNotFoundException | NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
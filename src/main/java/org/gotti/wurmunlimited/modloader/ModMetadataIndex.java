@@ -0,0 +1,286 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.gotti.wurmunlimited.modloader.dependency.DependencyOrderCache;
+
+/**
+ * On-disk index of the mod metadata.
+ * <p>
+ * The index keeps the parsed contents of the mod .properties and .config files and the metadata from the mod jars
+ * keyed by their {@link FileFingerprint}. Files are only read again if they changed since the index was written.
+ * <p>
+ * The index also keeps the last resolved mod order for the {@link org.gotti.wurmunlimited.modloader.dependency.DependencyResolver}.
+ */
+class ModMetadataIndex implements DependencyOrderCache {
+
+	private static Logger logger = Logger.getLogger(ModMetadataIndex.class.getName());
+
+	private static final int VERSION = 1;
+
+	private static class Entry {
+		final FileFingerprint fingerprint;
+		final Properties properties;
+		final byte[] data;
+
+		Entry(FileFingerprint fingerprint, Properties properties, byte[] data) {
+			this.fingerprint = fingerprint;
+			this.properties = properties;
+			this.data = data;
+		}
+	}
+
+	private final Path indexFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Set<String> used = ConcurrentHashMap.newKeySet();
+	private volatile boolean modified;
+	private String orderKey;
+	private List<String> order;
+
+	private ModMetadataIndex(Path indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Get the properties from a .properties or .config file.
+	 *
+	 * @param file
+	 *            Properties file
+	 * @return Properties
+	 * @throws IOException
+	 */
+	public Properties getProperties(Path file) throws IOException {
+		final Entry entry = getEntry(file, () -> {
+			logger.log(Level.INFO, "Reading " + file.toString());
+			try (InputStream inputStream = Files.newInputStream(file)) {
+				Properties properties = new Properties();
+				properties.load(inputStream);
+				return new Entry(null, properties, null);
+			}
+		});
+		return copy(entry.properties);
+	}
+
+	/**
+	 * Get the metadata from a mod jar.
+	 *
+	 * @param modName
+	 *            Mod name
+	 * @param jarFile
+	 *            Mod jar
+	 * @return Metadata
+	 * @throws IOException
+	 */
+	public ModJarMetadata getJarMetadata(String modName, Path jarFile) throws IOException {
+		final Entry entry = getEntry(jarFile, () -> {
+			ModJarMetadata metadata = ModJarMetadata.read(modName, jarFile);
+			return new Entry(null, metadata.getProperties(), metadata.getConfigTemplate());
+		});
+		return new ModJarMetadata(copy(entry.properties), entry.data);
+	}
+
+	/**
+	 * Get the descriptor and the config template from a mod bundle.
+	 *
+	 * @param bundle
+	 *            Mod bundle
+	 * @return Metadata
+	 * @throws IOException
+	 */
+	public ModJarMetadata getBundleMetadata(Path bundle) throws IOException {
+		final Entry entry = getEntry(bundle, () -> {
+			ModJarMetadata metadata = ModBundle.readMetadata(bundle);
+			return new Entry(null, metadata.getProperties(), metadata.getConfigTemplate());
+		});
+		return new ModJarMetadata(copy(entry.properties), entry.data);
+	}
+
+	private interface EntryLoader {
+		Entry load() throws IOException;
+	}
+
+	private Entry getEntry(Path file, EntryLoader loader) throws IOException {
+		final String key = file.toAbsolutePath().normalize().toString();
+		used.add(key);
+
+		final Entry cached = entries.get(key);
+		if (cached != null) {
+			final FileFingerprint fingerprint = cached.fingerprint.validate(file);
+			if (fingerprint == cached.fingerprint) {
+				return cached;
+			} else if (fingerprint != null) {
+				// Touched but unchanged
+				final Entry entry = new Entry(fingerprint, cached.properties, cached.data);
+				entries.put(key, entry);
+				modified = true;
+				return entry;
+			}
+		}
+
+		final FileFingerprint fingerprint = FileFingerprint.of(file);
+		final Entry loaded = loader.load();
+		// The file may have changed while it was read. Only keep the content if it still matches the fingerprint
+		final FileFingerprint current = fingerprint.validate(file);
+		if (current == null) {
+			if (entries.remove(key) != null) {
+				modified = true;
+			}
+			return loaded;
+		}
+		final Entry entry = new Entry(current, loaded.properties, loaded.data);
+		entries.put(key, entry);
+		modified = true;
+		return entry;
+	}
+
+	private static Properties copy(Properties properties) {
+		Properties copy = new Properties();
+		copy.putAll(properties);
+		return copy;
+	}
+
+	@Override
+	public synchronized List<String> getOrder(String key) {
+		if (key.equals(orderKey)) {
+			return order;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void putOrder(String key, List<String> order) {
+		if (!key.equals(orderKey) || !order.equals(this.order)) {
+			this.orderKey = key;
+			this.order = Collections.unmodifiableList(new ArrayList<>(order));
+			modified = true;
+		}
+	}
+
+	/**
+	 * Load the index. A missing or unreadable index results in an empty index.
+	 *
+	 * @param indexFile
+	 *            Index file
+	 * @return index
+	 */
+	public static ModMetadataIndex load(Path indexFile) {
+		final ModMetadataIndex index = new ModMetadataIndex(indexFile);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != VERSION) {
+				return index;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = in.readUTF();
+				FileFingerprint fingerprint = FileFingerprint.read(in);
+				Properties properties = new Properties();
+				int size = in.readInt();
+				for (int j = 0; j < size; j++) {
+					properties.setProperty(readString(in), readString(in));
+				}
+				byte[] data = null;
+				int length = in.readInt();
+				if (length >= 0) {
+					data = new byte[length];
+					in.readFully(data);
+				}
+				index.entries.put(key, new Entry(fingerprint, properties, data));
+			}
+			if (in.readBoolean()) {
+				index.orderKey = in.readUTF();
+				List<String> order = new ArrayList<>();
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					order.add(in.readUTF());
+				}
+				index.order = Collections.unmodifiableList(order);
+			}
+		} catch (NoSuchFileException e) {
+			index.entries.clear();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Ignoring mod index " + indexFile + ": " + e.getMessage());
+			index.entries.clear();
+			index.orderKey = null;
+			index.order = null;
+		}
+		return index;
+	}
+
+	/**
+	 * Write the index if it changed. Entries for files which were not requested since loading are dropped.
+	 */
+	public synchronized void save() {
+		if (!modified && used.containsAll(entries.keySet())) {
+			return;
+		}
+		entries.keySet().retainAll(used);
+		try {
+			Files.createDirectories(indexFile.getParent());
+			Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+				out.writeInt(VERSION);
+				out.writeInt(entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					Entry entry = e.getValue();
+					out.writeUTF(e.getKey());
+					entry.fingerprint.write(out);
+					Set<String> names = entry.properties.stringPropertyNames();
+					out.writeInt(names.size());
+					for (String name : names) {
+						writeString(out, name);
+						writeString(out, entry.properties.getProperty(name));
+					}
+					if (entry.data != null) {
+						out.writeInt(entry.data.length);
+						out.write(entry.data);
+					} else {
+						out.writeInt(-1);
+					}
+				}
+				out.writeBoolean(orderKey != null);
+				if (orderKey != null) {
+					out.writeUTF(orderKey);
+					out.writeInt(order.size());
+					for (String name : order) {
+						out.writeUTF(name);
+					}
+				}
+			}
+			Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			modified = false;
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Failed to write mod index " + indexFile + ": " + e.getMessage());
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
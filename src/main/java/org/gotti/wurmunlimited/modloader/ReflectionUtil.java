@@ -1,102 +1,267 @@
 package org.gotti.wurmunlimited.modloader;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public final class ReflectionUtil {
 
-	private static List<Field> getAllFields(Class<?> clazz) {
-		List<Field> currentClassFields = new ArrayList<>(Arrays.asList(clazz.getDeclaredFields()));
-		Class<?> parentClass = clazz.getSuperclass();
+	/**
+	 * Fields and methods of a class, its super classes up to Object and its interfaces. Members of the class come
+	 * first, then the members of the super classes and then those of the interfaces.
+	 */
+	private static final class MemberIndex {
+		private final Map<String, Field> fields = new HashMap<>();
+		private final Map<String, Method[]> methods = new HashMap<>();
+		// Parameter types for each entry of methods, getParameterTypes() returns a copy on each call
+		private final Map<String, Class<?>[][]> parameterTypes = new HashMap<>();
 
-		if (parentClass != null && !parentClass.equals(Object.class)) {
-			List<Field> parentClassFields = getAllFields(parentClass);
-			currentClassFields.addAll(parentClassFields);
+		MemberIndex(Class<?> clazz) {
+			final Map<String, List<Method>> methodLists = new LinkedHashMap<>();
+			for (Class<?> c : getHierarchy(clazz)) {
+				for (Field field : c.getDeclaredFields()) {
+					fields.putIfAbsent(field.getName(), field);
+				}
+				for (Method method : c.getDeclaredMethods()) {
+					methodLists.computeIfAbsent(method.getName(), name -> new ArrayList<>()).add(method);
+				}
+			}
+			for (Map.Entry<String, List<Method>> entry : methodLists.entrySet()) {
+				final Method[] array = entry.getValue().toArray(new Method[entry.getValue().size()]);
+				final Class<?>[][] types = new Class<?>[array.length][];
+				for (int i = 0; i < array.length; i++) {
+					types[i] = array[i].getParameterTypes();
+				}
+				methods.put(entry.getKey(), array);
+				parameterTypes.put(entry.getKey(), types);
+			}
 		}
 
-		return currentClassFields;
-	}
-
-	private static List<Method> getAllMethods(Class<?> clazz) {
-		List<Method> currentClassMethods = new ArrayList<>(Arrays.asList(clazz.getDeclaredMethods()));
-		Class<?> parentClass = clazz.getSuperclass();
+		private static Set<Class<?>> getHierarchy(Class<?> clazz) {
+			final Set<Class<?>> classes = new LinkedHashSet<>();
+			for (Class<?> c = clazz; c != null && (c == clazz || !c.equals(Object.class)); c = c.getSuperclass()) {
+				classes.add(c);
+			}
+			final List<Class<?>> interfaces = new ArrayList<>();
+			for (Class<?> c : classes) {
+				interfaces.addAll(Arrays.asList(c.getInterfaces()));
+			}
+			for (int i = 0; i < interfaces.size(); i++) {
+				if (classes.add(interfaces.get(i))) {
+					interfaces.addAll(Arrays.asList(interfaces.get(i).getInterfaces()));
+				}
+			}
+			return classes;
+		}
 
-		if (parentClass != null && !parentClass.equals(Object.class)) {
-			List<Method> parentClassFields = getAllMethods(parentClass);
-			currentClassMethods.addAll(parentClassFields);
+		Field getField(String name) {
+			return fields.get(name);
 		}
 
-		return currentClassMethods;
+		Method getMethod(String name, Class<?>[] signature) {
+			final Method[] candidates = methods.get(name);
+			if (candidates == null) {
+				return null;
+			} else if (signature == null) {
+				return candidates[0];
+			}
+			final Class<?>[][] types = parameterTypes.get(name);
+			for (int i = 0; i < candidates.length; i++) {
+				if (Arrays.equals(signature, types[i])) {
+					return candidates[i];
+				}
+			}
+			return null;
+		}
 	}
-	
+
+	private static final ClassValue<MemberIndex> MEMBERS = new ClassValue<MemberIndex>() {
+		@Override
+		protected MemberIndex computeValue(Class<?> type) {
+			return new MemberIndex(type);
+		}
+	};
+
+	/**
+	 * Get a field of the class, its super classes or its interfaces.
+	 * 
+	 * @param clazz
+	 *            Class
+	 * @param fieldName
+	 *            Field name
+	 * @return field
+	 * @throws NoSuchFieldException
+	 *             if there is no such field
+	 */
 	public static Field getField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
-		for (Field field : getAllFields(clazz)) {
-			if (field.getName().equals(fieldName)) {
-				return field;
-			}
+		final Field field = MEMBERS.get(clazz).getField(fieldName);
+		if (field == null) {
+			throw new NoSuchFieldException(fieldName);
 		}
-		throw new NoSuchFieldException(fieldName);
+		return field;
 	}
 
 	public static Method getMethod(Class<?> clazz, String methodName) throws NoSuchMethodException {
 		return getMethod(clazz, methodName, null);
 	}
 	
+	/**
+	 * Get a method of the class, its super classes or its interfaces, including default methods.
+	 * 
+	 * @param clazz
+	 *            Class
+	 * @param methodName
+	 *            Method name
+	 * @param signature
+	 *            Exact parameter types or null for the first method with the name
+	 * @return method
+	 * @throws NoSuchMethodException
+	 *             if there is no such method
+	 */
 	public static Method getMethod(Class<?> clazz, String methodName, Class<?>[] signature) throws NoSuchMethodException {
-		for (Method method : getAllMethods(clazz)) {
-			if (method.getName().equals(methodName)) {
-				if (signature == null || Arrays.equals(signature, method.getParameterTypes())) {
-					return method;
-				}
-			}
+		final Method method = MEMBERS.get(clazz).getMethod(methodName, signature);
+		if (method == null) {
+			throw new NoSuchMethodException(methodName);
 		}
-		throw new NoSuchMethodException(methodName);
+		return method;
 	}
 	
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	// Accessors by member for each declaring class
+	private static final ClassValue<ConcurrentMap<Member, Object>> ACCESSORS = new ClassValue<ConcurrentMap<Member, Object>>() {
+		@Override
+		protected ConcurrentMap<Member, Object> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<>();
+		}
+	};
+
+	@FunctionalInterface
+	private interface AccessorFactory<M, A> {
+		A create(M accessible) throws IllegalAccessException, NoSuchFieldException, NoSuchMethodException;
+	}
+
+	/**
+	 * Get the cached accessor of a member or create it from a private copy of the member. The accessible flag of the
+	 * member passed in is never changed.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <M extends AccessibleObject & Member, A> A getAccessor(M member, AccessorFactory<M, A> factory) throws IllegalAccessException {
+		final ConcurrentMap<Member, Object> accessors = ACCESSORS.get(member.getDeclaringClass());
+		Object accessor = accessors.get(member);
+		if (accessor == null) {
+			try {
+				accessor = factory.create(member);
+			} catch (NoSuchFieldException | NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+			final Object existing = accessors.putIfAbsent(member, accessor);
+			if (existing != null) {
+				accessor = existing;
+			}
+		}
+		return (A) accessor;
+	}
+
+	/**
+	 * Get an accessor for a field.
+	 *
+	 * @param field
+	 *            Field
+	 * @return accessor
+	 * @throws IllegalAccessException
+	 *             if the field can not be accessed
+	 */
+	public static <T, V> FieldAccessor<T, V> getFieldAccessor(Field field) throws IllegalAccessException {
+		return getAccessor(field, f -> {
+			final Field copy = f.getDeclaringClass().getDeclaredField(f.getName());
+			copy.setAccessible(true);
+			return FieldAccessorGenerator.<T, V>create(LOOKUP, copy);
+		});
+	}
+
+	/**
+	 * Get an accessor for a field of the class, its super classes or its interfaces.
+	 *
+	 * @param clazz
+	 *            Class
+	 * @param fieldName
+	 *            Field name
+	 * @return accessor
+	 * @throws NoSuchFieldException
+	 *             if there is no such field
+	 * @throws IllegalAccessException
+	 *             if the field can not be accessed
+	 */
+	public static <T, V> FieldAccessor<T, V> getFieldAccessor(Class<T> clazz, String fieldName) throws NoSuchFieldException, IllegalAccessException {
+		return getFieldAccessor(getField(clazz, fieldName));
+	}
+
+	/**
+	 * Get an accessor for a method.
+	 *
+	 * @param method
+	 *            Method
+	 * @return accessor
+	 * @throws IllegalAccessException
+	 *             if the method can not be accessed
+	 */
+	public static <R> MethodAccessor<R> getMethodAccessor(Method method) throws IllegalAccessException {
+		return getAccessor(method, m -> {
+			final Method copy = m.getDeclaringClass().getDeclaredMethod(m.getName(), m.getParameterTypes());
+			copy.setAccessible(true);
+			return new MethodAccessor<R>(LOOKUP, copy);
+		});
+	}
+
+	/**
+	 * Get an accessor for a constructor.
+	 *
+	 * @param constructor
+	 *            Constructor
+	 * @return accessor
+	 * @throws IllegalAccessException
+	 *             if the constructor can not be accessed
+	 */
+	public static <T> ConstructorAccessor<T> getConstructorAccessor(Constructor<T> constructor) throws IllegalAccessException {
+		return getAccessor(constructor, c -> {
+			final Constructor<T> copy = c.getDeclaringClass().getDeclaredConstructor(c.getParameterTypes());
+			copy.setAccessible(true);
+			return new ConstructorAccessor<T>(LOOKUP, copy);
+		});
+	}
+
 	public static <T> void setPrivateField(Object object, Field field, T value) throws IllegalArgumentException, IllegalAccessException, ClassCastException {
-		boolean isAccesible = field.isAccessible();
-		field.setAccessible(true);
-		try {
-			field.set(object, value);
-		} finally {
-			field.setAccessible(isAccesible);
+		final FieldAccessor<Object, T> accessor = getFieldAccessor(field);
+		if (!accessor.isWritable()) {
+			throw new IllegalAccessException("Can not set static final field " + field);
 		}
+		accessor.set(object, value);
 	}
 	
-	@SuppressWarnings("unchecked")
 	public static <T> T getPrivateField(Object object, Field field) throws IllegalArgumentException, IllegalAccessException, ClassCastException {
-		boolean isAccesible = field.isAccessible();
-		field.setAccessible(true);
-		try {
-			return (T) field.get(object);
-		} finally {
-			field.setAccessible(isAccesible);
-		}
+		return ReflectionUtil.<Object, T>getFieldAccessor(field).get(object);
 	}
 
-	@SuppressWarnings("unchecked")
 	public static <T> T callPrivateMethod(Object target, Method method, Object... args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		boolean isAccesible = method.isAccessible();
-		method.setAccessible(true);
-		try {
-			return (T) method.invoke(target, args);
-		} finally {
-			method.setAccessible(isAccesible);
-		}
+		return ReflectionUtil.<T>getMethodAccessor(method).invoke(target, args);
 	}
 	
 	public static <T> T callPrivateConstructor(Constructor<T> constructor, Object... args) throws IllegalAccessException, IllegalArgumentException, InvocationTargetException, InstantiationException {
-		boolean isAccesible = constructor.isAccessible();
-		constructor.setAccessible(true);
-		try {
-			return constructor.newInstance(args);
-		} finally {
-			constructor.setAccessible(isAccesible);
-		}
+		return getConstructorAccessor(constructor).newInstance(args);
 	}
 }
@@ -0,0 +1,367 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+
+/**
+ * Libraries bundled byte-identical by several mods with their own classloader.
+ * <p>
+ * The jars on the classpaths of the mods are compared by size and content hash. Jars found in more than one mod are
+ * loaded once by a library classloader which the mod classloaders delegate to. Mods sharing the same set of libraries
+ * share one library classloader, so libraries depending on each other still see each other.
+ * <p>
+ * A mod which bundles classes also contained in one of its shared libraries, e.g. a different version of a library
+ * depending on the shared one, or whose shared libraries reference classes found neither in the shared libraries nor
+ * in the parent loader, keeps all jars in its own classloader unless the mode is {@link Mode#SHARE}.
+ * <p>
+ * Sharing is off by default. Mods opt in with the property <code>shareLibraries=true</code>, the admin enables it for
+ * all mods with the system property {@value #MODE_PROPERTY}. Mods can opt out with the property
+ * <code>isolateLibraries=true</code>.
+ */
+class SharedLibraries {
+
+	private static Logger logger = Logger.getLogger(SharedLibraries.class.getName());
+
+	/**
+	 * System property selecting the {@link Mode}.
+	 */
+	static final String MODE_PROPERTY = "org.gotti.wurmunlimited.modloader.sharedLibraries";
+
+	enum Mode {
+		/** Do not share libraries */
+		OFF,
+		/** Share identical libraries, mods bundling conflicting classes keep their own copies */
+		ISOLATE,
+		/** Share identical libraries even if a mod bundles conflicting classes */
+		SHARE;
+
+		static Mode fromSystemProperty() {
+			final String value = System.getProperty(MODE_PROPERTY, OFF.name());
+			try {
+				return Mode.valueOf(value.toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				logger.warning(String.format("Invalid value %s for %s, using %s", value, MODE_PROPERTY, OFF.name().toLowerCase(Locale.ROOT)));
+				return OFF;
+			}
+		}
+
+		/**
+		 * Check if the admin selected a mode. Otherwise only mods opting in share their libraries.
+		 */
+		static boolean isConfigured() {
+			return System.getProperty(MODE_PROPERTY) != null;
+		}
+	}
+
+	private static final class Group {
+		final List<Path> jars;
+		final Set<String> mods = new LinkedHashSet<>();
+		int classes;
+		long classBytes;
+		ModClassLoader loader;
+
+		Group(List<Path> jars) {
+			this.jars = jars;
+		}
+	}
+
+	private final Map<String, Group> groups = new HashMap<>();
+	private final Map<String, Set<Path>> sharedEntries = new HashMap<>();
+
+	private SharedLibraries() {
+	}
+
+	/**
+	 * Find the libraries shared between the mods.
+	 *
+	 * @param classpaths
+	 *            Resolved classpath entries by mod name
+	 * @param mode
+	 *            Sharing mode
+	 * @param parent
+	 *            Parent loader of the library loaders
+	 * @return shared libraries
+	 */
+	static SharedLibraries plan(Map<String, List<Path>> classpaths, Mode mode, ClassLoader parent) {
+		final SharedLibraries libraries = new SharedLibraries();
+		if (mode == Mode.OFF) {
+			return libraries;
+		}
+
+		// Only jars with the same size as a jar of another mod can be identical
+		final Map<Long, Set<String>> modsBySize = new HashMap<>();
+		final Map<Path, Long> sizes = new HashMap<>();
+		classpaths.forEach((mod, entries) -> {
+			for (Path path : entries) {
+				if (IndexedJarClassPath.isJar(path) && Files.isRegularFile(path)) {
+					try {
+						long size = Files.size(path);
+						sizes.put(path, size);
+						modsBySize.computeIfAbsent(size, s -> new HashSet<>()).add(mod);
+					} catch (IOException e) {
+						logger.log(Level.FINE, "Can not get the size of " + path + ": " + e.getMessage());
+					}
+				}
+			}
+		});
+
+		final Map<Path, String> hashes = new HashMap<>();
+		final Map<String, Set<String>> modsByHash = new HashMap<>();
+		classpaths.forEach((mod, entries) -> {
+			for (Path path : entries) {
+				Long size = sizes.get(path);
+				if (size != null && modsBySize.get(size).size() > 1) {
+					String hash = hashes.computeIfAbsent(path, SharedLibraries::hash);
+					if (hash != null) {
+						modsByHash.computeIfAbsent(hash, h -> new HashSet<>()).add(mod);
+					}
+				}
+			}
+		});
+
+		final Map<String, MappedJar> mapped = new HashMap<>();
+		final Map<List<String>, Group> groupsByHashes = new LinkedHashMap<>();
+		final Map<List<String>, String> unresolved = new HashMap<>();
+		classpaths.forEach((mod, entries) -> {
+			final List<String> sharedHashes = new ArrayList<>();
+			final List<Path> sharedPaths = new ArrayList<>();
+			final List<Path> privatePaths = new ArrayList<>();
+			for (Path path : entries) {
+				String hash = hashes.get(path);
+				if (hash != null && modsByHash.get(hash).size() > 1 && !sharedHashes.contains(hash) && map(mapped, hash, path) != null) {
+					sharedHashes.add(hash);
+					sharedPaths.add(path);
+				} else {
+					privatePaths.add(path);
+				}
+			}
+			if (sharedHashes.isEmpty()) {
+				return;
+			}
+
+			if (mode == Mode.ISOLATE) {
+				String conflict = findConflict(sharedHashes, mapped, privatePaths);
+				if (conflict == null) {
+					conflict = unresolved.computeIfAbsent(sharedHashes, h -> findUnresolved(h, mapped, parent));
+				}
+				if (conflict != null && !conflict.isEmpty()) {
+					logger.info(String.format("Mod %s keeps its own libraries: %s", mod, conflict));
+					return;
+				}
+			}
+
+			final Group group = groupsByHashes.computeIfAbsent(sharedHashes, h -> new Group(sharedPaths));
+			group.mods.add(mod);
+			libraries.sharedEntries.put(mod, new HashSet<>(sharedPaths));
+		});
+
+		// A group used by a single mod is not worth a loader
+		for (Group group : groupsByHashes.values()) {
+			if (group.mods.size() < 2) {
+				group.mods.forEach(libraries.sharedEntries::remove);
+				continue;
+			}
+			for (Path path : group.jars) {
+				MappedJar jar = mapped.get(hashes.get(path));
+				for (String name : jar.getNames()) {
+					if (name.endsWith(".class")) {
+						group.classes++;
+						group.classBytes += jar.getSize(name);
+					}
+				}
+			}
+			group.mods.forEach(mod -> libraries.groups.put(mod, group));
+			logger.info(String.format("Sharing libraries %s between mods %s", group.jars, group.mods));
+		}
+		return libraries;
+	}
+
+	private static String hash(Path path) {
+		try {
+			return FileFingerprint.of(path).getHash();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Can not hash " + path + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static MappedJar map(Map<String, MappedJar> mapped, String hash, Path path) {
+		if (!mapped.containsKey(hash)) {
+			MappedJar jar = null;
+			try {
+				jar = MappedJar.map(path);
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Not sharing " + path + ": " + e.getMessage());
+			}
+			mapped.put(hash, jar);
+		}
+		return mapped.get(hash);
+	}
+
+	/**
+	 * Find a class bundled both in a shared library and a private jar.
+	 *
+	 * @return reason or null if there is no conflict
+	 */
+	private static String findConflict(List<String> sharedHashes, Map<String, MappedJar> mapped, List<Path> privatePaths) {
+		for (Path path : privatePaths) {
+			if (!IndexedJarClassPath.isJar(path) || !Files.isRegularFile(path)) {
+				continue;
+			}
+			final Set<String> names;
+			try {
+				names = MappedJar.map(path).getNames();
+			} catch (IOException e) {
+				return "can not index " + path.getFileName();
+			}
+			for (String hash : sharedHashes) {
+				for (String name : mapped.get(hash).getNames()) {
+					if (name.endsWith(".class") && names.contains(name)) {
+						return "class " + name.substring(0, name.length() - 6).replace('/', '.') + " is also bundled in " + path.getFileName();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find a class referenced by the shared libraries which neither the shared libraries nor the parent loader contain.
+	 * The library loader could not load it, e.g. if the library depends on classes of the mod.
+	 *
+	 * @return reason or an empty string if all references resolve
+	 */
+	private static String findUnresolved(List<String> sharedHashes, Map<String, MappedJar> mapped, ClassLoader parent) {
+		for (String hash : sharedHashes) {
+			final MappedJar jar = mapped.get(hash);
+			for (String name : jar.getNames()) {
+				if (!name.endsWith(".class")) {
+					continue;
+				}
+				final ClassFile classFile;
+				try {
+					classFile = new ClassFile(new DataInputStream(new ModClassLoader.ByteBufferInputStream(jar.getData(name))));
+				} catch (IOException e) {
+					return "can not read " + name;
+				}
+				final ConstPool constPool = classFile.getConstPool();
+				for (int i = 1; i < constPool.getSize(); i++) {
+					if (constPool.getTag(i) != ConstPool.CONST_Class) {
+						continue;
+					}
+					final String resource = toResourceName(constPool.getClassInfo(i));
+					if (resource != null && !containsResource(sharedHashes, mapped, resource) && parent.getResource(resource) == null) {
+						return "class " + classFile.getName() + " references " + constPool.getClassInfo(i) + " which is not in the shared libraries";
+					}
+				}
+			}
+		}
+		return "";
+	}
+
+	private static boolean containsResource(List<String> sharedHashes, Map<String, MappedJar> mapped, String resource) {
+		for (String hash : sharedHashes) {
+			if (mapped.get(hash).contains(resource)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the resource name of a referenced class.
+	 *
+	 * @param className
+	 *            Class name or array descriptor
+	 * @return resource name or null for arrays of primitive types
+	 */
+	private static String toResourceName(String className) {
+		String name = className;
+		if (name.startsWith("[")) {
+			name = name.substring(name.lastIndexOf('[') + 1);
+			if (!name.startsWith("L")) {
+				return null;
+			}
+			name = name.substring(1, name.length() - 1);
+		}
+		return name.replace('.', '/') + ".class";
+	}
+
+	/**
+	 * Get the classpath entries a mod loads with its own classloader.
+	 */
+	List<Path> getPrivateEntries(String mod, List<Path> entries) {
+		final Set<Path> shared = sharedEntries.getOrDefault(mod, Collections.emptySet());
+		if (shared.isEmpty()) {
+			return entries;
+		}
+		final List<Path> result = new ArrayList<>(entries);
+		result.removeAll(shared);
+		return result;
+	}
+
+	/**
+	 * Get the library classloader of a mod.
+	 *
+	 * @param mod
+	 *            Mod name
+	 * @param parent
+	 *            Parent loader of the library loader
+	 * @return library classloader or null if the mod does not use shared libraries
+	 * @throws MalformedURLException
+	 */
+	synchronized ClassLoader getLibraryLoader(String mod, ClassLoader parent) throws MalformedURLException {
+		final Group group = groups.get(mod);
+		if (group == null) {
+			return null;
+		}
+		if (group.loader == null) {
+			group.loader = new ModClassLoader(group.jars, parent);
+		}
+		return group.loader;
+	}
+
+	/**
+	 * Log the classes that were loaded once instead of once per mod.
+	 */
+	synchronized void report() {
+		final Set<Group> distinct = new HashSet<>(groups.values());
+		int libraries = 0;
+		long loaded = 0;
+		long loadedBytes = 0;
+		long available = 0;
+		long availableBytes = 0;
+		for (Group group : distinct) {
+			final int copies = group.mods.size() - 1;
+			libraries += group.jars.size();
+			available += (long) group.classes * copies;
+			availableBytes += group.classBytes * copies;
+			if (group.loader != null) {
+				loaded += (long) group.loader.getDefinedClasses() * copies;
+				loadedBytes += group.loader.getDefinedBytes() * copies;
+			}
+		}
+		if (libraries > 0) {
+			logger.info(String.format("Shared %d libraries: %d duplicate classes (%d KB class data) not loaded, up to %d classes (%d KB) if all library classes are used",
+					libraries, loaded, loadedBytes / 1024, available, availableBytes / 1024));
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the independent startup stages of the modloader on worker threads.
+ * <p>
+ * Each stage is timed. When the pipeline is closed the sum of all stage times (the time a serial startup would have
+ * taken) is compared to the elapsed wall time.
+ * <p>
+ * Background stages are optional work like prefetching. They are not waited for on close and are expected to stop
+ * once {@link #isClosed()} returns true. Their times are reported on their own and are not part of the serial sum.
+ */
+class StartupPipeline implements AutoCloseable {
+
+	private static Logger logger = Logger.getLogger(StartupPipeline.class.getName());
+
+	private final ExecutorService executor;
+	private final Map<String, Long> stageTimes = new LinkedHashMap<>();
+	private final Map<String, Long> backgroundTimes = new LinkedHashMap<>();
+	private final List<CompletableFuture<?>> pending = new ArrayList<>();
+	private final long started = System.nanoTime();
+	private volatile boolean closed;
+
+	StartupPipeline() {
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "modloader-startup-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		this.executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), threadFactory);
+	}
+
+	/**
+	 * Run a stage on a worker thread.
+	 *
+	 * @param stage
+	 *            Stage name
+	 * @param task
+	 *            Stage
+	 * @return Future of the stage result
+	 */
+	public <V> CompletableFuture<V> async(String stage, Callable<V> task) {
+		return track(CompletableFuture.supplyAsync(() -> timed(stageTimes, stage, task), executor));
+	}
+
+	/**
+	 * Run a stage on a worker thread after another stage completed.
+	 *
+	 * @param stage
+	 *            Stage name
+	 * @param previous
+	 *            Stage to wait for
+	 * @param task
+	 *            Stage
+	 * @return Future of the stage result
+	 */
+	public <V> CompletableFuture<V> then(String stage, CompletableFuture<?> previous, Callable<V> task) {
+		return track(previous.thenApplyAsync(result -> timed(stageTimes, stage, task), executor));
+	}
+
+	/**
+	 * Run an optional stage on a worker thread after another stage completed. The stage is not waited for on close.
+	 *
+	 * @param stage
+	 *            Stage name
+	 * @param previous
+	 *            Stage to wait for
+	 * @param task
+	 *            Stage, should stop when the pipeline is closed
+	 * @return Future of the stage result
+	 */
+	public <V> CompletableFuture<V> background(String stage, CompletableFuture<?> previous, Callable<V> task) {
+		return previous.thenApplyAsync(result -> timed(backgroundTimes, stage, task), executor);
+	}
+
+	/**
+	 * Check if the pipeline was closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	private <V> CompletableFuture<V> track(CompletableFuture<V> future) {
+		synchronized (pending) {
+			pending.add(future);
+		}
+		return future;
+	}
+
+	/**
+	 * Run a stage on the current thread.
+	 *
+	 * @param stage
+	 *            Stage name
+	 * @param task
+	 *            Stage
+	 * @return Stage result
+	 */
+	public <V> V run(String stage, Callable<V> task) {
+		try {
+			return timed(stageTimes, stage, task);
+		} catch (CompletionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	/**
+	 * Wait for the result of a stage. Exceptions thrown by the stage are rethrown.
+	 *
+	 * @param future
+	 *            Stage future
+	 * @return Stage result
+	 */
+	public <V> V join(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static <V> V timed(Map<String, Long> times, String stage, Callable<V> task) {
+		final long start = System.nanoTime();
+		try {
+			return task.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CompletionException(e);
+		} finally {
+			final long elapsed = System.nanoTime() - start;
+			synchronized (times) {
+				times.merge(stage, elapsed, Long::sum);
+			}
+		}
+	}
+
+	private static RuntimeException unwrap(CompletionException e) {
+		if (e.getCause() instanceof RuntimeException) {
+			return (RuntimeException) e.getCause();
+		} else if (e.getCause() instanceof IOException) {
+			return new UncheckedIOException((IOException) e.getCause());
+		}
+		return e;
+	}
+
+	/**
+	 * Read the files to get them into the page cache. Reading stops when the pipeline is closed.
+	 *
+	 * @param files
+	 *            Files
+	 * @return number of bytes read
+	 */
+	public long prefetch(Collection<Path> files) {
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+		long total = 0;
+		for (Path file : files) {
+			if (closed) {
+				break;
+			}
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				int len;
+				while (!closed && (len = channel.read(buffer)) != -1) {
+					total += len;
+					buffer.clear();
+				}
+			} catch (IOException e) {
+				logger.log(Level.FINE, "Prefetching " + file + " failed", e);
+			}
+			buffer.clear();
+		}
+		return total;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		final CompletableFuture<?>[] futures;
+		synchronized (pending) {
+			futures = pending.toArray(new CompletableFuture<?>[pending.size()]);
+		}
+		try {
+			CompletableFuture.allOf(futures).join();
+		} catch (CompletionException e) {
+			// Failures are reported by join() of the individual stages
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		final long wall = System.nanoTime() - started;
+		final long serial;
+		final String stages;
+		synchronized (stageTimes) {
+			serial = stageTimes.values().stream().mapToLong(Long::longValue).sum();
+			stages = format(stageTimes);
+		}
+		final String background;
+		synchronized (backgroundTimes) {
+			background = backgroundTimes.isEmpty() ? "" : String.format(", background: %s", format(backgroundTimes));
+		}
+		logger.info(String.format("Startup took %d ms, %d ms when run serially, saved %d ms (%s)%s", TimeUnit.NANOSECONDS.toMillis(wall), TimeUnit.NANOSECONDS.toMillis(serial), TimeUnit.NANOSECONDS.toMillis(Math.max(0, serial - wall)), stages, background));
+	}
+
+	private static String format(Map<String, Long> times) {
+		return times.entrySet().stream().map(e -> String.format("%s %d ms", e.getKey(), TimeUnit.NANOSECONDS.toMillis(e.getValue()))).collect(Collectors.joining(", "));
+	}
+}
@@ -0,0 +1,137 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Aho-Corasick automaton finding all occurrences of several byte patterns in a single pass.
+ * <p>
+ * The automaton is built once as a complete transition table and can be reused for any number of inputs.
+ */
+class BytePatternMatcher {
+
+	private final int patternCount;
+	private final int[] patternLengths;
+	// Transition table, 256 entries per state
+	private final int[] next;
+	// Patterns ending in a state, including the patterns of the suffix states
+	private final int[][] output;
+
+	/**
+	 * Build the automaton.
+	 *
+	 * @param patterns
+	 *            Patterns. Empty patterns are not allowed
+	 */
+	BytePatternMatcher(List<byte[]> patterns) {
+		this.patternCount = patterns.size();
+		this.patternLengths = new int[patternCount];
+
+		int maxStates = 1;
+		for (byte[] pattern : patterns) {
+			if (pattern.length == 0) {
+				throw new IllegalArgumentException("Empty pattern");
+			}
+			maxStates += pattern.length;
+		}
+
+		// Trie
+		int[] next = new int[maxStates * 256];
+		Arrays.fill(next, -1);
+		int[][] output = new int[maxStates][];
+		int states = 1;
+		for (int p = 0; p < patternCount; p++) {
+			final byte[] pattern = patterns.get(p);
+			patternLengths[p] = pattern.length;
+			int state = 0;
+			for (byte b : pattern) {
+				final int index = state * 256 + (b & 0xff);
+				if (next[index] == -1) {
+					next[index] = states++;
+				}
+				state = next[index];
+			}
+			output[state] = append(output[state], p);
+		}
+
+		// Failure links folded into the transition table
+		final int[] fail = new int[states];
+		final Deque<Integer> queue = new ArrayDeque<>();
+		for (int c = 0; c < 256; c++) {
+			final int target = next[c];
+			if (target == -1) {
+				next[c] = 0;
+			} else {
+				fail[target] = 0;
+				queue.add(target);
+			}
+		}
+		while (!queue.isEmpty()) {
+			final int state = queue.poll();
+			final int[] suffixOutput = output[fail[state]];
+			if (suffixOutput != null) {
+				for (int p : suffixOutput) {
+					output[state] = append(output[state], p);
+				}
+			}
+			for (int c = 0; c < 256; c++) {
+				final int index = state * 256 + c;
+				final int target = next[index];
+				if (target == -1) {
+					next[index] = next[fail[state] * 256 + c];
+				} else {
+					fail[target] = next[fail[state] * 256 + c];
+					queue.add(target);
+				}
+			}
+		}
+
+		this.next = Arrays.copyOf(next, states * 256);
+		this.output = Arrays.copyOf(output, states);
+	}
+
+	private static int[] append(int[] array, int value) {
+		if (array == null) {
+			return new int[] { value };
+		}
+		final int[] result = Arrays.copyOf(array, array.length + 1);
+		result[array.length] = value;
+		return result;
+	}
+
+	/**
+	 * Find all occurrences of all patterns, including overlapping ones.
+	 *
+	 * @param code
+	 *            Input
+	 * @return start positions in ascending order for each pattern
+	 */
+	int[][] findAll(byte[] code) {
+		final int[][] matches = new int[patternCount][];
+		final int[] counts = new int[patternCount];
+		for (int p = 0; p < patternCount; p++) {
+			matches[p] = new int[4];
+		}
+
+		int state = 0;
+		for (int i = 0; i < code.length; i++) {
+			state = next[state * 256 + (code[i] & 0xff)];
+			final int[] found = output[state];
+			if (found != null) {
+				for (int p : found) {
+					if (counts[p] == matches[p].length) {
+						matches[p] = Arrays.copyOf(matches[p], counts[p] * 2);
+					}
+					matches[p][counts[p]++] = i - patternLengths[p] + 1;
+				}
+			}
+		}
+
+		for (int p = 0; p < patternCount; p++) {
+			matches[p] = Arrays.copyOf(matches[p], counts[p]);
+		}
+		return matches;
+	}
+}
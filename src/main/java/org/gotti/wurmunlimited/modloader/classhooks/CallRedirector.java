@@ -0,0 +1,190 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.Opcode;
+
+/**
+ * Redirect call sites to a static method.
+ * <p>
+ * The call instruction is replaced with an invokestatic of the target. Calls of static methods need a target with the
+ * same descriptor, other calls a target taking the receiver (or a super type) as an additional first parameter. The
+ * operand stack is the same before and after the call, so the rest of the code and the stack map stay valid.
+ */
+final class CallRedirector {
+
+	private final ClassPool classPool;
+	private final String calleeClassName;
+	private final String calleeMethodName;
+	private final String calleeDescriptor;
+	private final CtClass targetClass;
+	private final String targetMethodName;
+
+	// Target for static and instance calls, resolved on first use
+	private CtMethod staticTarget;
+	private CtMethod instanceTarget;
+
+	CallRedirector(ClassPool classPool, String calleeClassName, String calleeMethodName, String calleeDescriptor, String targetClassName, String targetMethodName) throws NotFoundException {
+		if ("<init>".equals(calleeMethodName) || "<clinit>".equals(calleeMethodName)) {
+			throw new HookException("Constructor calls can not be redirected");
+		}
+		this.classPool = classPool;
+		this.calleeClassName = calleeClassName;
+		this.calleeMethodName = calleeMethodName;
+		this.calleeDescriptor = Objects.requireNonNull(calleeDescriptor);
+		this.targetClass = classPool.get(targetClassName);
+		this.targetMethodName = targetMethodName;
+		if (!Modifier.isPublic(targetClass.getModifiers())) {
+			throw new HookException(targetClassName + " is not public");
+		}
+	}
+
+	/**
+	 * Redirect the calls in the matching methods and constructors of a class. Nothing is changed if a target is
+	 * missing.
+	 *
+	 * @param callerClass
+	 *            Calling class
+	 * @param callerMethodPattern
+	 *            Pattern for the names of the calling methods or null for all methods and constructors
+	 * @return the number of redirected calls
+	 * @throws NotFoundException
+	 *             if a class of the target descriptor was not found
+	 */
+	int redirect(CtClass callerClass, Pattern callerMethodPattern) throws NotFoundException {
+		return redirect(callerClass, callerMethodPattern, behavior -> {
+		});
+	}
+
+	/**
+	 * Redirect the calls in the matching methods and constructors of a class.
+	 *
+	 * @param callerClass
+	 *            Calling class
+	 * @param callerMethodPattern
+	 *            Pattern for the names of the calling methods or null for all methods and constructors
+	 * @param modified
+	 *            Called with each method or constructor with redirected calls
+	 * @return the number of redirected calls
+	 * @throws NotFoundException
+	 *             if a class of the target descriptor was not found
+	 */
+	int redirect(CtClass callerClass, Pattern callerMethodPattern, Consumer<CtBehavior> modified) throws NotFoundException {
+		final CodePattern pattern = CodePattern.builder().invoke(calleeClassName, calleeMethodName, calleeDescriptor).build();
+
+		// Find the calls and check the targets first
+		final List<CtBehavior> behaviors = new ArrayList<>();
+		final List<CodeAttribute> methods = new ArrayList<>();
+		final List<List<Integer>> calls = new ArrayList<>();
+		for (CtBehavior behavior : callerClass.getDeclaredBehaviors()) {
+			if (callerMethodPattern != null && !callerMethodPattern.matcher(behavior.getName()).matches()) {
+				continue;
+			}
+			final CodeAttribute codeAttribute = behavior.getMethodInfo().getCodeAttribute();
+			if (codeAttribute == null) {
+				continue;
+			}
+			final List<Integer> positions = new ArrayList<>();
+			final CodeMatcher matcher = pattern.matcher(codeAttribute);
+			while (matcher.find()) {
+				positions.add(matcher.start());
+				getTarget((codeAttribute.getCode()[matcher.start()] & 0xff) == Opcode.INVOKESTATIC);
+			}
+			if (!positions.isEmpty()) {
+				behaviors.add(behavior);
+				methods.add(codeAttribute);
+				calls.add(positions);
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < methods.size(); i++) {
+			final ConstPool constPool = methods.get(i).getConstPool();
+			final byte[] code = methods.get(i).getCode();
+			for (int pos : calls.get(i)) {
+				final int opcode = code[pos] & 0xff;
+				final CtMethod target = getTarget(opcode == Opcode.INVOKESTATIC);
+				final int index = constPool.addMethodrefInfo(constPool.addClassInfo(targetClass), target.getName(), target.getSignature());
+				code[pos] = (byte) Opcode.INVOKESTATIC;
+				code[pos + 1] = (byte) (index >> 8);
+				code[pos + 2] = (byte) index;
+				if (opcode == Opcode.INVOKEINTERFACE) {
+					code[pos + 3] = (byte) Opcode.NOP;
+					code[pos + 4] = (byte) Opcode.NOP;
+				}
+				count++;
+			}
+			modified.accept(behaviors.get(i));
+		}
+		return count;
+	}
+
+	/**
+	 * Get the target for static or instance calls.
+	 *
+	 * @throws HookException
+	 *             if the target class has no public static method with a compatible descriptor
+	 */
+	private CtMethod getTarget(boolean staticCall) throws NotFoundException {
+		CtMethod target = staticCall ? staticTarget : instanceTarget;
+		if (target != null) {
+			return target;
+		}
+		for (CtMethod method : targetClass.getDeclaredMethods(targetMethodName)) {
+			if (Modifier.isStatic(method.getModifiers()) && Modifier.isPublic(method.getModifiers()) && isCompatible(method.getSignature(), staticCall)) {
+				target = method;
+				break;
+			}
+		}
+		if (target == null) {
+			final String expected = staticCall ? calleeDescriptor : Descriptor.insertParameter(calleeClassName, calleeDescriptor);
+			throw new HookException(String.format("%s has no public static method %s%s to redirect calls of %s.%s%s", targetClass.getName(), targetMethodName, expected,
+					calleeClassName, calleeMethodName, calleeDescriptor));
+		}
+		if (staticCall) {
+			staticTarget = target;
+		} else {
+			instanceTarget = target;
+		}
+		return target;
+	}
+
+	private boolean isCompatible(String descriptor, boolean staticCall) throws NotFoundException {
+		if (staticCall) {
+			return descriptor.equals(calleeDescriptor);
+		}
+		// (receiver type, callee parameters) and the callee return type
+		final int end = endOfFirstParameter(descriptor);
+		if (end == -1 || !("(" + descriptor.substring(end)).equals(calleeDescriptor)) {
+			return false;
+		}
+		final CtClass receiver = Descriptor.toCtClass(descriptor.substring(1, end), classPool);
+		return !receiver.isPrimitive() && classPool.get(calleeClassName).subtypeOf(receiver);
+	}
+
+	private static int endOfFirstParameter(String descriptor) {
+		int pos = 1;
+		while (pos < descriptor.length() && descriptor.charAt(pos) == '[') {
+			pos++;
+		}
+		if (pos >= descriptor.length() || descriptor.charAt(pos) == ')') {
+			return -1;
+		} else if (descriptor.charAt(pos) == 'L') {
+			return descriptor.indexOf(';', pos) + 1;
+		}
+		return pos + 1;
+	}
+}
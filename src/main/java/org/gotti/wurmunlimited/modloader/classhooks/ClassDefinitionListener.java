@@ -0,0 +1,19 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener notified about classes defined by the modloader classloaders.
+ */
+public interface ClassDefinitionListener {
+
+	/**
+	 * Called after a class was defined.
+	 *
+	 * @param definedClass
+	 *            Defined class
+	 * @param classfile
+	 *            Final bytes of the class file as passed to the JVM. The buffer must not be modified
+	 */
+	void classDefined(Class<?> definedClass, ByteBuffer classfile);
+}
@@ -0,0 +1,258 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.gotti.wurmunlimited.modloader.classhooks.CodePattern.Element;
+import org.gotti.wurmunlimited.modloader.classhooks.CodePattern.Resolution;
+
+import javassist.NotFoundException;
+import javassist.bytecode.ByteArray;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.Opcode;
+
+/**
+ * Find the matches of a {@link CodePattern} in the code of a method.
+ * <p>
+ * Instructions are decoded while searching and operands only when the opcode matches. Matches start at instruction
+ * boundaries and do not overlap.
+ */
+public class CodeMatcher {
+
+	// Slot of a local variable which is not in the local variable table
+	private static final int NO_SLOT = -2;
+
+	// Instruction lengths, 0 for switches and WIDE which have a variable length
+	private static final int[] LENGTHS = new int[256];
+
+	static {
+		Arrays.fill(LENGTHS, 1);
+		for (int opcode : new int[] { Opcode.BIPUSH, Opcode.LDC, Opcode.ILOAD, Opcode.LLOAD, Opcode.FLOAD, Opcode.DLOAD, Opcode.ALOAD, Opcode.ISTORE, Opcode.LSTORE,
+				Opcode.FSTORE, Opcode.DSTORE, Opcode.ASTORE, Opcode.RET, Opcode.NEWARRAY }) {
+			LENGTHS[opcode] = 2;
+		}
+		for (int opcode : new int[] { Opcode.SIPUSH, Opcode.LDC_W, Opcode.LDC2_W, Opcode.IINC, Opcode.IFNULL, Opcode.IFNONNULL, Opcode.INVOKESTATIC, Opcode.NEW, Opcode.ANEWARRAY,
+				Opcode.CHECKCAST, Opcode.INSTANCEOF }) {
+			LENGTHS[opcode] = 3;
+		}
+		for (int opcode = Opcode.IFEQ; opcode <= Opcode.JSR; opcode++) {
+			LENGTHS[opcode] = 3;
+		}
+		for (int opcode = Opcode.GETSTATIC; opcode <= Opcode.INVOKESPECIAL; opcode++) {
+			LENGTHS[opcode] = 3;
+		}
+		LENGTHS[Opcode.MULTIANEWARRAY] = 4;
+		LENGTHS[Opcode.TABLESWITCH] = 0;
+		LENGTHS[Opcode.LOOKUPSWITCH] = 0;
+		LENGTHS[Opcode.WIDE] = 0;
+		for (int opcode : new int[] { Opcode.INVOKEINTERFACE, Opcode.INVOKEDYNAMIC, Opcode.GOTO_W, Opcode.JSR_W }) {
+			LENGTHS[opcode] = 5;
+		}
+	}
+
+	private final List<Element> elements;
+	private final Resolution resolution;
+	private final int[] slots;
+	private final byte[] code;
+	// Opcodes of the first instruction
+	private final BitSet first;
+
+	// Positions of the instructions of the current match
+	private final int[] matched;
+	private int matchEnd;
+
+	private int next;
+	private boolean found;
+
+	CodeMatcher(CodePattern pattern, CodeAttribute codeAttribute) {
+		this.elements = pattern.getElements();
+		this.resolution = pattern.resolve(codeAttribute.getConstPool());
+		this.code = codeAttribute.getCode();
+		this.matched = new int[elements.size()];
+		this.first = elements.get(0).opcodes;
+
+		// Local variable names
+		final LocalVariableAttribute attribute = (LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.tag);
+		final LocalNameLookup lookup = attribute != null ? new LocalNameLookup(attribute) : null;
+		this.slots = new int[elements.size()];
+		for (int i = 0; i < slots.length; i++) {
+			final Element element = elements.get(i);
+			if (element.local == null) {
+				slots[i] = element.slot;
+			} else if (lookup == null) {
+				slots[i] = NO_SLOT;
+			} else {
+				try {
+					slots[i] = lookup.get(element.local);
+				} catch (NotFoundException e) {
+					slots[i] = NO_SLOT;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the opcode at pos. WIDE instructions return the opcode of the wrapped instruction.
+	 */
+	private int opcode(int pos) {
+		final int opcode = code[pos] & 0xff;
+		return opcode == Opcode.WIDE ? code[pos + 1] & 0xff : opcode;
+	}
+
+	/**
+	 * Get the constant pool index, local variable slot or pushed value of the instruction at pos.
+	 */
+	private int operand(int pos) {
+		final int opcode = code[pos] & 0xff;
+		if (opcode == Opcode.WIDE) {
+			return ByteArray.readU16bit(code, pos + 2);
+		} else if ((opcode >= Opcode.ILOAD && opcode <= Opcode.ALOAD) || (opcode >= Opcode.ISTORE && opcode <= Opcode.ASTORE) || opcode == Opcode.IINC || opcode == Opcode.RET) {
+			return code[pos + 1] & 0xff;
+		} else if (opcode >= Opcode.ILOAD_0 && opcode <= Opcode.ALOAD_3) {
+			return (opcode - Opcode.ILOAD_0) & 3;
+		} else if (opcode >= Opcode.ISTORE_0 && opcode <= Opcode.ASTORE_3) {
+			return (opcode - Opcode.ISTORE_0) & 3;
+		} else if (opcode >= Opcode.ICONST_M1 && opcode <= Opcode.ICONST_5) {
+			return opcode - Opcode.ICONST_0;
+		} else if (opcode == Opcode.BIPUSH) {
+			return code[pos + 1];
+		} else if (opcode == Opcode.SIPUSH) {
+			return ByteArray.readS16bit(code, pos + 1);
+		} else if (opcode == Opcode.LDC) {
+			return code[pos + 1] & 0xff;
+		} else if (opcode == Opcode.LDC_W || opcode == Opcode.LDC2_W || (opcode >= Opcode.GETSTATIC && opcode <= Opcode.NEW) || opcode == Opcode.ANEWARRAY
+				|| opcode == Opcode.CHECKCAST || opcode == Opcode.INSTANCEOF || opcode == Opcode.MULTIANEWARRAY) {
+			return ByteArray.readU16bit(code, pos + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the length of the instruction at pos.
+	 */
+	private int length(int pos) {
+		final int opcode = code[pos] & 0xff;
+		final int length = LENGTHS[opcode];
+		if (length != 0) {
+			return length;
+		} else if (opcode == Opcode.WIDE) {
+			return (code[pos + 1] & 0xff) == Opcode.IINC ? 6 : 4;
+		}
+		final int base = (pos & ~3) + 4;
+		if (opcode == Opcode.TABLESWITCH) {
+			return base - pos + 12 + (ByteArray.read32bit(code, base + 8) - ByteArray.read32bit(code, base + 4) + 1) * 4;
+		}
+		return base - pos + 8 + ByteArray.read32bit(code, base + 4) * 8;
+	}
+
+	private boolean matches(int pos, int index) {
+		final Element element = elements.get(index);
+		final int opcode = opcode(pos);
+		if (!element.opcodes.get(opcode)) {
+			return false;
+		}
+		if (element.push == null && element.constant == null && slots[index] == -1) {
+			return true;
+		}
+		final int operand = operand(pos);
+		if (element.push != null && opcode != Opcode.LDC && opcode != Opcode.LDC_W) {
+			return element.push == operand;
+		}
+		if (resolution.entries[index] != null && !resolution.entries[index].get(operand)) {
+			return false;
+		}
+		return slots[index] == -1 || slots[index] == operand;
+	}
+
+	private boolean matchesAt(int pos) {
+		for (int i = 0; i < matched.length; i++) {
+			if (pos >= code.length || !matches(pos, i)) {
+				return false;
+			}
+			matched[i] = pos;
+			pos += length(pos);
+		}
+		matchEnd = pos;
+		return true;
+	}
+
+	/**
+	 * Find the next match.
+	 * @return true if a match was found
+	 */
+	public boolean find() {
+		for (int pos = next; pos < code.length; pos += length(pos)) {
+			if (first.get(opcode(pos)) && matchesAt(pos)) {
+				found = true;
+				next = matchEnd;
+				return true;
+			}
+		}
+		found = false;
+		next = code.length;
+		return false;
+	}
+
+	/**
+	 * Restart the search at the beginning of the code.
+	 */
+	public void reset() {
+		found = false;
+		next = 0;
+	}
+
+	private void checkMatch() {
+		if (!found) {
+			throw new IllegalStateException("No match");
+		}
+	}
+
+	private int getCapture(String capture) {
+		checkMatch();
+		for (int i = 0; i < elements.size(); i++) {
+			if (capture.equals(elements.get(i).capture)) {
+				return matched[i];
+			}
+		}
+		throw new IllegalArgumentException("Unknown capture " + capture);
+	}
+
+	/**
+	 * Get the code position of the first instruction of the match.
+	 * @return code position
+	 */
+	public int start() {
+		checkMatch();
+		return matched[0];
+	}
+
+	/**
+	 * Get the code position after the last instruction of the match.
+	 * @return code position
+	 */
+	public int end() {
+		checkMatch();
+		return matchEnd;
+	}
+
+	/**
+	 * Get the code position of a captured instruction.
+	 * @param capture Capture name
+	 * @return code position
+	 */
+	public int position(String capture) {
+		return getCapture(capture);
+	}
+
+	/**
+	 * Get the operand of a captured instruction. This is the constant pool index, the local variable slot or the
+	 * pushed value of iconst, bipush and sipush.
+	 * @param capture Capture name
+	 * @return operand or -1 if the instruction has none of these operands
+	 */
+	public int operand(String capture) {
+		return operand(getCapture(capture));
+	}
+}
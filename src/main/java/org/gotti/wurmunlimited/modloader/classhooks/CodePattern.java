@@ -0,0 +1,338 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Opcode;
+
+/**
+ * Compiled pattern of byte code instructions.
+ * <p>
+ * Patterns match on decoded instructions instead of raw bytes. Operands are given by symbol (class, method and field
+ * names, constants and local variable names) and are resolved against the constant pool and the local variable table
+ * of the method, so a pattern keeps working when the constant pool indexes change between server builds.
+ *
+ * <pre>
+ * CodePattern pattern = CodePattern.builder()
+ * 		.load("performer")
+ * 		.invoke("com.wurmonline.server.creatures.Creature", "getPower", null).as("call")
+ * 		.opcode(Opcode.IFEQ, Opcode.IFNE)
+ * 		.build();
+ *
+ * CodeMatcher matcher = pattern.matcher(method.getMethodInfo().getCodeAttribute());
+ * while (matcher.find()) {
+ * 	int pos = matcher.position("call");
+ * }
+ * </pre>
+ *
+ * A pattern is immutable and can be used for any number of methods.
+ */
+public class CodePattern {
+
+	/**
+	 * Match the constant pool entry of an instruction.
+	 */
+	interface ConstantMatcher {
+		boolean matches(ConstPool constPool, int index);
+	}
+
+	/**
+	 * A single instruction of the pattern.
+	 */
+	static final class Element {
+		// Matching opcodes. WIDE instructions use the opcode of the wrapped instruction
+		final BitSet opcodes;
+		// Constant pool entry or null
+		final ConstantMatcher constant;
+		// Value of iconst, bipush and sipush or null
+		final Integer push;
+		// Local variable name, or null
+		final String local;
+		// Local variable slot, or -1
+		final int slot;
+		// Capture name or null
+		String capture;
+
+		Element(BitSet opcodes, ConstantMatcher constant, Integer push, String local, int slot) {
+			this.opcodes = opcodes;
+			this.constant = constant;
+			this.push = push;
+			this.local = local;
+			this.slot = slot;
+		}
+
+		Element copy() {
+			final Element element = new Element(opcodes, constant, push, local, slot);
+			element.capture = capture;
+			return element;
+		}
+	}
+
+	/**
+	 * Constant pool entries matching the elements for one constant pool.
+	 */
+	static final class Resolution {
+		final int size;
+		final BitSet[] entries;
+
+		Resolution(ConstPool constPool, List<Element> elements) {
+			this.size = constPool.getSize();
+			this.entries = new BitSet[elements.size()];
+			for (int i = 0; i < entries.length; i++) {
+				final ConstantMatcher constant = elements.get(i).constant;
+				if (constant != null) {
+					final BitSet set = new BitSet(size);
+					for (int index = 1; index < size; index++) {
+						if (constant.matches(constPool, index)) {
+							set.set(index);
+						}
+					}
+					entries[i] = set;
+				}
+			}
+		}
+	}
+
+	private final List<Element> elements;
+	private final Map<ConstPool, Resolution> resolutions = Collections.synchronizedMap(new WeakHashMap<>());
+
+	private CodePattern(List<Element> elements) {
+		this.elements = elements;
+	}
+
+	/**
+	 * Create a pattern builder.
+	 * @return builder
+	 */
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * Create a matcher for the code of a method. The matcher is not updated if the code is changed.
+	 * @param codeAttribute Method code
+	 * @return matcher
+	 */
+	public CodeMatcher matcher(CodeAttribute codeAttribute) {
+		return new CodeMatcher(this, codeAttribute);
+	}
+
+	List<Element> getElements() {
+		return elements;
+	}
+
+	/**
+	 * Get the constant pool entries for the elements. The entries are kept per constant pool as long as the class is
+	 * in use and are resolved again if entries are added.
+	 */
+	Resolution resolve(ConstPool constPool) {
+		Resolution current = resolutions.get(constPool);
+		if (current == null || current.size != constPool.getSize()) {
+			current = new Resolution(constPool, elements);
+			resolutions.put(constPool, current);
+		}
+		return current;
+	}
+
+	/**
+	 * Builder for {@link CodePattern}
+	 */
+	public static class Builder {
+
+		private final List<Element> elements = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		private static BitSet opcodes(int... opcodes) {
+			final BitSet set = new BitSet(256);
+			for (int opcode : opcodes) {
+				set.set(opcode);
+			}
+			return set;
+		}
+
+		private static BitSet range(int from, int to) {
+			final BitSet set = new BitSet(256);
+			set.set(from, to + 1);
+			return set;
+		}
+
+		private Builder add(Element element) {
+			elements.add(element);
+			return this;
+		}
+
+		/**
+		 * Match any instruction.
+		 * @return this
+		 */
+		public Builder any() {
+			return add(new Element(range(0, 255), null, null, null, -1));
+		}
+
+		/**
+		 * Match one of the opcodes. The operands are not checked.
+		 * @param opcodes Opcodes
+		 * @return this
+		 */
+		public Builder opcode(int... opcodes) {
+			return add(new Element(opcodes(opcodes), null, null, null, -1));
+		}
+
+		/**
+		 * Match a method call.
+		 * @param className Declaring class as used in the call or null for any class
+		 * @param methodName Method name or null for any method
+		 * @param descriptor Method descriptor or null for any descriptor
+		 * @return this
+		 */
+		public Builder invoke(String className, String methodName, String descriptor) {
+			final ConstantMatcher constant = (constPool, index) -> {
+				final int tag = constPool.getTag(index);
+				// Names first, the class name is converted for each call
+				if (tag == ConstPool.CONST_Methodref) {
+					return matches(methodName, constPool.getMethodrefName(index)) && matches(descriptor, constPool.getMethodrefType(index))
+							&& matches(className, constPool.getMethodrefClassName(index));
+				} else if (tag == ConstPool.CONST_InterfaceMethodref) {
+					return matches(methodName, constPool.getInterfaceMethodrefName(index)) && matches(descriptor, constPool.getInterfaceMethodrefType(index))
+							&& matches(className, constPool.getInterfaceMethodrefClassName(index));
+				}
+				return false;
+			};
+			return add(new Element(opcodes(Opcode.INVOKEVIRTUAL, Opcode.INVOKESPECIAL, Opcode.INVOKESTATIC, Opcode.INVOKEINTERFACE), constant, null, null, -1));
+		}
+
+		/**
+		 * Match a field access.
+		 * @param opcode GETFIELD, PUTFIELD, GETSTATIC or PUTSTATIC
+		 * @param className Declaring class as used in the access or null for any class
+		 * @param fieldName Field name or null for any field
+		 * @return this
+		 */
+		public Builder field(int opcode, String className, String fieldName) {
+			if (opcode < Opcode.GETSTATIC || opcode > Opcode.PUTFIELD) {
+				throw new IllegalArgumentException("Not a field instruction: " + opcode);
+			}
+			final ConstantMatcher constant = (constPool, index) -> constPool.getTag(index) == ConstPool.CONST_Fieldref && matches(fieldName, constPool.getFieldrefName(index))
+					&& matches(className, constPool.getFieldrefClassName(index));
+			return add(new Element(opcodes(opcode), constant, null, null, -1));
+		}
+
+		/**
+		 * Match an instruction with a class operand.
+		 * @param opcode NEW, ANEWARRAY, CHECKCAST or INSTANCEOF
+		 * @param className Class name
+		 * @return this
+		 */
+		public Builder type(int opcode, String className) {
+			if (opcode != Opcode.NEW && opcode != Opcode.ANEWARRAY && opcode != Opcode.CHECKCAST && opcode != Opcode.INSTANCEOF) {
+				throw new IllegalArgumentException("Not a class instruction: " + opcode);
+			}
+			final ConstantMatcher constant = (constPool, index) -> constPool.getTag(index) == ConstPool.CONST_Class && matches(className, constPool.getClassInfo(index));
+			return add(new Element(opcodes(opcode), constant, null, null, -1));
+		}
+
+		/**
+		 * Match a constant. Integers also match iconst, bipush and sipush.
+		 * @param value Integer, Long, Float, Double or String constant
+		 * @return this
+		 */
+		public Builder constant(Object value) {
+			Objects.requireNonNull(value);
+			final ConstantMatcher constant = (constPool, index) -> value.equals(constPool.getLdcValue(index));
+			if (value instanceof Integer) {
+				final BitSet opcodes = opcodes(Opcode.LDC, Opcode.LDC_W, Opcode.BIPUSH, Opcode.SIPUSH);
+				opcodes.set(Opcode.ICONST_M1, Opcode.ICONST_5 + 1);
+				return add(new Element(opcodes, constant, (Integer) value, null, -1));
+			} else if (value instanceof Long || value instanceof Double) {
+				return add(new Element(opcodes(Opcode.LDC2_W), constant, null, null, -1));
+			}
+			return add(new Element(opcodes(Opcode.LDC, Opcode.LDC_W), constant, null, null, -1));
+		}
+
+		/**
+		 * Match a load of a local variable by name. The name is looked up in the local variable table.
+		 * @param name Variable name
+		 * @return this
+		 */
+		public Builder load(String name) {
+			return add(new Element(loads(), null, null, Objects.requireNonNull(name), -1));
+		}
+
+		/**
+		 * Match a load of a local variable.
+		 * @param slot Variable slot
+		 * @return this
+		 */
+		public Builder load(int slot) {
+			return add(new Element(loads(), null, null, null, slot));
+		}
+
+		/**
+		 * Match a store to a local variable by name. The name is looked up in the local variable table.
+		 * @param name Variable name
+		 * @return this
+		 */
+		public Builder store(String name) {
+			return add(new Element(stores(), null, null, Objects.requireNonNull(name), -1));
+		}
+
+		/**
+		 * Match a store to a local variable.
+		 * @param slot Variable slot
+		 * @return this
+		 */
+		public Builder store(int slot) {
+			return add(new Element(stores(), null, null, null, slot));
+		}
+
+		private static BitSet loads() {
+			return range(Opcode.ILOAD, Opcode.ALOAD_3);
+		}
+
+		private static BitSet stores() {
+			return range(Opcode.ISTORE, Opcode.ASTORE_3);
+		}
+
+		/**
+		 * Name the previous instruction. The position and operand of the instruction are available from the
+		 * {@link CodeMatcher}.
+		 * @param capture Name
+		 * @return this
+		 */
+		public Builder as(String capture) {
+			if (elements.isEmpty()) {
+				throw new IllegalStateException("No instruction to capture");
+			}
+			elements.get(elements.size() - 1).capture = capture;
+			return this;
+		}
+
+		/**
+		 * Compile the pattern.
+		 * @return pattern
+		 */
+		public CodePattern build() {
+			if (elements.isEmpty()) {
+				throw new IllegalStateException("Empty pattern");
+			}
+			final List<Element> copy = new ArrayList<>(elements.size());
+			for (Element element : elements) {
+				copy.add(element.copy());
+			}
+			return new CodePattern(copy);
+		}
+
+		private static boolean matches(String expected, String actual) {
+			return expected == null || expected.equals(actual);
+		}
+	}
+}
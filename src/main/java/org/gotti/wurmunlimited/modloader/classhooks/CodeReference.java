@@ -0,0 +1,61 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+/**
+ * An instruction referencing a method, field, class or constant.
+ */
+public final class CodeReference {
+
+	private final String className;
+	private final String methodName;
+	private final String descriptor;
+	private final int position;
+	private final int opcode;
+
+	CodeReference(String className, String methodName, String descriptor, int position, int opcode) {
+		this.className = className;
+		this.methodName = methodName;
+		this.descriptor = descriptor;
+		this.position = position;
+		this.opcode = opcode;
+	}
+
+	/**
+	 * Get the class containing the instruction.
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Get the name of the method containing the instruction.
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/**
+	 * Get the descriptor of the method containing the instruction.
+	 */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * Get the code position of the instruction.
+	 */
+	public int getPosition() {
+		return position;
+	}
+
+	/**
+	 * Get the opcode of the instruction.
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s.%s%s@%d", className, methodName, descriptor, position);
+	}
+}
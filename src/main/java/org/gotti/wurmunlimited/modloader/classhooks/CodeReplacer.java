@@ -1,20 +1,29 @@
 package org.gotti.wurmunlimited.modloader.classhooks;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import javassist.NotFoundException;
 import javassist.bytecode.BadBytecode;
 import javassist.bytecode.CodeAttribute;
-import javassist.bytecode.CodeIterator;
 
 /**
  * Replace byte code fragments with other byte code.
+ * <p>
+ * Several replacements can be queued with {@link #replace(byte[], byte[])} and {@link #replaceAll(byte[], byte[])}
+ * and applied together with {@link #apply()}. All patterns are searched in a single pass over the original code and
+ * the gaps for longer replacements are inserted at once. The result is the same as applying the replacements one after
+ * the other as long as a replacement does not create a new match for a later pattern.
  */
 public class CodeReplacer {
 
 	private CodeAttribute codeAttribute;
+	private final List<Patch> patches = new ArrayList<>();
 
 	/**
 	 * Initialize code replace.
-	 * 
+	 *
 	 * @param codeAttribute
 	 */
 	public CodeReplacer(CodeAttribute codeAttribute) {
@@ -29,49 +38,136 @@ public class CodeReplacer {
 	 * @throws BadBytecode Something was wrong with the byte code
 	 */
 	public void replaceCode(byte[] search, byte[] replacement) throws NotFoundException, BadBytecode {
-		int pos = findCode(search);
-		
-		if (replacement.length <= search.length) {
-			// Replacement is shorter or the same length as the code to replace
-			// Replace the code and insert nops at the end
-			writeWithNops(pos, replacement, search.length - replacement.length);
-		} else {
-			// Replacement is longer than the original code
-			// Insert nops first, then write the replacement over nops and code to replace
-			writeOverlapping(pos, replacement, replacement.length - search.length);
-		}
+		apply(Collections.singletonList(new Patch(search, replacement, false)));
+	}
+
+	/**
+	 * Queue the replacement of the first occurrence of a code fragment.
+	 * @param search Code to replace
+	 * @param replacement Replacement
+	 * @return this
+	 */
+	public CodeReplacer replace(byte[] search, byte[] replacement) {
+		patches.add(new Patch(search, replacement, false));
+		return this;
 	}
 
-	private void writeOverlapping(int pos, byte[] replacement, int overlapping) throws BadBytecode {
-		CodeIterator codeIterator = codeAttribute.iterator();
-		codeIterator.insertGap(pos, overlapping);
-		codeIterator.write(replacement, pos);
+	/**
+	 * Queue the replacement of all occurrences of a code fragment.
+	 * @param search Code to replace
+	 * @param replacement Replacement
+	 * @return this
+	 */
+	public CodeReplacer replaceAll(byte[] search, byte[] replacement) {
+		patches.add(new Patch(search, replacement, true));
+		return this;
 	}
 
-	private void writeWithNops(int pos, byte[] replacement, int gap) {
-		byte[] nops = new byte[gap];
-		CodeIterator codeIterator = codeAttribute.iterator();
-		codeIterator.write(replacement, pos);
-		codeIterator.write(nops, pos + replacement.length); 
+	/**
+	 * Apply the queued replacements. Either all replacements are applied or none.
+	 * @return number of replaced fragments
+	 * @throws NotFoundException The code for one of the replacements was not found
+	 * @throws BadBytecode Something was wrong with the byte code
+	 */
+	public int apply() throws NotFoundException, BadBytecode {
+		try {
+			return apply(patches);
+		} finally {
+			patches.clear();
+		}
 	}
 
-	// Find the code fragment
-	private int findCode(byte[] search) throws NotFoundException {
-		byte[] code = codeAttribute.getCode();
-		for (int i = 0, j = 0, backtrack = 0; i < code.length && j < search.length; i++) {
-			if (code[i] == search[j]) {
-				if (j == 0) {
-					backtrack = i;
-				}
-				j++;
-				if (j == search.length) {
-					return backtrack;
+	private int apply(List<Patch> patches) throws NotFoundException, BadBytecode {
+		if (patches.isEmpty()) {
+			return 0;
+		}
+
+		final byte[] code = codeAttribute.getCode();
+		final List<byte[]> searches = new ArrayList<>(patches.size());
+		for (Patch patch : patches) {
+			searches.add(patch.search);
+		}
+		final int[][] matches = new BytePatternMatcher(searches).findAll(code);
+
+		// Pick the matches. Earlier patches win, the matches of one patch do not overlap
+		final Patch[] claimed = new Patch[code.length];
+		int count = 0;
+		for (int p = 0; p < patches.size(); p++) {
+			final Patch patch = patches.get(p);
+			boolean found = false;
+			for (int pos : matches[p]) {
+				if (isFree(claimed, pos, patch.search.length)) {
+					claimed[pos] = patch;
+					for (int i = pos + 1; i < pos + patch.search.length; i++) {
+						claimed[i] = Patch.CLAIMED;
+					}
+					found = true;
+					count++;
+					if (!patch.all) {
+						break;
+					}
 				}
-			} else if (j > 0) {
-				i = backtrack;
-				j = 0;
 			}
+			if (!found) {
+				throw new NotFoundException("code");
+			}
+		}
+
+		// Collect the replacements in code order
+		final int[] positions = new int[count];
+		final Patch[] replacements = new Patch[count];
+		for (int pos = 0, n = 0; pos < code.length; pos++) {
+			if (claimed[pos] != null && claimed[pos] != Patch.CLAIMED) {
+				positions[n] = pos;
+				replacements[n++] = claimed[pos];
+			}
+		}
+
+		// Insert the gaps for longer replacements at once
+		final int[] lengths = new int[count];
+		for (int n = 0; n < count; n++) {
+			lengths[n] = Math.max(0, replacements[n].replacement.length - replacements[n].search.length);
+		}
+		final int[] gaps = GapInserter.insertGaps(codeAttribute, positions, lengths);
+
+		// Write the replacements over the gap and the replaced code, fill the rest with nops
+		final byte[] newcode = codeAttribute.getCode();
+		int inserted = 0;
+		for (int n = 0; n < count; n++) {
+			final Patch patch = replacements[n];
+			final int pos = positions[n] + inserted;
+			final int end = pos + gaps[n] + patch.search.length;
+			System.arraycopy(patch.replacement, 0, newcode, pos, patch.replacement.length);
+			for (int i = pos + patch.replacement.length; i < end; i++) {
+				newcode[i] = 0;
+			}
+			inserted += gaps[n];
+		}
+		HookManager.getInstance().modified(codeAttribute);
+		return count;
+	}
+
+	private static boolean isFree(Patch[] claimed, int pos, int length) {
+		for (int i = pos; i < pos + length; i++) {
+			if (claimed[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class Patch {
+		// Marker for code covered by a replacement
+		static final Patch CLAIMED = new Patch(new byte[0], new byte[0], false);
+
+		final byte[] search;
+		final byte[] replacement;
+		final boolean all;
+
+		Patch(byte[] search, byte[] replacement, boolean all) {
+			this.search = search;
+			this.replacement = replacement;
+			this.all = all;
 		}
-		throw new NotFoundException("code");
 	}
 }
@@ -0,0 +1,183 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Specialize javassist source code to constant values before it is compiled.
+ * <p>
+ * <code>${name}</code> is replaced with the value of the constant as a Java literal. Lines between
+ * <code>#if name</code> (or <code>#if !name</code>), <code>#else</code> and <code>#endif</code> are kept or dropped
+ * depending on the boolean value of the constant. Directives must be on a line of their own and can be nested.
+ *
+ * <pre>
+ * {
+ * #if myMod.enabled
+ * 	$_ = $proceed($$) * ${myMod.multiplier};
+ * #else
+ * 	$_ = $proceed($$);
+ * #endif
+ * }
+ * </pre>
+ */
+final class CodeTemplate {
+
+	private CodeTemplate() {
+	}
+
+	/**
+	 * Specialize the source code.
+	 *
+	 * @param source
+	 *            Source code with placeholders and directives
+	 * @param constants
+	 *            Constant values by name
+	 * @return source code
+	 * @throws HookException
+	 *             if a constant is undefined or the directives are not balanced
+	 */
+	static String specialize(String source, Map<String, ?> constants) {
+		final StringBuilder builder = new StringBuilder(source.length());
+		// For each open #if whether the lines are kept and whether the enclosing block is kept
+		final Deque<boolean[]> conditions = new ArrayDeque<>();
+		boolean active = true;
+		int lineNumber = 0;
+		for (String line : source.split("\n", -1)) {
+			lineNumber++;
+			final String directive = line.trim();
+			if (directive.startsWith("#if ")) {
+				String name = directive.substring(4).trim();
+				final boolean negate = name.startsWith("!");
+				if (negate) {
+					name = name.substring(1).trim();
+				}
+				final boolean value = active && toBoolean(name, get(constants, name)) != negate;
+				conditions.push(new boolean[] { value, active });
+				active = value;
+			} else if (directive.equals("#else")) {
+				final boolean[] condition = conditions.peek();
+				if (condition == null) {
+					throw new HookException("#else without #if in line " + lineNumber);
+				}
+				condition[0] = condition[1] && !condition[0];
+				active = condition[0];
+			} else if (directive.equals("#endif")) {
+				final boolean[] condition = conditions.poll();
+				if (condition == null) {
+					throw new HookException("#endif without #if in line " + lineNumber);
+				}
+				active = condition[1];
+			} else if (active) {
+				appendLine(builder, line, constants);
+				builder.append('\n');
+			}
+		}
+		if (!conditions.isEmpty()) {
+			throw new HookException("Missing #endif");
+		}
+		// No line break after the last line
+		return builder.length() > 0 ? builder.substring(0, builder.length() - 1) : "";
+	}
+
+	private static void appendLine(StringBuilder builder, String line, Map<String, ?> constants) {
+		int pos = 0;
+		for (int start = line.indexOf("${"); start != -1; start = line.indexOf("${", pos)) {
+			final int end = line.indexOf('}', start + 2);
+			if (end == -1) {
+				break;
+			}
+			builder.append(line, pos, start);
+			final String name = line.substring(start + 2, end).trim();
+			builder.append(toLiteral(name, get(constants, name)));
+			pos = end + 1;
+		}
+		builder.append(line, pos, line.length());
+	}
+
+	private static Object get(Map<String, ?> constants, String name) {
+		final Object value = constants.get(name);
+		if (value == null) {
+			throw new HookException("Undefined constant " + name);
+		}
+		return value;
+	}
+
+	private static boolean toBoolean(String name, Object value) {
+		if (value instanceof Boolean) {
+			return (Boolean) value;
+		} else if (value instanceof String && ("true".equalsIgnoreCase((String) value) || "false".equalsIgnoreCase((String) value))) {
+			return Boolean.parseBoolean((String) value);
+		}
+		throw new HookException(String.format("Constant %s is not a boolean: %s", name, value));
+	}
+
+	/**
+	 * Get the Java literal for a value.
+	 */
+	static String toLiteral(String name, Object value) {
+		if (value instanceof Number && ((Number) value).doubleValue() < 0) {
+			// Negative numbers are wrapped so they can follow any operator
+			return "(" + literal(name, value) + ")";
+		}
+		return literal(name, value);
+	}
+
+	private static String literal(String name, Object value) {
+		if (value instanceof Boolean || value instanceof Integer) {
+			return value.toString();
+		} else if (value instanceof Long) {
+			return value + "L";
+		} else if (value instanceof Short) {
+			return "((short) " + value + ")";
+		} else if (value instanceof Byte) {
+			return "((byte) " + value + ")";
+		} else if (value instanceof Float) {
+			final float f = (Float) value;
+			if (Float.isNaN(f)) {
+				return "java.lang.Float.NaN";
+			} else if (Float.isInfinite(f)) {
+				return f > 0 ? "java.lang.Float.POSITIVE_INFINITY" : "java.lang.Float.NEGATIVE_INFINITY";
+			}
+			return value + "f";
+		} else if (value instanceof Double) {
+			final double d = (Double) value;
+			if (Double.isNaN(d)) {
+				return "java.lang.Double.NaN";
+			} else if (Double.isInfinite(d)) {
+				return d > 0 ? "java.lang.Double.POSITIVE_INFINITY" : "java.lang.Double.NEGATIVE_INFINITY";
+			}
+			return value + "d";
+		} else if (value instanceof Character) {
+			return "'" + escape(value.toString(), '\'') + "'";
+		} else if (value instanceof String) {
+			return "\"" + escape((String) value, '"') + "\"";
+		}
+		throw new HookException(String.format("Constant %s has an unsupported type %s", name, value.getClass().getName()));
+	}
+
+	/**
+	 * Escape a string or char literal. The javassist compiler has no unicode escapes, other characters are kept as they
+	 * are.
+	 */
+	private static String escape(String value, char quote) {
+		final StringBuilder builder = new StringBuilder(value.length() + 2);
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == quote || c == '\\') {
+				builder.append('\\').append(c);
+			} else if (c == '\n') {
+				builder.append("\\n");
+			} else if (c == '\r') {
+				builder.append("\\r");
+			} else if (c == '\t') {
+				builder.append("\\t");
+			} else if (c == '\f') {
+				builder.append("\\f");
+			} else {
+				builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,423 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Index of the method calls, field accesses, class references and constants in the code of the game jars.
+ * <p>
+ * Each method, field, class and constant maps to the instructions referencing it. Members are indexed by the class
+ * used in the instruction which is not necessarily the declaring class. Integer constants include bipush and sipush
+ * but not iconst.
+ *
+ * <pre>
+ * CrossReferenceIndex index = HookManager.getInstance().getCrossReferenceIndex();
+ * for (CodeReference call : index.getMethodCalls("com.wurmonline.server.creatures.Creature", "getPower", "()I")) {
+ * 	CtClass ctClass = classPool.get(call.getClassName());
+ * 	CtMethod method = ctClass.getMethod(call.getMethodName(), call.getDescriptor());
+ * }
+ * </pre>
+ *
+ * The index is immutable.
+ */
+public final class CrossReferenceIndex {
+
+	// Referencing method, code position, opcode and member descriptor (or -1) of a reference
+	private static final int RECORD = 4;
+
+	private static final String METHOD = "m";
+	private static final String FIELD = "f";
+	private static final String CLASS = "c";
+
+	private final int classCount;
+	private final String[] strings;
+	// Class, name and descriptor of each referencing method
+	private final int[] methods;
+	private final Map<String, int[]> references;
+
+	private CrossReferenceIndex(int classCount, String[] strings, int[] methods, Map<String, int[]> references) {
+		this.classCount = classCount;
+		this.strings = strings;
+		this.methods = methods;
+		this.references = references;
+	}
+
+	/**
+	 * Build the index of the classes in a jar.
+	 *
+	 * @param jarFile
+	 *            Jar file
+	 * @return index
+	 * @throws IOException
+	 *             if the jar or a class file could not be read
+	 */
+	public static CrossReferenceIndex build(Path jarFile) throws IOException {
+		return build(Collections.singletonList(jarFile));
+	}
+
+	/**
+	 * Build the index of the classes in several jars.
+	 *
+	 * @param jarFiles
+	 *            Jar files
+	 * @return index
+	 * @throws IOException
+	 *             if a jar or a class file could not be read
+	 */
+	public static CrossReferenceIndex build(List<Path> jarFiles) throws IOException {
+		final Builder builder = new Builder();
+		for (Path jarFile : jarFiles) {
+			try (ZipFile zipFile = new ZipFile(jarFile.toFile())) {
+				final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+				while (entries.hasMoreElements()) {
+					final ZipEntry entry = entries.nextElement();
+					if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+						continue;
+					}
+					try (DataInputStream in = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(entry)))) {
+						builder.add(new ClassFile(in));
+					} catch (BadBytecode e) {
+						throw new IOException("Invalid class file " + entry.getName() + " in " + jarFile, e);
+					}
+				}
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Get the calls of a method.
+	 *
+	 * @param className
+	 *            Class as used in the call
+	 * @param methodName
+	 *            Method name
+	 * @param descriptor
+	 *            Method descriptor or null for any descriptor
+	 * @return calls
+	 */
+	public List<CodeReference> getMethodCalls(String className, String methodName, String descriptor) {
+		return find(METHOD + className + "." + methodName, descriptor);
+	}
+
+	/**
+	 * Get the reads and writes of a field.
+	 *
+	 * @param className
+	 *            Class as used in the access
+	 * @param fieldName
+	 *            Field name
+	 * @return accesses
+	 */
+	public List<CodeReference> getFieldAccesses(String className, String fieldName) {
+		return find(FIELD + className + "." + fieldName, null);
+	}
+
+	/**
+	 * Get the new, anewarray, multianewarray, checkcast, instanceof and ldc instructions referencing a class.
+	 *
+	 * @param className
+	 *            Class name. Array classes use the descriptor, e.g. [Ljava.lang.String;
+	 * @return references
+	 */
+	public List<CodeReference> getClassReferences(String className) {
+		return find(CLASS + className, null);
+	}
+
+	/**
+	 * Get the uses of a constant.
+	 *
+	 * @param value
+	 *            Integer, Long, Float, Double or String constant
+	 * @return uses
+	 */
+	public List<CodeReference> getConstantUses(Object value) {
+		return find(constantKey(value), null);
+	}
+
+	/**
+	 * Get the number of indexed classes.
+	 */
+	public int getClassCount() {
+		return classCount;
+	}
+
+	private List<CodeReference> find(String key, String descriptor) {
+		final int[] records = references.get(key);
+		if (records == null) {
+			return Collections.emptyList();
+		}
+		final List<CodeReference> result = new ArrayList<>();
+		for (int i = 0; i < records.length; i += RECORD) {
+			if (descriptor != null && !descriptor.equals(strings[records[i + 3]])) {
+				continue;
+			}
+			final int method = records[i] * 3;
+			result.add(new CodeReference(strings[methods[method]], strings[methods[method + 1]], strings[methods[method + 2]], records[i + 1], records[i + 2]));
+		}
+		return result;
+	}
+
+	private static String constantKey(Object value) {
+		if (value instanceof String) {
+			return "\"" + value;
+		} else if (value instanceof Integer) {
+			return "I" + value;
+		} else if (value instanceof Long) {
+			return "J" + value;
+		} else if (value instanceof Float) {
+			return "F" + value;
+		} else if (value instanceof Double) {
+			return "D" + value;
+		}
+		throw new IllegalArgumentException("Unsupported constant " + value);
+	}
+
+	/**
+	 * Write the index.
+	 *
+	 * @param out
+	 *            Output
+	 * @throws IOException
+	 *             if writing failed
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(classCount);
+		out.writeInt(strings.length);
+		for (String string : strings) {
+			writeString(out, string);
+		}
+		writeInts(out, methods);
+		out.writeInt(references.size());
+		for (Map.Entry<String, int[]> entry : references.entrySet()) {
+			writeString(out, entry.getKey());
+			writeInts(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * Read an index written by {@link #write(DataOutput)}.
+	 *
+	 * @param in
+	 *            Input
+	 * @return index
+	 * @throws IOException
+	 *             if reading failed
+	 */
+	public static CrossReferenceIndex read(DataInput in) throws IOException {
+		final int classCount = in.readInt();
+		final String[] strings = new String[in.readInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readString(in);
+		}
+		final int[] methods = readInts(in);
+		final int count = in.readInt();
+		final Map<String, int[]> references = new HashMap<>(count * 4 / 3 + 1);
+		for (int i = 0; i < count; i++) {
+			references.put(readString(in), readInts(in));
+		}
+		return new CrossReferenceIndex(classCount, strings, methods, references);
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeInts(DataOutput out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(DataInput in) throws IOException {
+		final int[] values = new int[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+
+	/**
+	 * Growable int array.
+	 */
+	private static final class IntList {
+		private int[] values = new int[RECORD * 2];
+		private int size;
+
+		void add(int a, int b, int c, int d) {
+			if (size + 4 > values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[size++] = a;
+			values[size++] = b;
+			values[size++] = c;
+			values[size++] = d;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Collects the references of class files.
+	 */
+	static final class Builder {
+		private final Map<String, Integer> stringIndexes = new HashMap<>();
+		private final List<String> strings = new ArrayList<>();
+		private final List<int[]> methods = new ArrayList<>();
+		private final Map<String, IntList> references = new HashMap<>();
+		private int classCount;
+
+		private int string(String value) {
+			Integer index = stringIndexes.get(value);
+			if (index == null) {
+				index = strings.size();
+				strings.add(value);
+				stringIndexes.put(value, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Add the references of a class.
+		 */
+		void add(ClassFile classFile) throws BadBytecode {
+			classCount++;
+			final ConstPool constPool = classFile.getConstPool();
+			final int className = string(classFile.getName());
+			// Keys and member descriptors, resolved once per constant pool entry
+			final String[] keys = new String[constPool.getSize()];
+			final int[] descriptors = new int[constPool.getSize()];
+			Arrays.fill(descriptors, -1);
+
+			for (Object object : classFile.getMethods()) {
+				final MethodInfo methodInfo = (MethodInfo) object;
+				final CodeAttribute codeAttribute = methodInfo.getCodeAttribute();
+				if (codeAttribute == null) {
+					continue;
+				}
+				int method = -1;
+				final CodeIterator iterator = codeAttribute.iterator();
+				while (iterator.hasNext()) {
+					final int pos = iterator.next();
+					final int opcode = iterator.byteAt(pos);
+					final String key;
+					int descriptor = -1;
+					switch (opcode) {
+					case Opcode.BIPUSH:
+						key = constantKey(iterator.signedByteAt(pos + 1));
+						break;
+					case Opcode.SIPUSH:
+						key = constantKey(iterator.s16bitAt(pos + 1));
+						break;
+					case Opcode.LDC:
+					case Opcode.LDC_W:
+					case Opcode.LDC2_W:
+					case Opcode.GETSTATIC:
+					case Opcode.PUTSTATIC:
+					case Opcode.GETFIELD:
+					case Opcode.PUTFIELD:
+					case Opcode.INVOKEVIRTUAL:
+					case Opcode.INVOKESPECIAL:
+					case Opcode.INVOKESTATIC:
+					case Opcode.INVOKEINTERFACE:
+					case Opcode.NEW:
+					case Opcode.ANEWARRAY:
+					case Opcode.CHECKCAST:
+					case Opcode.INSTANCEOF:
+					case Opcode.MULTIANEWARRAY:
+						final int index = opcode == Opcode.LDC ? iterator.byteAt(pos + 1) : iterator.u16bitAt(pos + 1);
+						if (keys[index] == null) {
+							keys[index] = resolve(constPool, index, descriptors);
+						}
+						key = keys[index];
+						descriptor = descriptors[index];
+						break;
+					default:
+						continue;
+					}
+					if (key.isEmpty()) {
+						continue;
+					}
+					if (method == -1) {
+						method = methods.size();
+						methods.add(new int[] { className, string(methodInfo.getName()), string(methodInfo.getDescriptor()) });
+					}
+					references.computeIfAbsent(key, k -> new IntList()).add(method, pos, opcode, descriptor);
+				}
+			}
+		}
+
+		/**
+		 * Get the key of a constant pool entry, or an empty key if the entry is not indexed.
+		 */
+		private String resolve(ConstPool constPool, int index, int[] descriptors) {
+			switch (constPool.getTag(index)) {
+			case ConstPool.CONST_Methodref:
+				descriptors[index] = string(constPool.getMethodrefType(index));
+				return METHOD + constPool.getMethodrefClassName(index) + "." + constPool.getMethodrefName(index);
+			case ConstPool.CONST_InterfaceMethodref:
+				descriptors[index] = string(constPool.getInterfaceMethodrefType(index));
+				return METHOD + constPool.getInterfaceMethodrefClassName(index) + "." + constPool.getInterfaceMethodrefName(index);
+			case ConstPool.CONST_Fieldref:
+				descriptors[index] = string(constPool.getFieldrefType(index));
+				return FIELD + constPool.getFieldrefClassName(index) + "." + constPool.getFieldrefName(index);
+			case ConstPool.CONST_Class:
+				return CLASS + constPool.getClassInfo(index);
+			case ConstPool.CONST_String:
+			case ConstPool.CONST_Integer:
+			case ConstPool.CONST_Long:
+			case ConstPool.CONST_Float:
+			case ConstPool.CONST_Double:
+				return constantKey(constPool.getLdcValue(index));
+			default:
+				// Method handles and method types
+				return "";
+			}
+		}
+
+		CrossReferenceIndex build() {
+			final int[] methodArray = new int[methods.size() * 3];
+			for (int i = 0; i < methods.size(); i++) {
+				System.arraycopy(methods.get(i), 0, methodArray, i * 3, 3);
+			}
+			final Map<String, int[]> referenceMap = new HashMap<>(references.size() * 4 / 3 + 1);
+			for (Map.Entry<String, IntList> entry : references.entrySet()) {
+				referenceMap.put(entry.getKey(), entry.getValue().toArray());
+			}
+			return new CrossReferenceIndex(classCount, strings.toArray(new String[strings.size()]), methodArray, referenceMap);
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ByteArray;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.LineNumberAttribute;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMap;
+import javassist.bytecode.StackMapTable;
+
+/**
+ * Insert several gaps into the code of a method in a single pass.
+ * <p>
+ * The result is the same as calling {@link CodeIterator#insertGap(int, int)} for each gap: the gaps are filled with
+ * NOPs, branches to a gap position jump to the start of the gap and a gap in front of a switch instruction is extended
+ * to a multiple of 4 to keep the switch padding. The exception table, line numbers, local variables and the stack map
+ * table are updated in the same pass instead of once per gap.
+ * <p>
+ * Code which would grow beyond 32K falls back to {@link CodeIterator#insertGap(int, int)} for each gap since javassist
+ * widens branches in that case.
+ */
+final class GapInserter {
+
+	private GapInserter() {
+	}
+
+	/**
+	 * Insert gaps.
+	 *
+	 * @param codeAttribute
+	 *            Code
+	 * @param positions
+	 *            Gap positions in ascending order. Each position of a non empty gap must be the start of an instruction
+	 * @param lengths
+	 *            Requested gap lengths
+	 * @return actual gap lengths
+	 * @throws BadBytecode
+	 *             if a position is not the start of an instruction
+	 */
+	static int[] insertGaps(CodeAttribute codeAttribute, int[] positions, int[] lengths) throws BadBytecode {
+		final byte[] code = codeAttribute.getCode();
+		final int count = positions.length;
+		final int[] gaps = new int[count];
+
+		// Find the switch instructions and check the gap positions
+		int lastSwitch = -1;
+		int checked = 0;
+		final CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			final int pos = iterator.next();
+			final int opcode = code[pos] & 0xff;
+			if (opcode == Opcode.TABLESWITCH || opcode == Opcode.LOOKUPSWITCH) {
+				lastSwitch = pos;
+			}
+			for (; checked < count && positions[checked] <= pos; checked++) {
+				checkBoundary(positions[checked] == pos, positions[checked], lengths[checked]);
+			}
+		}
+		for (; checked < count; checked++) {
+			checkBoundary(false, positions[checked], lengths[checked]);
+		}
+
+		int total = 0;
+		for (int k = 0; k < count; k++) {
+			gaps[k] = lengths[k];
+			if (positions[k] <= lastSwitch && (gaps[k] & 3) != 0) {
+				gaps[k] = (gaps[k] + 3) & ~3;
+			}
+			total += gaps[k];
+		}
+		if (total == 0) {
+			return gaps;
+		}
+
+		if (code.length + total > Short.MAX_VALUE || codeAttribute.getAttribute(StackMap.tag) != null) {
+			return insertGapsSequentially(codeAttribute, positions, lengths);
+		}
+
+		final Shift shift = new Shift(positions, gaps);
+		final byte[] newcode = relocate(codeAttribute, code, shift, total);
+		// Grow the code without touching the tables, then overwrite it with the relocated code
+		codeAttribute.iterator().appendGap(total);
+		System.arraycopy(newcode, 0, codeAttribute.getCode(), 0, newcode.length);
+		shiftExceptionTable(codeAttribute.getExceptionTable(), shift);
+		for (Object attribute : codeAttribute.getAttributes()) {
+			if (attribute instanceof LineNumberAttribute) {
+				shiftLineNumbers((AttributeInfo) attribute, shift);
+			} else if (attribute instanceof LocalVariableAttribute) {
+				shiftLocalVariables((AttributeInfo) attribute, shift);
+			} else if (attribute instanceof StackMapTable) {
+				shiftStackMapTable((StackMapTable) attribute, shift);
+			}
+		}
+		return gaps;
+	}
+
+	private static void checkBoundary(boolean boundary, int position, int length) throws BadBytecode {
+		if (!boundary && length > 0) {
+			throw new BadBytecode("Gap at " + position + " is not at an instruction boundary");
+		}
+	}
+
+	private static int[] insertGapsSequentially(CodeAttribute codeAttribute, int[] positions, int[] lengths) throws BadBytecode {
+		final int[] gaps = new int[positions.length];
+		final CodeIterator iterator = codeAttribute.iterator();
+		int inserted = 0;
+		for (int k = 0; k < positions.length; k++) {
+			gaps[k] = iterator.insertGap(positions[k] + inserted, lengths[k]);
+			inserted += gaps[k];
+		}
+		return gaps;
+	}
+
+	/**
+	 * Position mapping for a set of gaps.
+	 */
+	private static final class Shift {
+		private final int[] positions;
+		private final int[] before;
+
+		Shift(int[] positions, int[] gaps) {
+			this.positions = positions;
+			this.before = new int[positions.length + 1];
+			for (int k = 0; k < positions.length; k++) {
+				before[k + 1] = before[k] + gaps[k];
+			}
+		}
+
+		/**
+		 * Sum of the gaps at positions less than pos.
+		 */
+		int before(int pos) {
+			int low = 0;
+			int high = positions.length;
+			while (low < high) {
+				final int mid = (low + high) >>> 1;
+				if (positions[mid] < pos) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return before[low];
+		}
+
+		/**
+		 * New position of a branch target or table entry. A gap at the position is in front of it.
+		 */
+		int target(int pos) {
+			return pos + before(pos);
+		}
+
+		/**
+		 * New position of an instruction. A gap at the position is in front of it.
+		 */
+		int instruction(int pos) {
+			return pos + before(pos + 1);
+		}
+
+		/**
+		 * New branch offset of the instruction at pos.
+		 */
+		int offset(int pos, int offset) {
+			if (offset == 0) {
+				// Branch to itself moves with the instruction
+				return 0;
+			}
+			return target(pos + offset) - instruction(pos);
+		}
+	}
+
+	private static byte[] relocate(CodeAttribute codeAttribute, byte[] code, Shift shift, int total) throws BadBytecode {
+		final byte[] newcode = new byte[code.length + total];
+		final CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			final int i = iterator.next();
+			final int end = iterator.hasNext() ? iterator.lookAhead() : code.length;
+			final int j = shift.instruction(i);
+			System.arraycopy(code, i, newcode, j, end - i);
+
+			final int opcode = code[i] & 0xff;
+			if ((Opcode.IFEQ <= opcode && opcode <= Opcode.JSR) || opcode == Opcode.IFNULL || opcode == Opcode.IFNONNULL) {
+				ByteArray.write16bit(shift.offset(i, ByteArray.readS16bit(code, i + 1)), newcode, j + 1);
+			} else if (opcode == Opcode.GOTO_W || opcode == Opcode.JSR_W) {
+				ByteArray.write32bit(shift.offset(i, ByteArray.read32bit(code, i + 1)), newcode, j + 1);
+			} else if (opcode == Opcode.TABLESWITCH) {
+				// Gaps in front of a switch are a multiple of 4, the padding does not change
+				final int i2 = (i & ~3) + 4;
+				final int j2 = j + (i2 - i);
+				ByteArray.write32bit(shift.offset(i, ByteArray.read32bit(code, i2)), newcode, j2);
+				final int low = ByteArray.read32bit(code, i2 + 4);
+				final int high = ByteArray.read32bit(code, i2 + 8);
+				for (int n = 0; n < high - low + 1; n++) {
+					final int p = 12 + n * 4;
+					ByteArray.write32bit(shift.offset(i, ByteArray.read32bit(code, i2 + p)), newcode, j2 + p);
+				}
+			} else if (opcode == Opcode.LOOKUPSWITCH) {
+				final int i2 = (i & ~3) + 4;
+				final int j2 = j + (i2 - i);
+				ByteArray.write32bit(shift.offset(i, ByteArray.read32bit(code, i2)), newcode, j2);
+				final int npairs = ByteArray.read32bit(code, i2 + 4);
+				for (int n = 0; n < npairs; n++) {
+					final int p = 8 + n * 8 + 4;
+					ByteArray.write32bit(shift.offset(i, ByteArray.read32bit(code, i2 + p)), newcode, j2 + p);
+				}
+			}
+		}
+		// The gaps are already filled with zeros which is NOP
+		return newcode;
+	}
+
+	private static void shiftExceptionTable(ExceptionTable table, Shift shift) {
+		for (int n = 0; n < table.size(); n++) {
+			table.setStartPc(n, shift.target(table.startPc(n)));
+			table.setEndPc(n, shift.target(table.endPc(n)));
+			table.setHandlerPc(n, shift.target(table.handlerPc(n)));
+		}
+	}
+
+	private static void shiftLineNumbers(AttributeInfo attribute, Shift shift) {
+		final byte[] info = attribute.get();
+		final int n = ByteArray.readU16bit(info, 0);
+		for (int k = 0; k < n; k++) {
+			final int pos = k * 4 + 2;
+			ByteArray.write16bit(shift.target(ByteArray.readU16bit(info, pos)), info, pos);
+		}
+	}
+
+	private static void shiftLocalVariables(AttributeInfo attribute, Shift shift) {
+		final byte[] info = attribute.get();
+		final int n = ByteArray.readU16bit(info, 0);
+		for (int k = 0; k < n; k++) {
+			final int pos = k * 10 + 2;
+			final int start = ByteArray.readU16bit(info, pos);
+			final int end = start + ByteArray.readU16bit(info, pos + 2);
+			final int newStart = shift.target(start);
+			ByteArray.write16bit(newStart, info, pos);
+			ByteArray.write16bit(shift.target(end) - newStart, info, pos + 2);
+		}
+	}
+
+	/**
+	 * Update the frame offsets and the offsets of uninitialized values. Compact frames with offsets beyond 63 are
+	 * widened like {@link StackMapTable} does for a single gap.
+	 */
+	private static void shiftStackMapTable(StackMapTable stackMapTable, Shift shift) throws BadBytecode {
+		final byte[] info = stackMapTable.get().clone();
+		final List<int[]> widened = new ArrayList<>();
+
+		new StackMapTable.Walker(stackMapTable) {
+			int position = -1;
+			int newPosition = -1;
+
+			private int update(int pos, int offsetDelta) {
+				position = position + offsetDelta + 1;
+				final int previous = newPosition;
+				newPosition = shift.target(position);
+				return newPosition - previous - 1;
+			}
+
+			@Override
+			public void sameFrame(int pos, int offsetDelta) {
+				updateCompact(pos, offsetDelta, 0, 251);
+			}
+
+			@Override
+			public void sameLocals(int pos, int offsetDelta, int stackTag, int stackData) {
+				updateCompact(pos, offsetDelta, 64, 247);
+			}
+
+			private void updateCompact(int pos, int offsetDelta, int base, int extended) {
+				final int type = info[pos] & 0xff;
+				final int newDelta = update(pos, offsetDelta);
+				if (type >= 128) {
+					ByteArray.write16bit(newDelta, info, pos + 1);
+				} else if (newDelta < 64) {
+					info[pos] = (byte) (newDelta + base);
+				} else {
+					widened.add(new int[] { pos, extended, newDelta });
+				}
+			}
+
+			@Override
+			public void chopFrame(int pos, int offsetDelta, int k) {
+				ByteArray.write16bit(update(pos, offsetDelta), info, pos + 1);
+			}
+
+			@Override
+			public void appendFrame(int pos, int offsetDelta, int[] tags, int[] data) {
+				ByteArray.write16bit(update(pos, offsetDelta), info, pos + 1);
+			}
+
+			@Override
+			public void fullFrame(int pos, int offsetDelta, int[] localTags, int[] localData, int[] stackTags, int[] stackData) {
+				ByteArray.write16bit(update(pos, offsetDelta), info, pos + 1);
+			}
+
+			@Override
+			public void objectOrUninitialized(int tag, int data, int pos) {
+				if (tag == StackMapTable.UNINIT) {
+					ByteArray.write16bit(shift.instruction(data), info, pos);
+				}
+			}
+		}.parse();
+
+		if (widened.isEmpty()) {
+			stackMapTable.set(info);
+			return;
+		}
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(info.length + widened.size() * 2);
+		int copied = 0;
+		for (int[] frame : widened) {
+			final int pos = frame[0];
+			out.write(info, copied, pos - copied);
+			out.write(frame[1]);
+			out.write(frame[2] >> 8);
+			out.write(frame[2]);
+			copied = pos + 1;
+		}
+		out.write(info, copied, info.length - copied);
+		stackMapTable.set(out.toByteArray());
+	}
+}
@@ -5,29 +5,35 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Collections;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
 import java.util.jar.Manifest;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.gotti.wurmunlimited.modloader.callbacks.Callbacks;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
+import javassist.CtBehavior;
 import javassist.CtClass;
 import javassist.CtMethod;
 import javassist.CtNewMethod;
 import javassist.Loader;
 import javassist.NotFoundException;
+import javassist.Translator;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.MethodInfo;
 
 public class HookManager {
 
@@ -38,7 +44,7 @@ public class HookManager {
 	private Loader loader;
 
 	// Invocation targets
-	private Map<String, InvocationTarget> invocationTargets = new HashMap<>();
+	private Map<String, InvocationTarget> invocationTargets = new ConcurrentHashMap<>();
 
 	// Instance
 	private static HookManager instance;
@@ -48,107 +54,229 @@ public class HookManager {
 	
 	private static final Logger LOG = Logger.getLogger(HookManager.class.getName());
 
+	// Constants for code templates
+	private final Map<String, Object> constants = new ConcurrentHashMap<>();
+
+	// Cross reference index of the server jar, loaded on first use
+	private Supplier<CrossReferenceIndex> crossReferenceSupplier;
+	private CrossReferenceIndex crossReferenceIndex;
+
 	private HookManager() {
 		classPool = ClassPool.getDefault();
-		loader = new Loader(classPool) {
-			
-			@Override
-			protected Class<?> findClass(String name) throws ClassNotFoundException {
-				int index = name.lastIndexOf(".");
-				if (index != -1) {
+		loader = new HookClassLoader(classPool);
+		callbacks = new Callbacks(loader, classPool);
+	}
+
+	/**
+	 * Javassist loader for the game and the mods using the shared classloader.
+	 * <p>
+	 * javassist.Loader is not registered as parallel capable, and neither can its subclasses be. The JVM locks the
+	 * loader itself while it resolves and defines classes, so class loading through this loader is serialized.
+	 * javassist.Loader synchronizes on the interned class name in addition, and concurrent loads of dependent classes
+	 * could deadlock between those two locks. Any per-name lock would do the same, so this loader locks on itself only.
+	 */
+	static class HookClassLoader extends Loader {
+
+		private final ClassPool classPool;
+		private final JitLimits jitLimits;
+
+		HookClassLoader(ClassPool classPool) {
+			this(classPool, JitLimits.fromSystem());
+		}
+
+		HookClassLoader(ClassPool classPool, JitLimits jitLimits) {
+			super(classPool);
+			this.classPool = classPool;
+			this.jitLimits = jitLimits;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassFormatError, ClassNotFoundException {
+			synchronized (this) {
+				Class<?> c = findLoadedClass(name);
+				if (c == null) {
+					c = loadClassByDelegation(name);
+				}
+				if (c == null) {
+					c = findClass(name);
+				}
+				if (c == null) {
+					c = delegateToParent(name);
+				}
+				if (resolve) {
+					resolveClass(c);
+				}
+				return c;
+			}
+		}
+		
+		@Override
+		public void addTranslator(ClassPool cp, Translator t) throws NotFoundException, CannotCompileException {
+			super.addTranslator(cp, t);
+			translator = t;
+		}
+		
+		/**
+		 * Set the listener notified about the classes defined by this loader.
+		 */
+		void setClassDefinitionListener(ClassDefinitionListener listener) {
+			this.listener = listener;
+		}
+		
+		/**
+		 * Same as {@link Loader#findClass(String)} except for the package definition, the pending stack map rebuilds, the
+		 * JIT limit check and the listener notification.
+		 */
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			int index = name.lastIndexOf(".");
+			if (index != -1) {
+				String packageName = name.substring(0, index);
+				if (!definedPackages.contains(packageName) && getPackage(packageName) == null) {
 					try {
-						Package pkg = getPackage(name.substring(0, index));
-						if (pkg == null) {
-							CtClass ctClass = classPool.get(name);
-							String url = ctClass.getURL().toString();
-							if (url.startsWith("jar:") && url.lastIndexOf("!") != -1) {
-								URL manifestURL = new URL(url.substring(0, url.lastIndexOf("!") + 1) + "/META-INF/MANIFEST.MF");
-								try (InputStream is = manifestURL.openStream()) {
-									Manifest man = new Manifest(is);
-	
-									String specTitle = null, specVersion = null, specVendor = null;
-									String implTitle = null, implVersion = null, implVendor = null;
-									
-									String path = name.replace('.', '/').concat("/");
-	
-									Attributes attr = man.getAttributes(path);
-									if (attr != null) {
-										specTitle = attr.getValue(Name.SPECIFICATION_TITLE);
-										specVersion = attr.getValue(Name.SPECIFICATION_VERSION);
-										specVendor = attr.getValue(Name.SPECIFICATION_VENDOR);
-										implTitle = attr.getValue(Name.IMPLEMENTATION_TITLE);
-										implVersion = attr.getValue(Name.IMPLEMENTATION_VERSION);
-										implVendor = attr.getValue(Name.IMPLEMENTATION_VENDOR);
-									}
-									attr = man.getMainAttributes();
-									if (attr != null) {
-										if (specTitle == null) {
-											specTitle = attr.getValue(Name.SPECIFICATION_TITLE);
-										}
-										if (specVersion == null) {
-											specVersion = attr.getValue(Name.SPECIFICATION_VERSION);
-										}
-										if (specVendor == null) {
-											specVendor = attr.getValue(Name.SPECIFICATION_VENDOR);
-										}
-										if (implTitle == null) {
-											implTitle = attr.getValue(Name.IMPLEMENTATION_TITLE);
-										}
-										if (implVersion == null) {
-											implVersion = attr.getValue(Name.IMPLEMENTATION_VERSION);
-										}
-										if (implVendor == null) {
-											implVendor = attr.getValue(Name.IMPLEMENTATION_VENDOR);
-										}
-									}
-								
-									definePackage(ctClass.getPackageName(), specTitle, specVersion, specVendor, implTitle, implVersion, implVendor, null);
-									
-								} catch (IOException e) {
-								}
-							}
-						}
-					} catch (NotFoundException | MalformedURLException e) {
+						definePackage(packageName, classPool.get(name).getURL());
+						definedPackages.add(packageName);
+					} catch (NotFoundException e) {
 					}
 				}
-				
-				return super.findClass(name);
 			}
 			
-			//
-			// Some javax.* packages are not part of the JDK and must be loaded from the modloader classpath.
-			// We look for classes in the parent classpath first. If we found the class from a javax
-			// package we store the package name in a set of system provided javax packages. All classes
-			// from those packages are always resolved from the parent classpath.
-			// if a class from a javax. package is not found null is returned instead of a ClassNotFound
-			// exception to continue searching for the class in the modloader classpath.
-			//
-			// The special treatment does only apply to mods with sharedClassLoader. The javax packages
-			// are resolved without problems if the mod has its own classloader.
-			//
-			private final Set<String> delegateJavaXPackages = Collections.synchronizedSet(new HashSet<>());
-			private final Pattern javaxPackagePattern = Pattern.compile("^(?<pkg>javax\\.[^.]+)\\..*$");
-			protected Class<?> delegateToParent(String classname) throws ClassNotFoundException {
-				Matcher matcher = javaxPackagePattern.matcher(classname);
-				if (!matcher.matches()) {
-					return super.delegateToParent(classname);
-				}
-				
-				String javaxPackage = matcher.group("pkg");
-				if (delegateJavaXPackages.contains(javaxPackage)) {
-					return super.delegateToParent(classname);
+			final byte[] classfile;
+			try {
+				final Translator t = translator;
+				if (t != null) {
+					t.onLoad(classPool, name);
 				}
-				
+				final CtClass ctClass;
 				try {
-					Class<?> c = super.delegateToParent(classname);
-					delegateJavaXPackages.add(javaxPackage);
-					return c;
-				} catch (ClassNotFoundException e) {
+					ctClass = classPool.get(name);
+				} catch (NotFoundException e) {
 					return null;
 				}
+				for (Map.Entry<MethodInfo, Set<String>> entry : pendingStackMaps.rebuild(classPool, ctClass).entrySet()) {
+					modifiedMethods.add(name, entry.getKey(), entry.getValue());
+				}
+				classfile = jitLimits.toBytecode(classPool, ctClass, modifiedMethods.remove(name), modifiedMethods.getCurrentMod());
+			} catch (Exception e) {
+				throw new ClassNotFoundException("caught an exception while obtaining a class file for " + name, e);
 			}
-		};
-		callbacks = new Callbacks(loader, classPool);
+			
+			if (index != -1) {
+				String packageName = name.substring(0, index);
+				if (getPackage(packageName) == null) {
+					try {
+						definePackage(packageName, null, null, null, null, null, null, null);
+					} catch (IllegalArgumentException e) {
+						// The package was defined by another thread
+					}
+				}
+			}
+			
+			final Class<?> c = defineClass(name, classfile, 0, classfile.length);
+			final ClassDefinitionListener l = listener;
+			if (l != null) {
+				l.classDefined(c, ByteBuffer.wrap(classfile).asReadOnlyBuffer());
+			}
+			return c;
+		}
+		
+		private volatile Translator translator;
+		private volatile ClassDefinitionListener listener;
+		
+		// Stack maps to rebuild before the classes are defined
+		final PendingStackMaps pendingStackMaps = new PendingStackMaps();
+		// Mods by modified method for the JIT limit check
+		final ModifiedMethods modifiedMethods = new ModifiedMethods();
+		
+		// Packages with a definition from the jar manifest
+		private final Set<String> definedPackages = ConcurrentHashMap.newKeySet();
+		// Parsed manifests by jar URL
+		private final Map<String, Optional<Manifest>> manifests = new ConcurrentHashMap<>();
+		
+		/**
+		 * Define a package with the specification and implementation attributes from the manifest of the jar
+		 * containing the class.
+		 */
+		private void definePackage(String packageName, URL classUrl) {
+			String url = classUrl.toString();
+			int separator = url.lastIndexOf("!");
+			if (!url.startsWith("jar:") || separator == -1) {
+				return;
+			}
+			Manifest man = manifests.computeIfAbsent(url.substring(0, separator + 1), HookClassLoader::readManifest).orElse(null);
+			if (man == null) {
+				return;
+			}
+			
+			Attributes attr = man.getAttributes(packageName.replace('.', '/').concat("/"));
+			try {
+				definePackage(packageName,
+						getAttribute(man, attr, Name.SPECIFICATION_TITLE), getAttribute(man, attr, Name.SPECIFICATION_VERSION), getAttribute(man, attr, Name.SPECIFICATION_VENDOR),
+						getAttribute(man, attr, Name.IMPLEMENTATION_TITLE), getAttribute(man, attr, Name.IMPLEMENTATION_VERSION), getAttribute(man, attr, Name.IMPLEMENTATION_VENDOR),
+						null);
+			} catch (IllegalArgumentException e) {
+				// The package was defined by another thread
+			}
+		}
+		
+		private static Optional<Manifest> readManifest(String jarUrl) {
+			try (InputStream is = new URL(jarUrl + "/META-INF/MANIFEST.MF").openStream()) {
+				return Optional.of(new Manifest(is));
+			} catch (IOException e) {
+				return Optional.empty();
+			}
+		}
+		
+		/**
+		 * Get a package attribute falling back to the main attributes of the manifest.
+		 */
+		private static String getAttribute(Manifest man, Attributes packageAttributes, Name name) {
+			String value = packageAttributes != null ? packageAttributes.getValue(name) : null;
+			if (value == null) {
+				value = man.getMainAttributes().getValue(name);
+			}
+			return value;
+		}
+		
+		//
+		// Some javax.* packages are not part of the JDK and must be loaded from the modloader classpath.
+		// We look for classes in the parent classpath first. If we found the class from a javax
+		// package we store the package name in a set of system provided javax packages. All classes
+		// from those packages are always resolved from the parent classpath.
+		// if a class from a javax. package is not found null is returned instead of a ClassNotFound
+		// exception to continue searching for the class in the modloader classpath.
+		//
+		// The special treatment does only apply to mods with sharedClassLoader. The javax packages
+		// are resolved without problems if the mod has its own classloader.
+		//
+		private final Set<String> delegateJavaXPackages = ConcurrentHashMap.newKeySet();
+		protected Class<?> delegateToParent(String classname) throws ClassNotFoundException {
+			String javaxPackage = getJavaXPackage(classname);
+			if (javaxPackage == null || delegateJavaXPackages.contains(javaxPackage)) {
+				return super.delegateToParent(classname);
+			}
+			
+			try {
+				Class<?> c = super.delegateToParent(classname);
+				delegateJavaXPackages.add(javaxPackage);
+				return c;
+			} catch (ClassNotFoundException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * Get the javax.* package prefix (e.g. javax.xml) of a class name.
+		 * 
+		 * @return prefix or null if the class is not from a javax package
+		 */
+		private static String getJavaXPackage(String classname) {
+			if (!classname.startsWith("javax.")) {
+				return null;
+			}
+			int end = classname.indexOf('.', 6);
+			return end > 6 ? classname.substring(0, end) : null;
+		}
 	}
 
 	public static synchronized HookManager getInstance() {
@@ -166,6 +294,142 @@ public class HookManager {
 		return loader;
 	}
 
+	/**
+	 * Set the listener notified about the classes defined by the {@link #getLoader()} loader.
+	 *
+	 * @param listener
+	 *            Listener or null to remove the listener
+	 */
+	public void setClassDefinitionListener(ClassDefinitionListener listener) {
+		((HookClassLoader) loader).setClassDefinitionListener(listener);
+	}
+
+	/**
+	 * Log the totals of the class modifications once the mods are initialized.
+	 */
+	public void reportStartup() {
+		((HookClassLoader) loader).pendingStackMaps.report();
+		((HookClassLoader) loader).jitLimits.report();
+	}
+
+	/**
+	 * Attribute the code modifications of the current thread to a mod.
+	 *
+	 * @param modName
+	 *            Mod name or null
+	 * @return the previous mod name
+	 */
+	public String setCurrentMod(String modName) {
+		return ((HookClassLoader) loader).modifiedMethods.setCurrentMod(modName);
+	}
+
+	/**
+	 * Attribute a modified method or constructor to the current mod.
+	 */
+	private void modified(CtBehavior behavior) {
+		((HookClassLoader) loader).modifiedMethods.add(behavior.getDeclaringClass(), behavior.getMethodInfo2());
+	}
+
+	/**
+	 * Attribute the method with the modified code to the current mod. The method is looked up in the class of the
+	 * constant pool.
+	 *
+	 * @param codeAttribute
+	 *            Modified code
+	 */
+	void modified(CodeAttribute codeAttribute) {
+		final CtClass ctClass = classPool.getOrNull(codeAttribute.getConstPool().getClassName());
+		if (ctClass == null || ctClass.isFrozen()) {
+			return;
+		}
+		for (Object object : ctClass.getClassFile2().getMethods()) {
+			final MethodInfo method = (MethodInfo) object;
+			if (method.getCodeAttribute() == codeAttribute) {
+				((HookClassLoader) loader).modifiedMethods.add(ctClass, method);
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the stack map of a modified method right before its class is loaded.
+	 * <p>
+	 * Use this instead of {@link MethodInfo#rebuildStackMap(ClassPool)} after changing the byte code of a method. The
+	 * stack map is rebuilt once, no matter how many mods requested it.
+	 *
+	 * @param behavior
+	 *            Modified method or constructor
+	 */
+	public void requestStackMapRebuild(CtBehavior behavior) {
+		try {
+			((HookClassLoader) loader).pendingStackMaps.add(classPool, behavior.getDeclaringClass(), behavior.getMethodInfo2(), ((HookClassLoader) loader).modifiedMethods.getCurrentMod());
+		} catch (BadBytecode e) {
+			throw new HookException(e);
+		}
+	}
+
+	/**
+	 * Define a constant for {@link #specialize(String)}. Constant names should start with the mod name.
+	 *
+	 * @param name
+	 *            Constant name
+	 * @param value
+	 *            Boolean, number, character or string value
+	 */
+	public void defineConstant(String name, Object value) {
+		constants.put(name, Objects.requireNonNull(value));
+	}
+
+	/**
+	 * Specialize source code for javassist to the defined constants before compiling it.
+	 * <p>
+	 * <code>${name}</code> is replaced with the value of the constant as a literal. Lines between <code>#if name</code>
+	 * (or <code>#if !name</code>), <code>#else</code> and <code>#endif</code> are only kept if the constant is true
+	 * (or false), so disabled code is never compiled and constants are not loaded from fields on each call.
+	 *
+	 * <pre>
+	 * HookManager.getInstance().defineConstant("myMod.enabled", enabled);
+	 * HookManager.getInstance().defineConstant("myMod.multiplier", multiplier);
+	 * method.insertAfter(HookManager.getInstance().specialize(
+	 * 		"#if myMod.enabled\n" +
+	 * 		"$_ = $_ * ${myMod.multiplier};\n" +
+	 * 		"#endif"));
+	 * </pre>
+	 *
+	 * @param source
+	 *            Source code with placeholders and directives
+	 * @return specialized source code
+	 */
+	public String specialize(String source) {
+		return CodeTemplate.specialize(source, constants);
+	}
+
+	/**
+	 * Set the source of the cross reference index.
+	 *
+	 * @param supplier
+	 *            Supplier loading the index
+	 */
+	public synchronized void setCrossReferenceIndex(Supplier<CrossReferenceIndex> supplier) {
+		this.crossReferenceSupplier = supplier;
+		this.crossReferenceIndex = null;
+	}
+
+	/**
+	 * Get the cross reference index of the server jar. The index is loaded on first use and is only rebuilt if the
+	 * server jar changed.
+	 *
+	 * @return index
+	 */
+	public synchronized CrossReferenceIndex getCrossReferenceIndex() {
+		if (crossReferenceIndex == null) {
+			if (crossReferenceSupplier == null) {
+				throw new HookException("The cross reference index is not available");
+			}
+			crossReferenceIndex = crossReferenceSupplier.get();
+		}
+		return crossReferenceIndex;
+	}
+
 	/**
 	 * Create a unique method name in the class. The name is generated from the baseName + "$" + number
 	 * 
@@ -265,10 +529,99 @@ public class HookManager {
 		LOG.fine(body);
 		newMethod.setBody(body);
 		ctClass.addMethod(newMethod);
+		modified(newMethod);
 
 		return invocationTarget;
 	}
 
+	/**
+	 * Redirect calls to a public static method of a mod.
+	 * <p>
+	 * Unlike a hook the call sites call the target directly. Calls of static methods are redirected to a target with
+	 * the same descriptor, other calls to a target taking the receiver as the first parameter, e.g.
+	 * <code>static int getWeight(Item item)</code> for calls of <code>Item.getWeight()I</code>. The target is checked
+	 * when the calls are redirected and must be loadable by {@link #getLoader()}, i.e. from a mod using the shared class
+	 * loader.
+	 * 
+	 * @param callerClassName
+	 *            Class containing the calls
+	 * @param callerMethodPattern
+	 *            Regular expression for the names of the calling methods or null for all methods and constructors
+	 * @param calleeClassName
+	 *            Called class as used in the call
+	 * @param calleeMethodName
+	 *            Called method
+	 * @param calleeDescriptor
+	 *            Called method descriptor
+	 * @param targetClassName
+	 *            Class of the target
+	 * @param targetMethodName
+	 *            Target method
+	 * @return the number of redirected calls
+	 */
+	public int redirectCalls(String callerClassName, String callerMethodPattern, String calleeClassName, String calleeMethodName, String calleeDescriptor, String targetClassName,
+			String targetMethodName) {
+		try {
+			final CallRedirector redirector = new CallRedirector(classPool, calleeClassName, calleeMethodName, calleeDescriptor, targetClassName, targetMethodName);
+			return redirector.redirect(classPool.get(callerClassName), callerMethodPattern != null ? Pattern.compile(callerMethodPattern) : null, this::modified);
+		} catch (NotFoundException e) {
+			throw new HookException(e);
+		}
+	}
+
+	/**
+	 * Replace the body of a method with the body of a method of a mod class.
+	 * <p>
+	 * The mod class stands in for the target class. Its fields and methods used by the body are mapped to the fields and
+	 * methods of the target class with the same name and type, which must exist. Unlike a hook there is no wrapper and
+	 * no renamed original method.
+	 * 
+	 * @param className
+	 *            Class containing the method
+	 * @param methodName
+	 *            Method to replace
+	 * @param methodType
+	 *            Method signature or null if the method is not overloaded
+	 * @param sourceClassName
+	 *            Mod class providing the body
+	 * @param sourceMethodName
+	 *            Method providing the body
+	 */
+	public void replaceMethod(String className, String methodName, String methodType, String sourceClassName, String sourceMethodName) {
+		replaceMethod(className, methodName, methodType, sourceClassName, sourceMethodName, null);
+	}
+
+	/**
+	 * Replace the body of a method with the body of a method of a mod class.
+	 * 
+	 * @param className
+	 *            Class containing the method
+	 * @param methodName
+	 *            Method to replace
+	 * @param methodType
+	 *            Method signature or null if the method is not overloaded
+	 * @param sourceClassName
+	 *            Mod class providing the body
+	 * @param sourceMethodName
+	 *            Method providing the body
+	 * @param classNames
+	 *            Further mod classes standing in for other classes, mapped to the classes they stand in for
+	 * @see #replaceMethod(String, String, String, String, String)
+	 */
+	public void replaceMethod(String className, String methodName, String methodType, String sourceClassName, String sourceMethodName, Map<String, String> classNames) {
+		try {
+			final CtClass ctClass = classPool.get(className);
+			final CtMethod method = methodType != null ? ctClass.getMethod(methodName, methodType) : ctClass.getDeclaredMethod(methodName);
+			if (method.getDeclaringClass() != ctClass) {
+				throw new HookException(String.format("%s.%s%s is inherited from %s", className, methodName, methodType, method.getDeclaringClass().getName()));
+			}
+			new MethodBodyCopier(classPool, classNames).copy(method, classPool.get(sourceClassName), sourceMethodName);
+			modified(method);
+		} catch (NotFoundException | CannotCompileException | BadBytecode e) {
+			throw new HookException(e);
+		}
+	}
+
 	/**
 	 * Register a hook.
 	 * 
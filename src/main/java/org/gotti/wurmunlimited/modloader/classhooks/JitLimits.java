@@ -0,0 +1,262 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * Detect methods which were pushed past the JIT compilation and inlining limits of HotSpot by a transformation.
+ * <p>
+ * The code size of each method of a modified class is compared with the size in the original class file. Methods
+ * growing past HugeMethodLimit are no longer compiled, methods growing past FreqInlineSize or MaxInlineSize are no
+ * longer inlined. The mods which modified the method through the HookManager are named as the cause. Otherwise the
+ * mod loading the class is named, which is usually the mod which modified it before loading it early.
+ * <p>
+ * The mode is set with the system property {@value #PROPERTY}: <code>warn</code> (default) logs the methods,
+ * <code>reject</code> also drops the transformations of a class with a method past HugeMethodLimit and defines the
+ * original class instead and <code>off</code> disables the check.
+ */
+final class JitLimits {
+
+	static final String PROPERTY = "org.gotti.wurmunlimited.modloader.jitLimits";
+
+	private static Logger logger = Logger.getLogger(JitLimits.class.getName());
+
+	enum Mode {
+		OFF, WARN, REJECT
+	}
+
+	private final Mode mode;
+	private final int hugeMethodLimit;
+	private final int freqInlineSize;
+	private final int maxInlineSize;
+
+	private int crossings;
+
+	JitLimits(Mode mode, int hugeMethodLimit, int freqInlineSize, int maxInlineSize) {
+		this.mode = mode;
+		this.hugeMethodLimit = hugeMethodLimit;
+		this.freqInlineSize = freqInlineSize;
+		this.maxInlineSize = maxInlineSize;
+	}
+
+	/**
+	 * Get the limits of the running VM and the mode from the system property.
+	 */
+	static JitLimits fromSystem() {
+		Mode mode;
+		try {
+			mode = Mode.valueOf(System.getProperty(PROPERTY, "warn").toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			logger.warning("Unknown " + PROPERTY + " mode " + System.getProperty(PROPERTY));
+			mode = Mode.WARN;
+		}
+		int hugeMethodLimit = getVMOption("HugeMethodLimit", 8000);
+		if (getVMOption("DontCompileHugeMethods", 1) == 0) {
+			hugeMethodLimit = Integer.MAX_VALUE;
+		}
+		return new JitLimits(mode, hugeMethodLimit, getVMOption("FreqInlineSize", 325), getVMOption("MaxInlineSize", 35));
+	}
+
+	/**
+	 * Get a numeric or boolean (0 or 1) HotSpot option.
+	 */
+	private static int getVMOption(String name, int defaultValue) {
+		try {
+			final String value = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class).getVMOption(name).getValue();
+			if ("true".equals(value) || "false".equals(value)) {
+				return Boolean.parseBoolean(value) ? 1 : 0;
+			}
+			return Integer.parseInt(value);
+		} catch (RuntimeException | LinkageError e) {
+			// Not a HotSpot VM
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Check the methods of a class and get the class file to define.
+	 * <p>
+	 * In reject mode a class with a method past HugeMethodLimit is defined from the original class file. Failing the
+	 * class would fail the server instead.
+	 *
+	 * @param classPool
+	 *            Class pool providing the original class file
+	 * @param ctClass
+	 *            Transformed class
+	 * @param modified
+	 *            Mods by method name and descriptor
+	 * @param loadingMod
+	 *            Mod loading the class or null
+	 * @return the class file
+	 */
+	byte[] toBytecode(ClassPool classPool, CtClass ctClass, Map<String, Set<String>> modified, String loadingMod) throws IOException, CannotCompileException {
+		final byte[] original = mode == Mode.OFF || !ctClass.isModified() ? null : readClassFile(classPool, ctClass.getName());
+		final Map<String, Integer> lengths = original != null ? getCodeLengths(ctClass.getName(), original) : null;
+		if (lengths != null) {
+			final List<String> messages = new ArrayList<>();
+			if (check(ctClass, lengths, modified, loadingMod, messages) && mode == Mode.REJECT) {
+				logger.severe(String.format("Rejected the modifications of %s, loading the original class: %s", ctClass.getName(), String.join("; ", messages)));
+				ctClass.freeze();
+				return original;
+			}
+		}
+		return ctClass.toBytecode();
+	}
+
+	/**
+	 * Check the methods of a class before it is defined.
+	 *
+	 * @param classPool
+	 *            Class pool providing the original class file
+	 * @param ctClass
+	 *            Transformed class
+	 * @param modified
+	 *            Mods by method name and descriptor
+	 * @param loadingMod
+	 *            Mod loading the class or null
+	 * @return the messages for the methods crossing a limit
+	 */
+	List<String> check(ClassPool classPool, CtClass ctClass, Map<String, Set<String>> modified, String loadingMod) {
+		final byte[] original = mode == Mode.OFF || !ctClass.isModified() ? null : readClassFile(classPool, ctClass.getName());
+		final Map<String, Integer> lengths = original != null ? getCodeLengths(ctClass.getName(), original) : null;
+		final List<String> messages = new ArrayList<>();
+		if (lengths != null) {
+			check(ctClass, lengths, modified, loadingMod, messages);
+		}
+		return messages;
+	}
+
+	/**
+	 * Compare the methods with the original code lengths and log the crossed limits.
+	 *
+	 * @return true if a method grew past HugeMethodLimit
+	 */
+	private boolean check(CtClass ctClass, Map<String, Integer> original, Map<String, Set<String>> modified, String loadingMod, List<String> messages) {
+		boolean huge = false;
+		for (Object object : ctClass.getClassFile2().getMethods()) {
+			final MethodInfo method = (MethodInfo) object;
+			final CodeAttribute codeAttribute = method.getCodeAttribute();
+			final String key = method.getName() + method.getDescriptor();
+			final Integer before = original.get(key);
+			if (codeAttribute == null || before == null) {
+				continue;
+			}
+			final int after = codeAttribute.getCodeLength();
+			final String limit;
+			if (crossed(before, after, hugeMethodLimit)) {
+				limit = String.format("HugeMethodLimit (%d), it will not be JIT compiled", hugeMethodLimit);
+				huge = true;
+			} else if (crossed(before, after, freqInlineSize)) {
+				limit = String.format("FreqInlineSize (%d), it will not be inlined", freqInlineSize);
+			} else if (crossed(before, after, maxInlineSize)) {
+				limit = String.format("MaxInlineSize (%d), it will only be inlined if hot", maxInlineSize);
+			} else {
+				continue;
+			}
+			final Set<String> mods = modified.containsKey(key) ? modified.get(key)
+					: Collections.singleton(loadingMod != null ? String.format("unknown (loaded by %s)", loadingMod) : "unknown");
+			messages.add(String.format("%s.%s%s grew from %d to %d bytes past %s. Modified by %s", ctClass.getName(), method.getName(), method.getDescriptor(), before, after, limit,
+					String.join(", ", new TreeSet<>(mods))));
+		}
+
+		if (!messages.isEmpty()) {
+			synchronized (this) {
+				crossings += messages.size();
+			}
+			for (String message : messages) {
+				logger.warning(message);
+			}
+		}
+		return huge;
+	}
+
+	private static boolean crossed(int before, int after, int limit) {
+		return before <= limit && after > limit;
+	}
+
+	/**
+	 * Read the original class file.
+	 *
+	 * @return class file or null if there is none
+	 */
+	private static byte[] readClassFile(ClassPool classPool, String className) {
+		final URL url = classPool.find(className);
+		if (url == null) {
+			return null;
+		}
+		try (InputStream in = url.openStream()) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Reading the class file of " + className + " failed", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the code lengths of the methods in a class file.
+	 *
+	 * @return code length by method name and descriptor or null if the class file is broken
+	 */
+	private static Map<String, Integer> getCodeLengths(String className, byte[] classfile) {
+		try {
+			final Map<String, Integer> lengths = new HashMap<>();
+			for (Object object : new ClassFile(new DataInputStream(new ByteArrayInputStream(classfile))).getMethods()) {
+				final MethodInfo method = (MethodInfo) object;
+				final CodeAttribute codeAttribute = method.getCodeAttribute();
+				if (codeAttribute != null) {
+					lengths.put(method.getName() + method.getDescriptor(), codeAttribute.getCodeLength());
+				}
+			}
+			return lengths;
+		} catch (IOException e) {
+			logger.log(Level.FINE, "Reading the class file of " + className + " failed", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the number of methods which crossed a limit.
+	 */
+	synchronized int getCrossings() {
+		return crossings;
+	}
+
+	/**
+	 * Log the number of methods which crossed a limit since startup.
+	 */
+	synchronized void report() {
+		if (crossings > 0) {
+			logger.warning(String.format("%d modified methods crossed a JIT limit, see the warnings above", crossings));
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javassist.CannotCompileException;
+import javassist.ClassMap;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.Opcode;
+
+/**
+ * Copy a method body from a mod class into a method of another class.
+ * <p>
+ * The source class stands in for the target class: <code>this</code>, the fields and the methods of the source class
+ * become the ones of the target class. Further stand-in classes can be mapped to the classes they replace. The copy is
+ * checked before the target is changed: both methods must have the same descriptor after the mapping and be both
+ * static or both instance methods, and every field and method used on a mapped class must exist in the class it is
+ * mapped to. Bodies with lambdas or method references are rejected, their bootstrap methods are not copied.
+ */
+final class MethodBodyCopier {
+
+	private final ClassPool classPool;
+	// Source class names to target class names
+	private final Map<String, String> classNames = new HashMap<>();
+
+	MethodBodyCopier(ClassPool classPool, Map<String, String> classNames) {
+		this.classPool = classPool;
+		if (classNames != null) {
+			this.classNames.putAll(classNames);
+		}
+	}
+
+	/**
+	 * Replace the body of the target method with the body of a source method.
+	 *
+	 * @param target
+	 *            Method to replace
+	 * @param sourceClass
+	 *            Class providing the body
+	 * @param sourceMethodName
+	 *            Name of the method providing the body. Overloads are told apart by the descriptor
+	 * @throws HookException
+	 *             if there is no matching source method or the references do not match
+	 */
+	void copy(CtMethod target, CtClass sourceClass, String sourceMethodName) throws NotFoundException, CannotCompileException, BadBytecode {
+		final ClassMap classMap = new ClassMap();
+		for (Map.Entry<String, String> entry : classNames.entrySet()) {
+			classMap.put(entry.getKey(), entry.getValue());
+		}
+		classMap.put(sourceClass.getName(), target.getDeclaringClass().getName());
+
+		final String name = target.getDeclaringClass().getName() + "." + target.getName() + target.getSignature();
+		CtMethod source = null;
+		for (CtMethod method : sourceClass.getDeclaredMethods(sourceMethodName)) {
+			if (Descriptor.rename(method.getSignature(), classMap).equals(target.getSignature())) {
+				source = method;
+			}
+		}
+		if (source == null) {
+			throw new HookException(String.format("%s has no method %s matching %s", sourceClass.getName(), sourceMethodName, name));
+		}
+		if (Modifier.isStatic(target.getModifiers()) != Modifier.isStatic(source.getModifiers())) {
+			throw new HookException(String.format("%s and %s.%s must be both static or both instance methods", name, sourceClass.getName(), sourceMethodName));
+		}
+		final CodeAttribute codeAttribute = source.getMethodInfo2().getCodeAttribute();
+		if (codeAttribute == null) {
+			throw new HookException(String.format("%s.%s%s has no body", sourceClass.getName(), sourceMethodName, source.getSignature()));
+		}
+		checkReferences(codeAttribute, classMap, name);
+
+		target.setBody(source, classMap);
+	}
+
+	/**
+	 * Check the fields and methods used on mapped classes and reject invokedynamic.
+	 */
+	private void checkReferences(CodeAttribute codeAttribute, ClassMap classMap, String name) throws BadBytecode {
+		final ConstPool constPool = codeAttribute.getConstPool();
+		final CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			final int pos = iterator.next();
+			final int opcode = iterator.byteAt(pos);
+			if (opcode == Opcode.INVOKEDYNAMIC) {
+				throw new HookException(String.format("The body for %s uses invokedynamic (a lambda or method reference) which can not be copied", name));
+			}
+			if (opcode < Opcode.GETSTATIC || opcode > Opcode.INVOKEINTERFACE) {
+				continue;
+			}
+			final int index = iterator.u16bitAt(pos + 1);
+			final String className;
+			final String memberName;
+			final String descriptor;
+			if (opcode <= Opcode.PUTFIELD) {
+				className = constPool.getFieldrefClassName(index);
+				memberName = constPool.getFieldrefName(index);
+				descriptor = constPool.getFieldrefType(index);
+			} else if (constPool.getTag(index) == ConstPool.CONST_InterfaceMethodref) {
+				className = constPool.getInterfaceMethodrefClassName(index);
+				memberName = constPool.getInterfaceMethodrefName(index);
+				descriptor = constPool.getInterfaceMethodrefType(index);
+			} else {
+				className = constPool.getMethodrefClassName(index);
+				memberName = constPool.getMethodrefName(index);
+				descriptor = constPool.getMethodrefType(index);
+			}
+
+			final Object mapped = classMap.get(Descriptor.toJvmName(className));
+			if (mapped == null) {
+				continue;
+			}
+			final String mappedClassName = Descriptor.toJavaName((String) mapped);
+			final String mappedDescriptor = Descriptor.rename(descriptor, classMap);
+			try {
+				final CtClass mappedClass = classPool.get(mappedClassName);
+				if (opcode <= Opcode.PUTFIELD) {
+					mappedClass.getField(memberName, mappedDescriptor);
+				} else if ("<init>".equals(memberName)) {
+					mappedClass.getConstructor(mappedDescriptor);
+				} else {
+					mappedClass.getMethod(memberName, mappedDescriptor);
+				}
+			} catch (NotFoundException e) {
+				throw new HookException(String.format("%s.%s %s used by the body for %s does not exist in %s", className, memberName, descriptor, name, mappedClassName));
+			}
+		}
+	}
+}
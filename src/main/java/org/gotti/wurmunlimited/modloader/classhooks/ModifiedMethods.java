@@ -0,0 +1,92 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javassist.CtClass;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * The mods which modified the methods of classes not loaded yet.
+ * <p>
+ * Modifications are attributed to the mod running on the current thread, see
+ * {@link HookManager#setCurrentMod(String)}. The JIT limit check names these mods as the cause.
+ */
+final class ModifiedMethods {
+
+	// Mod running on the current thread
+	private final ThreadLocal<String> currentMod = new ThreadLocal<>();
+
+	// Mods by method name and descriptor by class name
+	private final Map<String, Map<String, Set<String>>> modified = new HashMap<>();
+
+	/**
+	 * Set the mod running on the current thread.
+	 *
+	 * @param modName
+	 *            Mod name or null
+	 * @return the previous mod name
+	 */
+	String setCurrentMod(String modName) {
+		final String previous = currentMod.get();
+		if (modName != null) {
+			currentMod.set(modName);
+		} else {
+			currentMod.remove();
+		}
+		return previous;
+	}
+
+	/**
+	 * Get the mod running on the current thread.
+	 *
+	 * @return mod name or null
+	 */
+	String getCurrentMod() {
+		return currentMod.get();
+	}
+
+	/**
+	 * Attribute a modified method to the mod running on the current thread.
+	 *
+	 * @param ctClass
+	 *            Class
+	 * @param method
+	 *            Modified method
+	 */
+	void add(CtClass ctClass, MethodInfo method) {
+		final String modName = currentMod.get();
+		if (modName != null && !ctClass.isFrozen()) {
+			add(ctClass.getName(), method, Collections.singleton(modName));
+		}
+	}
+
+	/**
+	 * Attribute a modified method to mods.
+	 *
+	 * @param className
+	 *            Class name
+	 * @param method
+	 *            Modified method
+	 * @param modNames
+	 *            Mod names
+	 */
+	synchronized void add(String className, MethodInfo method, Set<String> modNames) {
+		modified.computeIfAbsent(className, name -> new HashMap<>()).computeIfAbsent(method.getName() + method.getDescriptor(), key -> new TreeSet<>()).addAll(modNames);
+	}
+
+	/**
+	 * Remove the modified methods of a class which is about to be defined.
+	 *
+	 * @param className
+	 *            Class name
+	 * @return the mods by method name and descriptor
+	 */
+	synchronized Map<String, Set<String>> remove(String className) {
+		final Map<String, Set<String>> methods = modified.remove(className);
+		return methods != null ? methods : Collections.emptyMap();
+	}
+}
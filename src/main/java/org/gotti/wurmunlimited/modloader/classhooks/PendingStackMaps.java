@@ -0,0 +1,143 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+
+/**
+ * Stack map rebuilds requested for modified methods.
+ * <p>
+ * The stack map of a method is rebuilt once right before its class is defined, no matter how many mods modified the
+ * method or how often.
+ */
+final class PendingStackMaps {
+
+	private static Logger logger = Logger.getLogger(PendingStackMaps.class.getName());
+
+	// Modified methods by class name with the mods which modified them
+	private final Map<String, Map<MethodInfo, Set<String>>> pending = new HashMap<>();
+
+	private int requests;
+	private int rebuilds;
+	private long rebuildTime;
+
+	/**
+	 * Request a stack map rebuild.
+	 *
+	 * @param classPool
+	 *            Class pool
+	 * @param ctClass
+	 *            Class
+	 * @param method
+	 *            Modified method
+	 * @param modName
+	 *            Mod which modified the method or null
+	 * @throws BadBytecode
+	 *             if the class is already frozen and rebuilding the stack map failed
+	 */
+	void add(ClassPool classPool, CtClass ctClass, MethodInfo method, String modName) throws BadBytecode {
+		if (ctClass.isFrozen()) {
+			// The class was already written, only later copies of the class file can use the stack map
+			method.rebuildStackMapIf6(classPool, ctClass.getClassFile2());
+			return;
+		}
+		synchronized (this) {
+			requests++;
+			pending.computeIfAbsent(ctClass.getName(), name -> new IdentityHashMap<>()).computeIfAbsent(method, m -> new TreeSet<>()).add(modName != null ? modName : "unknown");
+		}
+	}
+
+	/**
+	 * Rebuild the requested stack maps of a class.
+	 *
+	 * @param classPool
+	 *            Class pool
+	 * @param ctClass
+	 *            Class
+	 * @return the mods by modified method
+	 * @throws BadBytecode
+	 *             if a stack map could not be rebuilt
+	 */
+	Map<MethodInfo, Set<String>> rebuild(ClassPool classPool, CtClass ctClass) throws BadBytecode {
+		final Map<MethodInfo, Set<String>> methods;
+		synchronized (this) {
+			methods = pending.remove(ctClass.getName());
+		}
+		if (methods == null) {
+			return Collections.emptyMap();
+		}
+
+		final long start = System.nanoTime();
+		final ClassFile classFile = ctClass.getClassFile2();
+		int count = 0;
+		for (Map.Entry<MethodInfo, Set<String>> entry : methods.entrySet()) {
+			final MethodInfo method = entry.getKey();
+			if (!classFile.getMethods().contains(method)) {
+				// Removed after the request
+				continue;
+			}
+			try {
+				method.rebuildStackMapIf6(classPool, classFile);
+			} catch (BadBytecode e) {
+				throw new BadBytecode(String.format("Rebuilding the stack map of %s.%s%s modified by %s failed: %s", ctClass.getName(), method.getName(), method.getDescriptor(),
+						String.join(", ", entry.getValue()), e.getMessage()));
+			}
+			count++;
+		}
+		final long elapsed = System.nanoTime() - start;
+
+		synchronized (this) {
+			rebuilds += count;
+			rebuildTime += elapsed;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine(String.format("Rebuilt %d stack maps of %s in %d us", count, ctClass.getName(), TimeUnit.NANOSECONDS.toMicros(elapsed)));
+			}
+		}
+		return methods;
+	}
+
+	/**
+	 * Log the rebuilds since startup and the rebuilds saved by batching the requests.
+	 */
+	synchronized void report() {
+		if (rebuilds > 0) {
+			// Each request would have been a rebuild on its own
+			final long saved = requests > rebuilds ? rebuildTime * (requests - rebuilds) / rebuilds : 0;
+			logger.info(String.format("Rebuilt %d stack maps for %d requests in %d ms, saved %d rebuilds (about %d ms), %d classes pending", rebuilds, requests,
+					TimeUnit.NANOSECONDS.toMillis(rebuildTime), requests - rebuilds, TimeUnit.NANOSECONDS.toMillis(saved), pending.size()));
+		}
+	}
+
+	/**
+	 * Get the number of requested rebuilds.
+	 */
+	synchronized int getRequests() {
+		return requests;
+	}
+
+	/**
+	 * Get the number of rebuilt stack maps.
+	 */
+	synchronized int getRebuilds() {
+		return rebuilds;
+	}
+
+	/**
+	 * Get the number of classes with pending rebuilds.
+	 */
+	synchronized int getPendingClasses() {
+		return pending.size();
+	}
+}
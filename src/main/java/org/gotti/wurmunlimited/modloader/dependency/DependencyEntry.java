@@ -1,7 +1,7 @@
 package org.gotti.wurmunlimited.modloader.dependency;
 
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -10,15 +10,15 @@ public class DependencyEntry {
 	private final String name;
 	
 	// Set of required entries
-	private final Set<String> requires = new HashSet<>();
+	private final Set<String> requires = new LinkedHashSet<>();
 	// Set of conflicting entries
-	private final Set<String> conflicts = new HashSet<>();
+	private final Set<String> conflicts = new LinkedHashSet<>();
 	
 	// Set of entries to initialize before this.
-	private final Set<String> before = new HashSet<>();
+	private final Set<String> before = new LinkedHashSet<>();
 	
 	// Set of entries to initialize after this.
-	private final Set<String> after = new HashSet<>();
+	private final Set<String> after = new LinkedHashSet<>();
 
 	// Load element only if it's requested by another element
 	private final boolean onDemand;
@@ -0,0 +1,225 @@
+package org.gotti.wurmunlimited.modloader.dependency;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Integer indexed dependency graph.
+ * <p>
+ * Nodes are numbered in input order. An edge u -&gt; v means u must appear before v. Successors and predecessors are
+ * stored in compressed adjacency arrays without duplicates.
+ */
+class DependencyGraph {
+
+	private final List<DependencyEntry> nodes;
+	private final int[] succStart;
+	private final int[] succ;
+	private final int[] predStart;
+	private final int[] pred;
+
+	/**
+	 * Build the graph.
+	 *
+	 * @param entries
+	 *            Nodes by name
+	 */
+	DependencyGraph(Map<String, DependencyEntry> entries) {
+		this.nodes = new ArrayList<>(entries.values());
+		final int n = nodes.size();
+
+		final Map<String, Integer> index = new HashMap<>(n * 2);
+		for (int i = 0; i < n; i++) {
+			index.put(nodes.get(i).getName(), i);
+		}
+
+		// Collect all edges. Missing nodes and self references are dropped
+		IntList from = new IntList();
+		IntList to = new IntList();
+		for (int v = 0; v < n; v++) {
+			final DependencyEntry entry = nodes.get(v);
+			for (String before : entry.getBefore()) {
+				Integer u = index.get(before);
+				if (u != null && u != v) {
+					from.add(u);
+					to.add(v);
+				}
+			}
+			for (String after : entry.getAfter()) {
+				Integer w = index.get(after);
+				if (w != null && w != v) {
+					from.add(v);
+					to.add(w);
+				}
+			}
+		}
+
+		// Forward adjacency without duplicate edges
+		final int[] start = new int[n + 1];
+		for (int e = 0; e < from.size; e++) {
+			start[from.data[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			start[i + 1] += start[i];
+		}
+		final int[] fill = Arrays.copyOf(start, n);
+		final int[] raw = new int[from.size];
+		for (int e = 0; e < from.size; e++) {
+			raw[fill[from.data[e]]++] = to.data[e];
+		}
+
+		final int[] mark = new int[n];
+		Arrays.fill(mark, -1);
+		succStart = new int[n + 1];
+		final IntList successors = new IntList();
+		for (int u = 0; u < n; u++) {
+			succStart[u] = successors.size;
+			for (int e = start[u]; e < start[u + 1]; e++) {
+				int v = raw[e];
+				if (mark[v] != u) {
+					mark[v] = u;
+					successors.add(v);
+				}
+			}
+		}
+		succStart[n] = successors.size;
+		succ = successors.toArray();
+
+		// Reverse adjacency
+		predStart = new int[n + 1];
+		for (int e = 0; e < succ.length; e++) {
+			predStart[succ[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			predStart[i + 1] += predStart[i];
+		}
+		final int[] predFill = Arrays.copyOf(predStart, n);
+		pred = new int[succ.length];
+		for (int u = 0; u < n; u++) {
+			for (int e = succStart[u]; e < succStart[u + 1]; e++) {
+				pred[predFill[succ[e]]++] = u;
+			}
+		}
+	}
+
+	/**
+	 * Find on demand nodes which are not needed.
+	 * <p>
+	 * An on demand node is pruned if all nodes after it are pruned. The pruned nodes are found in one pass backwards
+	 * from the nodes without successors.
+	 *
+	 * @return pruned nodes
+	 */
+	boolean[] pruneOnDemand() {
+		final int n = nodes.size();
+		final boolean[] pruned = new boolean[n];
+		final int[] remaining = new int[n];
+		final int[] queue = new int[n];
+		int head = 0, tail = 0;
+		for (int u = 0; u < n; u++) {
+			remaining[u] = succStart[u + 1] - succStart[u];
+			if (remaining[u] == 0 && nodes.get(u).isOnDemand()) {
+				queue[tail++] = u;
+			}
+		}
+		while (head < tail) {
+			int u = queue[head++];
+			pruned[u] = true;
+			for (int e = predStart[u]; e < predStart[u + 1]; e++) {
+				int p = pred[e];
+				if (--remaining[p] == 0 && nodes.get(p).isOnDemand()) {
+					queue[tail++] = p;
+				}
+			}
+		}
+		return pruned;
+	}
+
+	/**
+	 * Topological sort of the nodes which were not pruned. Ties are broken by name.
+	 *
+	 * @param pruned
+	 *            Pruned nodes
+	 * @param layers
+	 *            Receives the layer of each node. May be null
+	 * @return Ordered node indexes
+	 */
+	int[] sort(boolean[] pruned, int[] layers) {
+		final int n = nodes.size();
+		final String[] names = new String[n];
+		for (int v = 0; v < n; v++) {
+			names[v] = nodes.get(v).getName();
+		}
+
+		// Pruned nodes have no successors left, so they are never predecessors of remaining nodes
+		final int[] inDegree = new int[n];
+		final PriorityQueue<Integer> ready = new PriorityQueue<>(Math.max(1, n), (a, b) -> names[a].compareTo(names[b]));
+		int remaining = 0;
+		for (int v = 0; v < n; v++) {
+			if (pruned[v]) {
+				continue;
+			}
+			remaining++;
+			inDegree[v] = predStart[v + 1] - predStart[v];
+			if (inDegree[v] == 0) {
+				ready.add(v);
+			}
+		}
+
+		final int[] order = new int[remaining];
+		int count = 0;
+		while (!ready.isEmpty()) {
+			int u = ready.poll();
+			for (int e = succStart[u]; e < succStart[u + 1]; e++) {
+				int v = succ[e];
+				if (layers != null) {
+					layers[v] = Math.max(layers[v], layers[u] + 1);
+				}
+				if (--inDegree[v] == 0) {
+					ready.add(v);
+				}
+			}
+			order[count++] = u;
+		}
+
+		if (count < remaining) {
+			List<String> blocked = new ArrayList<>();
+			for (int v = 0; v < n; v++) {
+				if (!pruned[v] && inDegree[v] > 0) {
+					blocked.add(names[v]);
+				}
+			}
+			throw new DependencyException("Unresolved order for the following elements: " + blocked.stream().sorted().collect(Collectors.joining(", ")));
+		}
+
+		return order;
+	}
+
+	DependencyEntry get(int index) {
+		return nodes.get(index);
+	}
+
+	int size() {
+		return nodes.size();
+	}
+
+	private static final class IntList {
+		int[] data = new int[16];
+		int size;
+
+		void add(int value) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package org.gotti.wurmunlimited.modloader.dependency;
+
+import java.util.List;
+
+/**
+ * Storage for previously resolved orders.
+ * <p>
+ * The key is derived from the complete resolver input. An order stored under a key is only valid for the exact same
+ * input.
+ */
+public interface DependencyOrderCache {
+
+	/**
+	 * Get a previously resolved order.
+	 *
+	 * @param key
+	 *            Input key
+	 * @return Names of the elements in resolved order or null if the input was not resolved before
+	 */
+	List<String> getOrder(String key);
+
+	/**
+	 * Store a resolved order.
+	 *
+	 * @param key
+	 *            Input key
+	 * @param order
+	 *            Names of the elements in resolved order
+	 */
+	void putOrder(String key, List<String> order);
+
+}
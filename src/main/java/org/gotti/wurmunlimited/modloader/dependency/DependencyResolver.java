@@ -1,21 +1,24 @@
 package org.gotti.wurmunlimited.modloader.dependency;
 
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 public class DependencyResolver<T extends DependencyProvider> {
 
 	private final Set<String> provided = new HashSet<>();
+	
+	private DependencyOrderCache cache;
 
 	public DependencyResolver() {
 	}
@@ -30,21 +33,65 @@ public class DependencyResolver<T extends DependencyProvider> {
 		Map<String, T> byName = new HashMap<>();
 		mods.forEach(mod -> byName.put(mod.getName(), mod));
 		
+		final String cacheKey = cache != null ? getCacheKey(mods) : null;
+		if (cacheKey != null) {
+			List<String> cached = cache.getOrder(cacheKey);
+			if (cached != null && byName.keySet().containsAll(cached)) {
+				return cached.stream().map(byName::get).collect(Collectors.toList());
+			}
+		}
+		
+		List<String> names = resolve(mods).stream().map(DependencyEntry::getName).collect(Collectors.toList());
+		if (cacheKey != null) {
+			cache.putOrder(cacheKey, names);
+		}
+		return names.stream().map(byName::get).collect(Collectors.toList());
+		
+	}
+	
+	/**
+	 * Order the list according to the dependencies and group the elements in layers.
+	 * <p>
+	 * All elements an element depends on are in earlier layers. Elements in the same layer are independent of each
+	 * other. Each layer is sorted in the order returned by {@link #order(List)}.
+	 * @param mods Elements
+	 * @return Layers of ordered elements
+	 */
+	public List<List<T>> orderLayers(List<? extends T> mods) {
+		
+		Map<String, T> byName = new HashMap<>();
+		mods.forEach(mod -> byName.put(mod.getName(), mod));
+		
+		DependencyGraph graph = buildGraph(mods);
+		int[] layers = new int[graph.size()];
+		List<List<T>> result = new ArrayList<>();
+		for (int node : graph.sort(graph.pruneOnDemand(), layers)) {
+			while (result.size() <= layers[node]) {
+				result.add(new ArrayList<>());
+			}
+			result.get(layers[node]).add(byName.get(graph.get(node).getName()));
+		}
+		return result;
+	}
+	
+	private List<DependencyEntry> resolve(List<? extends T> mods) {
+		DependencyGraph graph = buildGraph(mods);
+		int[] order = graph.sort(graph.pruneOnDemand(), null);
+		List<DependencyEntry> result = new ArrayList<>(order.length);
+		for (int node : order) {
+			result.add(graph.get(node));
+		}
+		return result;
+	}
+	
+	private DependencyGraph buildGraph(List<? extends T> mods) {
 		Map<String, DependencyEntry> entries = new LinkedHashMap<>();
 		mods.forEach(mod -> entries.put(mod.getName(), new DependencyEntry(mod)));
 		
 		checkRequires(entries);
 		checkConflicts(entries);
-		removeMissing(entries);
-		removeSelfReference(entries);
-		resolveAfter(entries);
-		resolveBefore(entries);
-		
-		do {} while (pruneOnDemand(entries));
-		
-		List<DependencyEntry> order = resolveOrder(entries);
-		return order.stream().map(DependencyEntry::getName).map(byName::get).collect(Collectors.toList());
 		
+		return new DependencyGraph(entries);
 	}
 	
 	/**
@@ -58,37 +105,39 @@ public class DependencyResolver<T extends DependencyProvider> {
 		return this;
 	}
 
-	private List<DependencyEntry> resolveOrder(Map<String, DependencyEntry> entries) {
-		Set<DependencyEntry> blocked = new HashSet<DependencyEntry>();
-		TreeSet<DependencyEntry> ready = new TreeSet<DependencyEntry>(Comparator.comparing(DependencyEntry::getName));
-		List<DependencyEntry> order = new LinkedList<>();
-		
-		for (DependencyEntry mod : entries.values()) {
-			if (mod.getBefore().isEmpty()) {
-				ready.add(mod);
-			} else {
-				blocked.add(mod);
-			}
-		}
-		
-		while (!ready.isEmpty()) {
-			DependencyEntry entry = ready.pollFirst();
-			for (String after : entry.getAfter()) {
-				DependencyEntry mod = entries.get(after);
-				mod.getBefore().remove(entry.getName());
-				if (mod.getBefore().isEmpty()) {
-					blocked.remove(mod);
-					ready.add(mod);
-				}
-			}
-			order.add(entry);
+	/**
+	 * Reuse previously resolved orders. The cache is only consulted if the resolver input is exactly the same.
+	 * @param cache Order cache
+	 * @return this
+	 */
+	public DependencyResolver<T> cache(DependencyOrderCache cache) {
+		this.cache = cache;
+		return this;
+	}
+	
+	/**
+	 * Build a key from everything that influences the resolved order.
+	 */
+	private String getCacheKey(List<? extends T> mods) {
+		final StringBuilder builder = new StringBuilder();
+		appendSorted(builder, provided);
+		for (T mod : mods) {
+			builder.append('\n').append(mod.getName()).append(mod.isOnDemand() ? "?" : "!");
+			appendSorted(builder, mod.getRequires());
+			appendSorted(builder, mod.getConflicts());
+			appendSorted(builder, mod.getBefore());
+			appendSorted(builder, mod.getAfter());
 		}
-		
-		if (!blocked.isEmpty()) {
-			throw new DependencyException("Unresolved order for the following elements: " + blocked.stream().map(DependencyEntry::getName).sorted().collect(Collectors.joining(", ")));
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-1").digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+			return new BigInteger(1, digest).toString(16);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
 		}
-		
-		return order;
+	}
+	
+	private static void appendSorted(StringBuilder builder, Collection<String> values) {
+		builder.append('[').append(values.stream().sorted().collect(Collectors.joining(","))).append(']');
 	}
 
 	private void checkRequires(Map<String, DependencyEntry> entries) {
@@ -110,46 +159,4 @@ public class DependencyResolver<T extends DependencyProvider> {
 			}
 		}
 	}
-	
-	private void resolveAfter(Map<String, DependencyEntry> entries) {
-		for (DependencyEntry mod : entries.values()) {
-			mod.getAfter().forEach(info -> entries.get(info).addBefore(mod.getName()));
-		}
-	}
-	
-	private void resolveBefore(Map<String, DependencyEntry> entries) {
-		for (DependencyEntry mod : entries.values()) {
-			mod.getBefore().forEach(info -> entries.get(info).addAfter(mod.getName()));
-		}
-	}
-	
-	private void removeSelfReference(Map<String, DependencyEntry> entries) {
-		for (DependencyEntry mod : entries.values()) {
-			String name = mod.getName();
-			mod.getBefore().removeIf(name::equals);
-			mod.getAfter().removeIf(name::equals);
-		}
-	}
-	
-	private void removeMissing(Map<String, DependencyEntry> entries) {
-		final Predicate<String> present = entries::containsKey;
-		final Predicate<String> missing = present.negate();
-		for (DependencyEntry mod : entries.values()) {
-			mod.getBefore().removeIf(missing);
-			mod.getAfter().removeIf(missing);
-		}
-	}
-	
-	private boolean pruneOnDemand(Map<String, DependencyEntry> entries) {
-		final Set<String> toRemove = new HashSet<>();
-		for (DependencyEntry mod : entries.values()) {
-			if (mod.isOnDemand() && mod.getAfter().isEmpty()) {
-				for (String before : mod.getBefore()) {
-					entries.get(before).getAfter().remove(mod.getName());
-				}
-				toRemove.add(mod.getName());
-			}
-		}
-		return entries.keySet().removeAll(toRemove);
-	}
 }
@@ -0,0 +1,99 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.jar.JarFile;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+public class ClassDataSharingTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar() throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass base = classPool.makeClass("org.example.cds.Base");
+		final CtClass sub = classPool.makeClass("org.example.cds.Sub", base);
+		sub.addInterface(classPool.get("java.io.Serializable"));
+		return TestJars.create(folder.getRoot().toPath().resolve("mod.jar"), base, sub);
+	}
+
+	@Test
+	public void testClassList() throws Exception {
+		final Path cds = folder.newFolder("cds").toPath();
+		final ClassDataSharing classDataSharing = new ClassDataSharing(cds, 17);
+		final Path jar = createJar();
+		ModClassLoader.setClassDefinitionListener(classDataSharing);
+		try (ModClassLoader loader = new ModClassLoader(Collections.singletonList(jar), null)) {
+			loader.loadClass("org.example.cds.Sub");
+		} finally {
+			ModClassLoader.setClassDefinitionListener(null);
+		}
+
+		classDataSharing.configure("key");
+		classDataSharing.writeClassList();
+
+		final Path classes = cds.resolve(ClassDataSharing.CLASSES_JAR).toAbsolutePath();
+		Assertions.assertThat(Files.readAllLines(cds.resolve(ClassDataSharing.CLASS_LIST), StandardCharsets.UTF_8)).containsExactly(
+				"java/lang/Object id: 0",
+				"org/example/cds/Base id: 1 super: 0 source: " + classes,
+				"java/io/Serializable id: 2",
+				"org/example/cds/Sub id: 3 super: 1 interfaces: 2 source: " + classes);
+
+		try (JarFile original = new JarFile(jar.toFile()); JarFile recorded = new JarFile(classes.toFile())) {
+			for (String name : new String[] { "org/example/cds/Base.class", "org/example/cds/Sub.class" }) {
+				Assertions.assertThat(recorded.getEntry(name).getCrc()).isEqualTo(original.getEntry(name).getCrc());
+			}
+		}
+		Assertions.assertThat(Files.readAllLines(cds.resolve(ClassDataSharing.DUMP_OPTIONS), StandardCharsets.UTF_8)).contains("-Xshare:dump");
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		final Path cds = folder.newFolder("cds").toPath();
+		final Path archive = cds.resolve(ClassDataSharing.ARCHIVE).toAbsolutePath();
+		final Path options = cds.resolve(ClassDataSharing.OPTIONS);
+
+		new ClassDataSharing(cds, 17).configure("a");
+		Assertions.assertThat(Files.readAllLines(options, StandardCharsets.UTF_8)).containsExactly(ClassDataSharing.quote("-XX:ArchiveClassesAtExit=" + archive));
+
+		Files.write(archive, new byte[1]);
+		new ClassDataSharing(cds, 17).configure("a");
+		Assertions.assertThat(Files.readAllLines(options, StandardCharsets.UTF_8)).containsExactly(ClassDataSharing.quote("-XX:SharedArchiveFile=" + archive));
+
+		new ClassDataSharing(cds, 17).configure("b");
+		Assertions.assertThat(archive).doesNotExist();
+		Assertions.assertThat(Files.readAllLines(options, StandardCharsets.UTF_8)).containsExactly(ClassDataSharing.quote("-XX:ArchiveClassesAtExit=" + archive));
+
+		// An archive which can not be deleted still switches to creating a new one
+		Files.createDirectories(archive.resolve("locked"));
+		new ClassDataSharing(cds, 17).configure("c");
+		Assertions.assertThat(Files.readAllLines(options, StandardCharsets.UTF_8)).containsExactly(ClassDataSharing.quote("-XX:ArchiveClassesAtExit=" + archive));
+		Files.delete(archive.resolve("locked"));
+		Files.delete(archive);
+
+		new ClassDataSharing(cds, 11).configure("b");
+		Assertions.assertThat(Files.readAllLines(options, StandardCharsets.UTF_8)).containsExactly(ClassDataSharing.quote("-XX:SharedArchiveFile=" + archive), "-Xshare:auto");
+	}
+
+	@Test
+	public void testKey() throws Exception {
+		final Path bundle = folder.getRoot().toPath().resolve("example" + ModBundle.EXTENSION);
+		Files.write(bundle, new byte[1]);
+		final String key = ClassDataSharing.createKey("1", Collections.singletonList(bundle), Collections.emptyList());
+		Assertions.assertThat(ClassDataSharing.createKey("1", Collections.singletonList(bundle), Collections.emptyList())).isEqualTo(key);
+
+		// An updated bundle invalidates the archive
+		Files.write(bundle, new byte[2]);
+		Assertions.assertThat(ClassDataSharing.createKey("1", Collections.singletonList(bundle), Collections.emptyList())).isNotEqualTo(key);
+	}
+}
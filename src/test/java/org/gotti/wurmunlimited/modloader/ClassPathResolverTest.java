@@ -0,0 +1,71 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ClassPathResolverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path modPath;
+
+	@Before
+	public void setUp() throws Exception {
+		modPath = folder.newFolder("mod").toPath();
+		Files.createDirectories(modPath.resolve("lib"));
+		Files.createDirectories(modPath.resolve("assets/deep/deeper"));
+		Files.createFile(modPath.resolve("mod.jar"));
+		Files.createFile(modPath.resolve("lib/b.jar"));
+		Files.createFile(modPath.resolve("lib/a.jar"));
+		Files.createFile(modPath.resolve("assets/deep/deeper/c.jar"));
+	}
+
+	private String relative(Path path) {
+		return modPath.relativize(path).toString().replace('\\', '/');
+	}
+
+	@Test
+	public void testOrder() {
+		List<Path> entries = new ClassPathResolver().resolve(modPath, "mod.jar,lib/*.jar");
+		Assertions.assertThat(entries).extracting(this::relative).containsExactly("mod.jar", "lib/a.jar", "lib/b.jar");
+	}
+
+	@Test
+	public void testDuplicates() {
+		List<Path> entries = new ClassPathResolver().resolve(modPath, "lib/a.jar,lib/*.jar");
+		Assertions.assertThat(entries).extracting(this::relative).containsExactly("lib/a.jar", "lib/b.jar");
+	}
+
+	@Test
+	public void testRecursive() {
+		List<Path> entries = new ClassPathResolver().resolve(modPath, "**.jar");
+		Assertions.assertThat(entries).extracting(this::relative).containsExactly("assets/deep/deeper/c.jar", "lib/a.jar", "lib/b.jar", "mod.jar");
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		Path cacheFile = folder.getRoot().toPath().resolve("classpath.idx");
+		ClassPathResolver resolver = ClassPathResolver.load(cacheFile);
+		Assertions.assertThat(resolver.resolve(modPath, "lib/*.jar")).extracting(this::relative).containsExactly("lib/a.jar", "lib/b.jar");
+		resolver.save();
+
+		// A cached result is reused while the folders are unchanged
+		resolver = ClassPathResolver.load(cacheFile);
+		Assertions.assertThat(resolver.resolve(modPath, "lib/*.jar")).extracting(this::relative).containsExactly("lib/a.jar", "lib/b.jar");
+
+		// Adding a file changes the folder modification time
+		Files.createFile(modPath.resolve("lib/0.jar"));
+		Files.setLastModifiedTime(modPath.resolve("lib"), FileTime.fromMillis(Files.getLastModifiedTime(modPath.resolve("lib")).toMillis() + 2000));
+		resolver = ClassPathResolver.load(cacheFile);
+		Assertions.assertThat(resolver.resolve(modPath, "lib/*.jar")).extracting(this::relative).containsExactly("lib/0.jar", "lib/a.jar", "lib/b.jar");
+	}
+}
@@ -0,0 +1,103 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.gotti.wurmunlimited.modloader.classhooks.CodeReference;
+import org.gotti.wurmunlimited.modloader.classhooks.CrossReferenceIndex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtNewMethod;
+import javassist.bytecode.Opcode;
+
+public class CrossReferenceCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar(String body) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass ctClass = classPool.makeClass("org.example.Server");
+		ctClass.addField(CtField.make("private int counter;", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public int poll(int amount) { " + body + " }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public long max(long a, long b) { return Math.max(a, b); }", ctClass));
+		return new TestJars().entry("META-INF/MANIFEST.MF", new byte[0]).classes(ctClass).write(folder.getRoot().toPath().resolve("server.jar"));
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		final Path jar = createJar("counter += amount; System.out.println(\"polled\"); return Math.max(counter, 1000);");
+		final Path cacheFile = folder.getRoot().toPath().resolve("cache").resolve("xref.idx");
+		final CrossReferenceIndex index = new CrossReferenceCache(cacheFile).get(jar);
+		Assertions.assertThat(index.getClassCount()).isEqualTo(1);
+
+		final List<CodeReference> calls = index.getMethodCalls("java.lang.Math", "max", null);
+		Assertions.assertThat(calls).hasSize(2);
+		Assertions.assertThat(index.getMethodCalls("java.lang.Math", "max", "(II)I")).hasSize(1);
+		final CodeReference call = index.getMethodCalls("java.lang.Math", "max", "(JJ)J").get(0);
+		Assertions.assertThat(call.getClassName()).isEqualTo("org.example.Server");
+		Assertions.assertThat(call.getMethodName()).isEqualTo("max");
+		Assertions.assertThat(call.getDescriptor()).isEqualTo("(JJ)J");
+		Assertions.assertThat(call.getOpcode()).isEqualTo(Opcode.INVOKESTATIC);
+
+		final List<CodeReference> accesses = index.getFieldAccesses("org.example.Server", "counter");
+		Assertions.assertThat(accesses).extracting(CodeReference::getOpcode).containsExactly(Opcode.GETFIELD, Opcode.PUTFIELD, Opcode.GETFIELD);
+		Assertions.assertThat(index.getFieldAccesses("java.lang.System", "out")).hasSize(1);
+		Assertions.assertThat(index.getConstantUses("polled")).hasSize(1);
+		Assertions.assertThat(index.getConstantUses(1000)).extracting(CodeReference::getOpcode).containsExactly(Opcode.SIPUSH);
+		Assertions.assertThat(index.getConstantUses(1000L)).isEmpty();
+		Assertions.assertThat(index.getMethodCalls("java.lang.Math", "min", null)).isEmpty();
+
+		// Loaded from the cache
+		final FileTime written = Files.getLastModifiedTime(cacheFile);
+		final CrossReferenceIndex cached = new CrossReferenceCache(cacheFile).get(jar);
+		Assertions.assertThat(Files.getLastModifiedTime(cacheFile)).isEqualTo(written);
+		Assertions.assertThat(cached.getMethodCalls("java.lang.Math", "max", null)).extracting(CodeReference::toString)
+				.containsExactlyElementsOf(calls.stream().map(CodeReference::toString)::iterator);
+		Assertions.assertThat(cached.getConstantUses("polled")).hasSize(1);
+
+		// A touched jar keeps the index and updates the fingerprint in the cache
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 5000));
+		Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(0));
+		Assertions.assertThat(new CrossReferenceCache(cacheFile).get(jar).getConstantUses("polled")).hasSize(1);
+		Assertions.assertThat(Files.getLastModifiedTime(cacheFile).toMillis()).isGreaterThan(0);
+
+		// Rebuilt after the jar changed
+		createJar("return Math.min(amount, 1000);");
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+		final CrossReferenceIndex rebuilt = new CrossReferenceCache(cacheFile).get(jar);
+		Assertions.assertThat(rebuilt.getMethodCalls("java.lang.Math", "min", "(II)I")).hasSize(1);
+		Assertions.assertThat(rebuilt.getConstantUses("polled")).isEmpty();
+	}
+
+	@Test
+	public void testJars() throws Exception {
+		final Path server = createJar("return amount;");
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass ctClass = classPool.makeClass("org.example.Shared");
+		ctClass.addMethod(CtNewMethod.make("public static String version() { return \"shared\"; }", ctClass));
+		final Path shared = TestJars.create(folder.getRoot().toPath().resolve("common.jar"), ctClass);
+
+		final Path cacheFile = folder.getRoot().toPath().resolve("xref.idx");
+		final CrossReferenceIndex index = new CrossReferenceCache(cacheFile).get(Arrays.asList(server, shared));
+		Assertions.assertThat(index.getClassCount()).isEqualTo(2);
+		Assertions.assertThat(index.getConstantUses("shared")).hasSize(1);
+
+		// A change of any jar rebuilds the index
+		createJar("return amount + 100000;");
+		Files.setLastModifiedTime(server, FileTime.fromMillis(Files.getLastModifiedTime(server).toMillis() + 10000));
+		Assertions.assertThat(new CrossReferenceCache(cacheFile).get(Arrays.asList(server, shared)).getConstantUses(100000)).hasSize(1);
+
+		// The cache of other jars is not used
+		Assertions.assertThat(new CrossReferenceCache(cacheFile).get(server).getClassCount()).isEqualTo(1);
+	}
+}
@@ -0,0 +1,98 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+
+public class GameVersionCacheTest {
+
+	private static final String VERSION_CLASS = "org.example.version.SteamVersion";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar(String version) throws Exception {
+		final CtClass ctClass = new ClassPool(true).makeClass(VERSION_CLASS);
+		ctClass.addField(CtField.make("public static final String VERSION = \"" + version + "\";", ctClass));
+		return TestJars.create(folder.getRoot().toPath().resolve("server.jar"), ctClass);
+	}
+
+	private static ClassPool createClassPool(Path jar) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.insertClassPath(jar.toString());
+		return classPool;
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		final Path jar = createJar("1.0");
+		final Path cacheFile = folder.getRoot().toPath().resolve("cache").resolve("gameversion.properties");
+		final AtomicInteger probes = new AtomicInteger();
+		final String[] version = { "1.0" };
+
+		Assertions.assertThat(GameVersionCache.locateJar(createClassPool(jar), VERSION_CLASS)).isEqualTo(jar);
+
+		// Miss
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> {
+			probes.incrementAndGet();
+			return version[0];
+		})).isEqualTo("1.0");
+		Assertions.assertThat(probes.get()).isEqualTo(1);
+		Assertions.assertThat(cacheFile).exists();
+
+		// Hit, also if the jar was touched but not changed
+		version[0] = "probed";
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> {
+			probes.incrementAndGet();
+			return version[0];
+		})).isEqualTo("1.0");
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> {
+			probes.incrementAndGet();
+			return version[0];
+		})).isEqualTo("1.0");
+		Assertions.assertThat(probes.get()).isEqualTo(1);
+		final Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(cacheFile)) {
+			properties.load(in);
+		}
+		Assertions.assertThat(properties.getProperty("lastModified")).isEqualTo(Long.toString(Files.getLastModifiedTime(jar).toMillis()));
+		Assertions.assertThat(cacheFile.resolveSibling("gameversion.properties.tmp")).doesNotExist();
+
+		// The jar changed
+		createJar("2.0-changed");
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 20000));
+		version[0] = "2.0";
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> {
+			probes.incrementAndGet();
+			return version[0];
+		})).isEqualTo("2.0");
+		Assertions.assertThat(probes.get()).isEqualTo(2);
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> "probed")).isEqualTo("2.0");
+
+		// A damaged cache is probed again
+		Files.write(cacheFile, "version=3.0\nsize=x\n".getBytes());
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(createClassPool(jar), VERSION_CLASS, () -> "probed")).isEqualTo("probed");
+	}
+
+	@Test
+	public void testNotInJar() throws Exception {
+		final Path cacheFile = folder.getRoot().toPath().resolve("cache").resolve("gameversion.properties");
+		final ClassPool classPool = new ClassPool(true);
+		Assertions.assertThat(GameVersionCache.locateJar(classPool, VERSION_CLASS)).isNull();
+		Assertions.assertThat(new GameVersionCache(cacheFile).get(classPool, VERSION_CLASS, () -> "probed")).isEqualTo("probed");
+		Assertions.assertThat(cacheFile).doesNotExist();
+	}
+}
@@ -0,0 +1,52 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.file.Path;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+public class IndexedJarClassPathTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar(String name, String... classNames) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		final TestJars jar = new TestJars();
+		for (String className : classNames) {
+			CtClass ctClass = classPool.makeClass(className);
+			// Tag the class with the jar it came from
+			ctClass.setGenericSignature("L" + name + ";");
+			jar.classes(ctClass);
+		}
+		return jar.write(folder.getRoot().toPath().resolve(name));
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		final IndexedJarClassPath classPath = new IndexedJarClassPath();
+		classPath.addJar(createJar("a.jar", "org.example.First", "org.example.Shared"));
+		classPath.addJar(createJar("b.jar", "org.example.Second", "org.example.Shared"));
+
+		final ClassPool classPool = new ClassPool(true);
+		classPool.appendClassPath(classPath);
+		try {
+			Assertions.assertThat(classPool.get("org.example.First").getURL().toString()).startsWith("jar:").endsWith("a.jar!/org/example/First.class");
+			Assertions.assertThat(classPool.get("org.example.Second").getURL().toString()).endsWith("b.jar!/org/example/Second.class");
+
+			// The first jar wins
+			Assertions.assertThat(classPool.get("org.example.Shared").getGenericSignature()).isEqualTo("La.jar;");
+
+			Assertions.assertThat(classPath.openClassfile("org.example.Missing")).isNull();
+			Assertions.assertThatThrownBy(() -> classPool.get("org.example.Missing")).isInstanceOf(NotFoundException.class);
+		} finally {
+			classPath.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JoinClassLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Mod classloader recording the requested test classes.
+	 */
+	private static class RecordingClassLoader extends URLClassLoader {
+		final List<String> requested = Collections.synchronizedList(new ArrayList<>());
+
+		RecordingClassLoader(Path jar, ClassLoader parent) throws IOException {
+			super(new URL[] { jar.toUri().toURL() }, parent);
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (name.startsWith("org.example.")) {
+				requested.add(name);
+			}
+			return super.loadClass(name, resolve);
+		}
+	}
+
+	private Path createJar(String name, String className, String resource) throws Exception {
+		return new TestJars().classes(className).entry(resource, name.getBytes(StandardCharsets.UTF_8)).write(folder.getRoot().toPath().resolve(name));
+	}
+
+	@Test
+	public void testPackageIndex() throws Exception {
+		try (RecordingClassLoader a = new RecordingClassLoader(createJar("a.jar", "org.example.a.First", "org/example/a/first.txt"), null);
+				RecordingClassLoader b = new RecordingClassLoader(createJar("b.jar", "org.example.b.Second", "org/example/b/second.txt"), null)) {
+			JoinClassLoader loader = new JoinClassLoader(null, a, b);
+
+			Assertions.assertThat(loader.loadClass("org.example.b.Second").getClassLoader()).isSameAs(b);
+			Assertions.assertThat(loader.loadClass("org.example.a.First").getClassLoader()).isSameAs(a);
+			Assertions.assertThat(loader.getResource("org/example/b/second.txt")).isNotNull();
+			Assertions.assertThat(loader.getResource("org/example/b/missing.txt")).isNull();
+
+			// Each lookup went straight to the owning delegate
+			Assertions.assertThat(a.requested).containsExactly("org.example.a.First");
+			Assertions.assertThat(b.requested).containsExactly("org.example.b.Second");
+		}
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception {
+		try (RecordingClassLoader a = new RecordingClassLoader(createJar("a.jar", "org.example.a.First", "org/example/a/first.txt"), null)) {
+			JoinClassLoader loader = new JoinClassLoader(null, a);
+
+			Assertions.assertThatThrownBy(() -> loader.loadClass("org.example.a.Missing")).isInstanceOf(ClassNotFoundException.class);
+			Assertions.assertThatThrownBy(() -> loader.loadClass("org.example.a.Missing")).isInstanceOf(ClassNotFoundException.class);
+			Assertions.assertThatThrownBy(() -> loader.loadClass("org.example.other.Missing")).isInstanceOf(ClassNotFoundException.class);
+			Assertions.assertThat(a.requested).containsExactly("org.example.a.Missing");
+		}
+	}
+
+	@Test
+	public void testImported() throws Exception {
+		try (RecordingClassLoader a = new RecordingClassLoader(createJar("a.jar", "org.example.a.First", "org/example/a/first.txt"), null);
+				RecordingClassLoader b = new RecordingClassLoader(createJar("b.jar", "org.example.b.Second", "org/example/b/second.txt"), new JoinClassLoader(null, a))) {
+			JoinClassLoader loader = new JoinClassLoader(null, b);
+
+			// Classes of a are reachable through the import of b
+			Assertions.assertThat(loader.loadClass("org.example.a.First").getClassLoader()).isSameAs(a);
+		}
+	}
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		final int classes = 200;
+		final TestJars many = new TestJars();
+		for (int i = 0; i < classes; i++) {
+			many.classes("org.example.many.C" + i);
+		}
+		final Path jar = many.write(folder.getRoot().toPath().resolve("many.jar"));
+
+		try (RecordingClassLoader a = new RecordingClassLoader(jar, null)) {
+			final JoinClassLoader loader = new JoinClassLoader(null, a);
+			final ExecutorService executor = Executors.newFixedThreadPool(16);
+			try {
+				final List<Future<List<Class<?>>>> futures = new ArrayList<>();
+				for (int t = 0; t < 16; t++) {
+					final int offset = t * 13;
+					futures.add(executor.submit(() -> {
+						List<Class<?>> loaded = new ArrayList<>();
+						for (int i = 0; i < classes; i++) {
+							loaded.add(loader.loadClass("org.example.many.C" + ((i + offset) % classes)));
+						}
+						return loaded;
+					}));
+				}
+				final Set<Class<?>> distinct = new HashSet<>();
+				for (Future<List<Class<?>>> future : futures) {
+					distinct.addAll(future.get());
+				}
+				Assertions.assertThat(distinct).hasSize(classes);
+			} finally {
+				executor.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class LifecycleRunnerTest {
+
+	private static ModInfo mod(String name, Boolean threadSafe) {
+		final Properties properties = new Properties();
+		if (threadSafe != null) {
+			properties.setProperty("threadSafe", threadSafe.toString());
+		}
+		return new ModInfo(properties, name);
+	}
+
+	private static List<String> run(List<ModInfo> mods, List<List<ModInfo>> layers, boolean threadSafeDefault, CountDownLatch concurrent) {
+		final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+		try (LifecycleRunner<ModInfo> runner = new LifecycleRunner<>(mods, layers)) {
+			runner.run("test", mod -> !mod.getName().startsWith("skip"), threadSafeDefault, mod -> {
+				if (mod.isThreadSafe(threadSafeDefault) && concurrent != null) {
+					// All thread safe mods of the batch have to run at the same time
+					concurrent.countDown();
+					try {
+						Assertions.assertThat(concurrent.await(1, TimeUnit.MINUTES)).isTrue();
+					} catch (InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				calls.add(mod.getName());
+			});
+		}
+		return calls;
+	}
+
+	@Test
+	public void testResolvedOrder() throws Exception {
+		// b depends on a
+		final ModInfo a = mod("a", null);
+		final ModInfo b = mod("b", null);
+		final ModInfo c = mod("c", false);
+		final ModInfo skipped = mod("skipped", true);
+		final List<ModInfo> mods = Arrays.asList(a, skipped, b, c);
+		final List<List<ModInfo>> layers = Arrays.asList(Arrays.asList(a, skipped, c), Arrays.asList(b));
+
+		Assertions.assertThat(run(mods, layers, false, null)).containsExactly("a", "b", "c");
+	}
+
+	@Test
+	public void testConcurrent() throws Exception {
+		// b depends on a, e depends on d
+		final ModInfo a = mod("a", true);
+		final ModInfo b = mod("b", true);
+		final ModInfo c = mod("c", true);
+		final ModInfo d = mod("d", false);
+		final ModInfo e = mod("e", true);
+		final List<ModInfo> mods = Arrays.asList(a, b, c, d, e);
+		final List<List<ModInfo>> layers = Arrays.asList(Arrays.asList(a, c, d), Arrays.asList(b, e));
+
+		// a and c run together, b has to wait for a, e can not be moved before d
+		final List<String> calls = run(mods, layers, false, new CountDownLatch(2));
+		Assertions.assertThat(calls.subList(0, 2)).containsExactlyInAnyOrder("a", "c");
+		Assertions.assertThat(calls.subList(2, 5)).containsExactly("b", "d", "e");
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		final ModInfo a = mod("a", true);
+		final ModInfo b = mod("b", true);
+		final List<ModInfo> mods = Arrays.asList(a, b);
+		try (LifecycleRunner<ModInfo> runner = new LifecycleRunner<>(mods, Arrays.asList(mods))) {
+			Assertions.assertThatThrownBy(() -> runner.run("test", mod -> true, false, mod -> {
+				throw new IllegalStateException(mod.getName());
+			})).isInstanceOf(IllegalStateException.class);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModBundleTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] createJar(String... classNames) throws Exception {
+		return new TestJars().classes(classNames).entry("assets/some file.txt", classNames[0].getBytes(StandardCharsets.UTF_8)).toByteArray();
+	}
+
+	private Path createBundle() throws Exception {
+		return new TestJars()
+				.entry(ModBundle.DESCRIPTOR, "classname=org.example.bundle.Mod\nclasspath=example.jar,lib/*.jar\n".getBytes(StandardCharsets.ISO_8859_1))
+				.entry(ModBundle.CONFIG_TEMPLATE, "setting=1\n".getBytes(StandardCharsets.ISO_8859_1))
+				.stored("example.jar", createJar("org.example.bundle.Mod"))
+				.stored("lib/", new byte[0])
+				.entry("lib/library.jar", createJar("org.example.library.Util"))
+				.stored("unused.jar", createJar("org.example.unused.Unused"))
+				.write(folder.getRoot().toPath().resolve("example" + ModBundle.EXTENSION));
+	}
+
+	private static String read(InputStream inputStream) throws Exception {
+		try (InputStream in = inputStream) {
+			return new String(ModJarMetadata.readFully(in), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Test
+	public void testMetadata() throws Exception {
+		final Path path = createBundle();
+		Assertions.assertThat(ModBundle.getModName(path)).isEqualTo("example");
+
+		final ModJarMetadata metadata = ModBundle.readMetadata(path);
+		Assertions.assertThat(metadata.getProperties().getProperty("classname")).isEqualTo("org.example.bundle.Mod");
+		Assertions.assertThat(new String(metadata.getConfigTemplate(), StandardCharsets.ISO_8859_1)).isEqualTo("setting=1\n");
+
+		final ModBundle bundle = ModBundle.open(path);
+		Assertions.assertThat(bundle.resolve(metadata.getProperties().getProperty("classpath"))).containsExactly("example.jar", "lib/library.jar");
+	}
+
+	@Test
+	public void testClassLoader() throws Exception {
+		final ModBundle bundle = ModBundle.open(createBundle());
+		final List<String> names = bundle.resolve("example.jar,lib/*.jar");
+		try (ModClassLoader loader = new ModClassLoader(bundle, names, null)) {
+			Assertions.assertThat(loader.getMappedJarCount()).isEqualTo(2);
+
+			for (String name : Arrays.asList("org.example.bundle.Mod", "org.example.library.Util")) {
+				Class<?> c = loader.loadClass(name);
+				Assertions.assertThat(c.getClassLoader()).isSameAs(loader);
+			}
+			Assertions.assertThatThrownBy(() -> loader.loadClass("org.example.unused.Unused")).isInstanceOf(ClassNotFoundException.class);
+
+			final URL url = loader.getResource("assets/some file.txt");
+			Assertions.assertThat(url).isNotNull();
+			Assertions.assertThat(url.getProtocol()).isEqualTo("modbundle");
+			Assertions.assertThat(read(url.openStream())).isEqualTo("org.example.bundle.Mod");
+			Assertions.assertThat(read(loader.getResourceAsStream("assets/some file.txt"))).isEqualTo("org.example.bundle.Mod");
+
+			// Resources of all nested jars in classpath order
+			final List<URL> urls = Collections.list(loader.getResources("assets/some file.txt"));
+			Assertions.assertThat(urls).hasSize(2);
+			Assertions.assertThat(read(urls.get(0).openStream())).isEqualTo("org.example.bundle.Mod");
+			Assertions.assertThat(read(urls.get(1).openStream())).isEqualTo("org.example.library.Util");
+			Assertions.assertThat(Collections.list(loader.getResources("org/example/unused/Unused.class"))).isEmpty();
+			Assertions.assertThat(loader.loadClass("org.example.library.Util").getProtectionDomain().getCodeSource().getLocation().toString()).endsWith("!/lib/library.jar");
+			Assertions.assertThat(read(loader.getResource("org/example/library/Util.class").openStream())).isNotEmpty();
+		}
+	}
+}
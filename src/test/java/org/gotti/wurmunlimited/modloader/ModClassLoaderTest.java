@@ -0,0 +1,115 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+
+public class ModClassLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar(String name, Manifest manifest) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		return new TestJars().manifest(manifest)
+				.stored("org/example/mapped/", new byte[0])
+				.stored("org/example/mapped/Stored.class", classPool.makeClass("org.example.mapped.Stored").toBytecode())
+				.entry("org/example/mapped/Deflated.class", classPool.makeClass("org.example.mapped.Deflated").toBytecode())
+				.entry("assets/some file.txt", "asset content".getBytes(StandardCharsets.UTF_8))
+				.write(folder.getRoot().toPath().resolve(name));
+	}
+
+	private static Manifest manifest() {
+		final Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "Mapped");
+		return manifest;
+	}
+
+	@Test
+	public void testMapped() throws Exception {
+		final Path jar = createJar("mapped.jar", manifest());
+		try (ModClassLoader loader = new ModClassLoader(Collections.singletonList(jar), null);
+				URLClassLoader reference = new URLClassLoader(new URL[] { jar.toUri().toURL() }, null)) {
+			Assertions.assertThat(loader.getMappedJarCount()).isEqualTo(1);
+			Assertions.assertThat(loader.getURLs()).isEmpty();
+
+			for (String name : Arrays.asList("org.example.mapped.Stored", "org.example.mapped.Deflated")) {
+				Class<?> c = loader.loadClass(name);
+				Assertions.assertThat(c.getClassLoader()).isSameAs(loader);
+				Assertions.assertThat(c.getPackage().getImplementationTitle()).isEqualTo("Mapped");
+				Assertions.assertThat(c.getProtectionDomain().getCodeSource().getLocation()).isEqualTo(jar.toUri().toURL());
+			}
+
+			for (String name : Arrays.asList("assets/some file.txt", "org/example/mapped/", "org/example/mapped/Stored.class", "META-INF/MANIFEST.MF")) {
+				Assertions.assertThat(loader.getResource(name)).as(name).isNotNull();
+				Assertions.assertThat(loader.getResource(name).toString()).as(name).isEqualTo(reference.getResource(name).toString());
+			}
+			Assertions.assertThat(loader.getResource("assets/missing.txt")).isNull();
+			Assertions.assertThat(Collections.list(loader.getResources("assets/some file.txt"))).extracting(URL::toString)
+					.containsExactly(reference.getResource("assets/some file.txt").toString());
+
+			try (InputStream in = loader.getResourceAsStream("assets/some file.txt")) {
+				Assertions.assertThat(in).hasSameContentAs(reference.getResourceAsStream("assets/some file.txt"));
+			}
+		}
+	}
+
+	@Test
+	public void testUnmapped() throws Exception {
+		// Jars with a Class-Path are left to URLClassLoader
+		final Manifest manifest = manifest();
+		manifest.getMainAttributes().put(Attributes.Name.CLASS_PATH, "other.jar");
+		final Path jar = createJar("classpath.jar", manifest);
+		try (ModClassLoader loader = new ModClassLoader(Collections.singletonList(jar), null)) {
+			Assertions.assertThat(loader.getMappedJarCount()).isEqualTo(0);
+			Assertions.assertThat(loader.getURLs()).containsExactly(jar.toUri().toURL());
+			Assertions.assertThat(loader.loadClass("org.example.mapped.Deflated").getClassLoader()).isSameAs(loader);
+			Assertions.assertThat(loader.getResource("assets/some file.txt")).isNotNull();
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws Exception {
+		final byte[] bytes = Files.readAllBytes(createJar("corrupt.jar", manifest()));
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		int cen = bytes.length - 4;
+		while (buffer.getInt(cen) != 0x02014b50) {
+			cen--;
+		}
+
+		// Local header offset of the last entry past the end
+		final byte[] offset = bytes.clone();
+		ByteBuffer.wrap(offset).order(ByteOrder.LITTLE_ENDIAN).putInt(cen + 42, bytes.length);
+		Assertions.assertThatThrownBy(() -> new MappedJar(ByteBuffer.wrap(offset))).isInstanceOf(ZipException.class);
+
+		// Name of the last entry past the central directory
+		final byte[] name = bytes.clone();
+		ByteBuffer.wrap(name).order(ByteOrder.LITTLE_ENDIAN).putShort(cen + 28, (short) 0xfff0);
+		Assertions.assertThatThrownBy(() -> new MappedJar(ByteBuffer.wrap(name))).isInstanceOf(ZipException.class);
+
+		// Corrupt jars are left to URLClassLoader
+		final Path jar = folder.getRoot().toPath().resolve("offset.jar");
+		Files.write(jar, offset);
+		try (ModClassLoader loader = new ModClassLoader(Collections.singletonList(jar), null)) {
+			Assertions.assertThat(loader.getMappedJarCount()).isEqualTo(0);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import org.assertj.core.api.Assertions;
+import org.gotti.wurmunlimited.modloader.interfaces.Versioned;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModLoaderSharedTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final String METADATA_PATH = "META-INF/org.gotti.wurmunlimited.modloader/";
+
+	private static class TestModLoader extends ModLoaderShared<Versioned> {
+		TestModLoader() {
+			super(Versioned.class);
+		}
+
+		@Override
+		protected void modcommInit() {
+		}
+
+		@Override
+		protected void preInit() {
+		}
+
+		@Override
+		protected void init() {
+		}
+	}
+
+	private static void write(Path file, String content) throws Exception {
+		Files.createDirectories(file.getParent());
+		Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private static Path createJar(Path modDir, String modName, String properties, String config) throws Exception {
+		final TestJars jar = new TestJars();
+		if (properties != null) {
+			jar.entry(METADATA_PATH + modName + ".properties", properties.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		if (config != null) {
+			jar.entry(METADATA_PATH + modName + ".config", config.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return jar.write(modDir.resolve(modName).resolve(modName + ".jar"));
+	}
+
+	private static void createBundle(Path modDir, String modName, String descriptor) throws Exception {
+		new TestJars().entry(ModBundle.DESCRIPTOR, descriptor.getBytes(StandardCharsets.ISO_8859_1)).write(modDir.resolve(modName + ModBundle.EXTENSION));
+	}
+
+	@Test
+	public void testJarMetadata() throws Exception {
+		final Path modDir = folder.getRoot().toPath();
+		final Path jar = createJar(modDir, "example", "classname=org.example.Mod\ndepend.requires=other\n", "setting=1\n");
+
+		final ModJarMetadata metadata = ModJarMetadata.read("example", jar);
+		Assertions.assertThat(metadata.getProperties()).containsEntry("classname", "org.example.Mod").containsEntry("depend.requires", "other").hasSize(2);
+		Assertions.assertThat(new String(metadata.getConfigTemplate(), StandardCharsets.ISO_8859_1)).isEqualTo("setting=1\n");
+
+		final Path configFile = modDir.resolve("example.config");
+		metadata.copyConfigTemplate(configFile);
+		Assertions.assertThat(configFile).hasContent("setting=1");
+
+		// Metadata of another mod name and unreadable jars are empty
+		final ModJarMetadata other = ModJarMetadata.read("other", jar);
+		Assertions.assertThat(other.getProperties()).isEmpty();
+		Assertions.assertThat(other.getConfigTemplate()).isNull();
+		final Path broken = modDir.resolve("broken.jar");
+		write(broken, "not a jar");
+		Assertions.assertThat(ModJarMetadata.read("broken", broken).getProperties()).isEmpty();
+	}
+
+	@Test
+	public void testDiscoveryOrder() throws Exception {
+		final Path modDir = folder.getRoot().toPath();
+		for (String modName : new String[] { "delta", "alpha", "charlie" }) {
+			write(modDir.resolve(modName + ".properties"), "classname=org.example." + modName + ".Mod\nfrom=properties\n");
+			createJar(modDir, modName, "classname=org.example.Jar\nfrom=jar\njar=" + modName + "\n", null);
+		}
+		createBundle(modDir, "bravo", "classname=org.example.bravo.Mod\n");
+		createJar(modDir, "zulu", "classname=org.example.zulu.Mod\n", null);
+		createJar(modDir, "echo", "classname=org.example.echo.Mod\n", null);
+		Files.createDirectories(modDir.resolve("nojar"));
+
+		final TestModLoader modLoader = new TestModLoader();
+		final Path indexFile = folder.getRoot().toPath().resolve("cache").resolve("mods.idx");
+		final ModMetadataIndex index = ModMetadataIndex.load(indexFile);
+		final List<ModInfo> mods = modLoader.discoverMods(modDir, index);
+
+		// Sorted by name, mods without .properties file last
+		Assertions.assertThat(mods).extracting(ModInfo::getName).containsExactly("alpha", "bravo", "charlie", "delta", "echo", "zulu");
+		for (int i = 0; i < 5; i++) {
+			Assertions.assertThat(modLoader.discoverMods(modDir, ModMetadataIndex.load(indexFile))).extracting(ModInfo::getName)
+					.containsExactlyElementsOf(mods.stream().map(ModInfo::getName).collect(Collectors.toList()));
+		}
+
+		// The .properties file overrides the jar properties
+		final Properties alpha = mods.get(0).getProperties();
+		Assertions.assertThat(alpha).containsEntry("classname", "org.example.alpha.Mod").containsEntry("from", "properties").containsEntry("jar", "alpha");
+		Assertions.assertThat(mods.get(0).isOnDemand()).isFalse();
+		Assertions.assertThat(mods.get(1).getBundle()).isEqualTo(modDir.resolve("bravo" + ModBundle.EXTENSION));
+		Assertions.assertThat(mods.get(4).isOnDemand()).isTrue();
+		Assertions.assertThat(mods.get(4).getProperties()).containsEntry("classname", "org.example.echo.Mod");
+	}
+}
@@ -0,0 +1,94 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModMetadataIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	// Write the file and keep the modification time, so only the content tells it apart
+	private static void write(Path file, String content, FileTime lastModified) throws Exception {
+		Files.write(file, content.getBytes(StandardCharsets.ISO_8859_1));
+		Files.setLastModifiedTime(file, lastModified);
+	}
+
+	private static void writeJar(Path jar, String properties) throws Exception {
+		new TestJars()
+				.entry("META-INF/org.gotti.wurmunlimited.modloader/example.properties", properties.getBytes(StandardCharsets.ISO_8859_1))
+				.entry("META-INF/org.gotti.wurmunlimited.modloader/example.config", "setting=1\n".getBytes(StandardCharsets.ISO_8859_1))
+				.write(jar);
+	}
+
+	@Test
+	public void testPersistence() throws Exception {
+		final Path indexFile = folder.getRoot().toPath().resolve("cache").resolve("mods.idx");
+		final Path properties = folder.getRoot().toPath().resolve("example.properties");
+		final Path jar = folder.getRoot().toPath().resolve("example.jar");
+		final FileTime lastModified = FileTime.fromMillis(1500000000000L);
+		write(properties, "value=1\n", lastModified);
+		writeJar(jar, "classname=org.example.Mod\n");
+
+		final ModMetadataIndex index = ModMetadataIndex.load(indexFile);
+		Assertions.assertThat(index.getProperties(properties)).containsEntry("value", "1");
+		Assertions.assertThat(index.getJarMetadata("example", jar).getProperties()).containsEntry("classname", "org.example.Mod");
+		index.putOrder("key", Arrays.asList("example", "other"));
+		index.save();
+		Assertions.assertThat(indexFile).exists();
+
+		// Same size and modification time: the cached content is used
+		write(properties, "value=2\n", lastModified);
+		final ModMetadataIndex cached = ModMetadataIndex.load(indexFile);
+		Assertions.assertThat(cached.getProperties(properties)).containsEntry("value", "1");
+		final ModJarMetadata metadata = cached.getJarMetadata("example", jar);
+		Assertions.assertThat(metadata.getProperties()).containsEntry("classname", "org.example.Mod");
+		Assertions.assertThat(new String(metadata.getConfigTemplate(), StandardCharsets.ISO_8859_1)).isEqualTo("setting=1\n");
+		Assertions.assertThat(cached.getOrder("key")).containsExactly("example", "other");
+		Assertions.assertThat(cached.getOrder("other key")).isNull();
+
+		// Returned properties are copies
+		cached.getProperties(properties).setProperty("value", "3");
+		Assertions.assertThat(cached.getProperties(properties)).containsEntry("value", "1");
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		final Path indexFile = folder.getRoot().toPath().resolve("cache").resolve("mods.idx");
+		final Path properties = folder.getRoot().toPath().resolve("example.properties");
+		final Path config = folder.getRoot().toPath().resolve("example.config");
+		final FileTime lastModified = FileTime.fromMillis(1500000000000L);
+		write(properties, "value=1\n", lastModified);
+		write(config, "setting=1\n", lastModified);
+
+		final ModMetadataIndex index = ModMetadataIndex.load(indexFile);
+		index.getProperties(properties);
+		index.getProperties(config);
+		index.save();
+
+		// Changed content with a new modification time is read again
+		write(properties, "value=2\n", FileTime.fromMillis(lastModified.toMillis() + 10000));
+		// Touched but unchanged content is still valid
+		write(config, "setting=1\n", FileTime.fromMillis(lastModified.toMillis() + 10000));
+		final ModMetadataIndex changed = ModMetadataIndex.load(indexFile);
+		Assertions.assertThat(changed.getProperties(properties)).containsEntry("value", "2");
+		Assertions.assertThat(changed.getProperties(config)).containsEntry("setting", "1");
+		changed.save();
+
+		// Changed size
+		write(properties, "value=three\n", lastModified);
+		Assertions.assertThat(ModMetadataIndex.load(indexFile).getProperties(properties)).containsEntry("value", "three");
+
+		// A damaged index is ignored
+		Files.write(indexFile, new byte[] { 0, 0, 0, 1, 0 });
+		Assertions.assertThat(ModMetadataIndex.load(indexFile).getProperties(config)).containsEntry("setting", "1");
+	}
+}
@@ -0,0 +1,181 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Look up a field and a method declared in a super class with the cached member index of {@link ReflectionUtil} and
+ * with the previous implementation which collected the members of the class hierarchy on each call.
+ * <p>
+ * Read a private field directly, with reflection and with a {@link FieldAccessor}.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark -Dbenchmark=ReflectionUtilBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReflectionUtilBenchmark {
+
+	@SuppressWarnings("unused")
+	private static class Base {
+		private int id;
+		private String name;
+		private long created;
+
+		private void load(int id) {
+		}
+
+		private void load(String name) {
+		}
+
+		public int getId() {
+			return id;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Middle extends Base {
+		private int x;
+		private int y;
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Leaf extends Middle {
+		private float weight;
+
+		public float getWeight() {
+			return weight;
+		}
+
+		public void setWeight(float weight) {
+			this.weight = weight;
+		}
+	}
+
+	private static final Class<?>[] SIGNATURE = new Class<?>[] { String.class };
+
+	private static final Field WEIGHT_FIELD;
+	private static final FieldAccessor<Leaf, Float> WEIGHT;
+
+	static {
+		try {
+			WEIGHT_FIELD = Leaf.class.getDeclaredField("weight");
+			WEIGHT_FIELD.setAccessible(true);
+			WEIGHT = ReflectionUtil.getFieldAccessor(Leaf.class, "weight");
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final Leaf leaf = new Leaf();
+
+	private static List<Field> getAllFields(Class<?> clazz) {
+		List<Field> currentClassFields = new ArrayList<>(Arrays.asList(clazz.getDeclaredFields()));
+		Class<?> parentClass = clazz.getSuperclass();
+
+		if (parentClass != null && !parentClass.equals(Object.class)) {
+			List<Field> parentClassFields = getAllFields(parentClass);
+			currentClassFields.addAll(parentClassFields);
+		}
+
+		return currentClassFields;
+	}
+
+	private static List<Method> getAllMethods(Class<?> clazz) {
+		List<Method> currentClassMethods = new ArrayList<>(Arrays.asList(clazz.getDeclaredMethods()));
+		Class<?> parentClass = clazz.getSuperclass();
+
+		if (parentClass != null && !parentClass.equals(Object.class)) {
+			List<Method> parentClassFields = getAllMethods(parentClass);
+			currentClassMethods.addAll(parentClassFields);
+		}
+
+		return currentClassMethods;
+	}
+
+	// Previous ReflectionUtil.getField
+	private static Field legacyGetField(Class<?> clazz, String fieldName) throws NoSuchFieldException {
+		for (Field field : getAllFields(clazz)) {
+			if (field.getName().equals(fieldName)) {
+				return field;
+			}
+		}
+		throw new NoSuchFieldException(fieldName);
+	}
+
+	// Previous ReflectionUtil.getMethod
+	private static Method legacyGetMethod(Class<?> clazz, String methodName, Class<?>[] signature) throws NoSuchMethodException {
+		for (Method method : getAllMethods(clazz)) {
+			if (method.getName().equals(methodName)) {
+				if (signature == null || Arrays.equals(signature, method.getParameterTypes())) {
+					return method;
+				}
+			}
+		}
+		throw new NoSuchMethodException(methodName);
+	}
+
+	@Benchmark
+	public Field fieldLegacy() throws Exception {
+		return legacyGetField(Leaf.class, "created");
+	}
+
+	@Benchmark
+	public Field fieldIndexed() throws Exception {
+		return ReflectionUtil.getField(Leaf.class, "created");
+	}
+
+	@Benchmark
+	public Method methodLegacy() throws Exception {
+		return legacyGetMethod(Leaf.class, "load", SIGNATURE);
+	}
+
+	@Benchmark
+	public Method methodIndexed() throws Exception {
+		return ReflectionUtil.getMethod(Leaf.class, "load", SIGNATURE);
+	}
+
+	@Benchmark
+	public float readDirect() {
+		return leaf.weight;
+	}
+
+	@Benchmark
+	public float readReflection() throws Exception {
+		return WEIGHT_FIELD.getFloat(leaf);
+	}
+
+	@Benchmark
+	public float readAccessor() {
+		return WEIGHT.getFloat(leaf);
+	}
+}
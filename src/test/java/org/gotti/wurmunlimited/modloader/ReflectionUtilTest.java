@@ -0,0 +1,114 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.lang.reflect.InvocationTargetException;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+public class ReflectionUtilTest {
+
+	private interface Named {
+		String PREFIX = "named:";
+
+		default String getName() {
+			return PREFIX;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Base implements Named {
+		private int id;
+
+		private void load(int id) {
+			this.id = id;
+		}
+
+		private void load(String id) {
+			this.id = Integer.parseInt(id);
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Leaf extends Base {
+		private int id;
+		private long created;
+		private static String label = "leaf";
+		private static final double SCALE = 2.5;
+
+		private Leaf(int id) {
+			this.id = id;
+		}
+
+		private long age(long now) {
+			return now - created;
+		}
+
+		private static String describe(String prefix, int value) {
+			return prefix + value;
+		}
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		// Members of the class first
+		Assertions.assertThat(ReflectionUtil.getField(Leaf.class, "id").getDeclaringClass()).isEqualTo(Leaf.class);
+		Assertions.assertThat(ReflectionUtil.getField(Leaf.class, "PREFIX").getDeclaringClass()).isEqualTo(Named.class);
+		Assertions.assertThat(ReflectionUtil.getField(Leaf.class, "id")).isSameAs(ReflectionUtil.getField(Leaf.class, "id"));
+
+		Assertions.assertThat(ReflectionUtil.getMethod(Leaf.class, "load", new Class<?>[] { String.class }).getParameterTypes()).containsExactly(String.class);
+		Assertions.assertThat(ReflectionUtil.getMethod(Leaf.class, "load", new Class<?>[] { int.class }).getParameterTypes()).containsExactly(int.class);
+		Assertions.assertThat(ReflectionUtil.getMethod(Leaf.class, "getName").getDeclaringClass()).isEqualTo(Named.class);
+		Assertions.assertThat(ReflectionUtil.getMethod(Object.class, "hashCode")).isNotNull();
+
+		// Object members are not part of other classes
+		Assertions.assertThatThrownBy(() -> ReflectionUtil.getMethod(Leaf.class, "hashCode")).isInstanceOf(NoSuchMethodException.class);
+		Assertions.assertThatThrownBy(() -> ReflectionUtil.getMethod(Leaf.class, "load", new Class<?>[] { long.class })).isInstanceOf(NoSuchMethodException.class);
+		Assertions.assertThatThrownBy(() -> ReflectionUtil.getField(Leaf.class, "missing")).isInstanceOf(NoSuchFieldException.class);
+	}
+
+	@Test
+	public void testAccessors() throws Throwable {
+		final Leaf leaf = ReflectionUtil.callPrivateConstructor(Leaf.class.getDeclaredConstructor(int.class), 3);
+
+		final FieldAccessor<Leaf, Integer> id = ReflectionUtil.getFieldAccessor(Leaf.class, "id");
+		Assertions.assertThat(id).isSameAs(ReflectionUtil.getFieldAccessor(Leaf.class.getDeclaredField("id")));
+		Assertions.assertThat(id.getInt(leaf)).isEqualTo(3);
+		id.setInt(leaf, 5);
+		Assertions.assertThat(id.get(leaf)).isEqualTo(5);
+		Assertions.assertThatThrownBy(() -> id.getLong(leaf)).isInstanceOf(IllegalArgumentException.class);
+
+		final FieldAccessor<Leaf, Long> created = ReflectionUtil.getFieldAccessor(Leaf.class, "created");
+		created.set(leaf, 10L);
+		Assertions.assertThat(created.getLong(leaf)).isEqualTo(10L);
+
+		// The members handed out by getField keep their accessible flag
+		Assertions.assertThat(ReflectionUtil.<Integer>getPrivateField(leaf, ReflectionUtil.getField(Leaf.class, "id"))).isEqualTo(5);
+		Assertions.assertThat(ReflectionUtil.getField(Leaf.class, "id").isAccessible()).isFalse();
+
+		// Static fields ignore the object, static final fields are read only
+		final FieldAccessor<Leaf, String> label = ReflectionUtil.getFieldAccessor(Leaf.class, "label");
+		label.set(null, "renamed");
+		Assertions.assertThat(label.get(leaf)).isEqualTo("renamed");
+		final FieldAccessor<Leaf, Double> scale = ReflectionUtil.getFieldAccessor(Leaf.class, "SCALE");
+		Assertions.assertThat(scale.getDouble(null)).isEqualTo(2.5);
+		Assertions.assertThat(scale.isWritable()).isFalse();
+		Assertions.assertThatThrownBy(() -> scale.setDouble(null, 1.0)).isInstanceOf(IllegalStateException.class);
+		Assertions.assertThatThrownBy(() -> ReflectionUtil.setPrivateField(null, scale.getField(), 1.0)).isInstanceOf(IllegalAccessException.class);
+
+		final MethodAccessor<Long> age = ReflectionUtil.getMethodAccessor(Leaf.class.getDeclaredMethod("age", long.class));
+		Assertions.assertThat(age.invoke(leaf, 15L)).isEqualTo(5L);
+		Assertions.assertThat((long) age.getHandle().invokeExact(leaf, 15L)).isEqualTo(5L);
+		Assertions.assertThat(ReflectionUtil.<String>callPrivateMethod(null, Leaf.class.getDeclaredMethod("describe", String.class, int.class), "id:", 7)).isEqualTo("id:7");
+		Assertions.assertThat(age.invoke(leaf, 15)).isEqualTo(5L);
+
+		// Wrong calls are reported like reflection, exceptions of the method are wrapped
+		Assertions.assertThatThrownBy(() -> age.invoke(null, 15L)).isInstanceOf(NullPointerException.class);
+		Assertions.assertThatThrownBy(() -> age.invoke("leaf", 15L)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> age.invoke(leaf)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> age.invoke(leaf, 1.5)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> age.invoke(leaf, (Object) null)).isInstanceOf(IllegalArgumentException.class);
+		Assertions.assertThatThrownBy(() -> ReflectionUtil.callPrivateConstructor(Leaf.class.getDeclaredConstructor(int.class), "3")).isInstanceOf(IllegalArgumentException.class);
+		final MethodAccessor<Void> load = ReflectionUtil.getMethodAccessor(Base.class.getDeclaredMethod("load", String.class));
+		Assertions.assertThatThrownBy(() -> load.invoke(leaf, "three")).isInstanceOf(InvocationTargetException.class).hasCauseInstanceOf(NumberFormatException.class);
+	}
+}
@@ -0,0 +1,98 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+public class SharedLibrariesTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path createJar(String name, String... classNames) throws Exception {
+		return TestJars.create(folder.getRoot().toPath().resolve(name), classNames);
+	}
+
+	private Path copy(Path jar, String name) throws Exception {
+		final Path target = folder.getRoot().toPath().resolve(name);
+		Files.createDirectories(target.getParent());
+		return Files.copy(jar, target);
+	}
+
+	@Test
+	public void testShared() throws Exception {
+		final Path library = createJar("a/library.jar", "org.example.library.Util");
+		final Map<String, List<Path>> classpaths = new LinkedHashMap<>();
+		classpaths.put("a", Arrays.asList(createJar("a/a.jar", "org.example.a.ModA"), library));
+		classpaths.put("b", Arrays.asList(createJar("b/b.jar", "org.example.b.ModB"), copy(library, "b/library.jar")));
+		classpaths.put("c", Collections.singletonList(createJar("c/c.jar", "org.example.c.ModC")));
+
+		final SharedLibraries libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.ISOLATE, getClass().getClassLoader());
+		final ClassLoader loaderA = libraries.getLibraryLoader("a", null);
+		Assertions.assertThat(loaderA).isNotNull().isSameAs(libraries.getLibraryLoader("b", null));
+		Assertions.assertThat(libraries.getLibraryLoader("c", null)).isNull();
+
+		Assertions.assertThat(libraries.getPrivateEntries("a", classpaths.get("a"))).containsExactly(classpaths.get("a").get(0));
+		Assertions.assertThat(libraries.getPrivateEntries("c", classpaths.get("c"))).isEqualTo(classpaths.get("c"));
+
+		Assertions.assertThat(loaderA.loadClass("org.example.library.Util").getClassLoader()).isSameAs(loaderA);
+		libraries.report();
+	}
+
+	@Test
+	public void testConflict() throws Exception {
+		final Path library = createJar("a/library.jar", "org.example.library.Util");
+		final Map<String, List<Path>> classpaths = new LinkedHashMap<>();
+		classpaths.put("a", Arrays.asList(createJar("a/a.jar", "org.example.a.ModA"), library));
+		classpaths.put("b", Arrays.asList(createJar("b/b.jar", "org.example.b.ModB"), copy(library, "b/library.jar")));
+		classpaths.put("c", Arrays.asList(createJar("c/c.jar", "org.example.c.ModC", "org.example.library.Util"), copy(library, "c/library.jar")));
+
+		SharedLibraries libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.ISOLATE, getClass().getClassLoader());
+		Assertions.assertThat(libraries.getLibraryLoader("a", null)).isNotNull();
+		Assertions.assertThat(libraries.getLibraryLoader("c", null)).isNull();
+		Assertions.assertThat(libraries.getPrivateEntries("c", classpaths.get("c"))).isEqualTo(classpaths.get("c"));
+
+		libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.SHARE, getClass().getClassLoader());
+		Assertions.assertThat(libraries.getLibraryLoader("c", null)).isNotNull().isSameAs(libraries.getLibraryLoader("a", null));
+
+		libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.OFF, getClass().getClassLoader());
+		Assertions.assertThat(libraries.getLibraryLoader("a", null)).isNull();
+	}
+
+	@Test
+	public void testUnresolved() throws Exception {
+		// The library implements an interface of the mod
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass util = classPool.makeClass("org.example.library.Util");
+		util.addInterface(classPool.makeInterface("org.example.a.Base"));
+		final Path jar = TestJars.create(folder.getRoot().toPath().resolve("a/library.jar"), util);
+		final Map<String, List<Path>> classpaths = new LinkedHashMap<>();
+		classpaths.put("a", Arrays.asList(createJar("a/a.jar", "org.example.a.Base"), jar));
+		classpaths.put("b", Arrays.asList(createJar("b/b.jar", "org.example.a.Base", "org.example.b.ModB"), copy(jar, "b/library.jar")));
+
+		SharedLibraries libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.ISOLATE, getClass().getClassLoader());
+		Assertions.assertThat(libraries.getLibraryLoader("a", null)).isNull();
+		Assertions.assertThat(libraries.getPrivateEntries("a", classpaths.get("a"))).isEqualTo(classpaths.get("a"));
+
+		libraries = SharedLibraries.plan(classpaths, SharedLibraries.Mode.SHARE, getClass().getClassLoader());
+		Assertions.assertThat(libraries.getLibraryLoader("a", null)).isNotNull();
+	}
+
+	@Test
+	public void testDefaultMode() throws Exception {
+		Assertions.assertThat(SharedLibraries.Mode.isConfigured()).isFalse();
+		Assertions.assertThat(SharedLibraries.Mode.fromSystemProperty()).isEqualTo(SharedLibraries.Mode.OFF);
+	}
+}
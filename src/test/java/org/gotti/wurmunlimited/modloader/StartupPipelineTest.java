@@ -0,0 +1,74 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.FileNotFoundException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StartupPipelineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testStages() throws Exception {
+		try (StartupPipeline pipeline = new StartupPipeline()) {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final CompletableFuture<String> first = pipeline.async("first", () -> {
+				latch.await();
+				return "a";
+			});
+			final CompletableFuture<String> second = pipeline.then("second", first, () -> first.join() + "b");
+
+			// The current thread is not blocked by the worker stages
+			Assertions.assertThat(pipeline.run("current", () -> "c")).isEqualTo("c");
+			latch.countDown();
+			Assertions.assertThat(pipeline.join(second)).isEqualTo("ab");
+
+			// Failures are rethrown unwrapped
+			final CompletableFuture<Object> failed = pipeline.async("failed", () -> {
+				throw new FileNotFoundException("missing");
+			});
+			Assertions.assertThatThrownBy(() -> pipeline.join(failed)).isInstanceOf(UncheckedIOException.class).hasCauseInstanceOf(FileNotFoundException.class);
+			Assertions.assertThatThrownBy(() -> pipeline.run("failed", () -> {
+				throw new IllegalStateException("failed");
+			})).isInstanceOf(IllegalStateException.class);
+		}
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+		final Path file = folder.getRoot().toPath().resolve("data.bin");
+		Files.write(file, new byte[100000]);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CompletableFuture<Long> prefetched;
+		final CompletableFuture<Boolean> background;
+		final long start = System.nanoTime();
+		try (StartupPipeline pipeline = new StartupPipeline()) {
+			prefetched = pipeline.background("prefetch", CompletableFuture.completedFuture(null), () -> pipeline.prefetch(Arrays.asList(file, file.resolveSibling("missing.bin"))));
+			Assertions.assertThat(prefetched.get(1, TimeUnit.MINUTES)).isEqualTo(100000L);
+
+			// Background stages run until the pipeline is closed and are not waited for
+			background = pipeline.background("background", CompletableFuture.completedFuture(null), () -> {
+				started.countDown();
+				while (!pipeline.isClosed()) {
+					Thread.sleep(1);
+				}
+				return pipeline.prefetch(Arrays.asList(file)) == 0;
+			});
+			started.await();
+		}
+		Assertions.assertThat(background.get(1, TimeUnit.MINUTES)).isTrue();
+		Assertions.assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)).isLessThan(30);
+	}
+}
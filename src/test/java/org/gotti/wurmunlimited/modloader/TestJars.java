@@ -0,0 +1,145 @@
+package org.gotti.wurmunlimited.modloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+/**
+ * Jar files for the tests.
+ */
+final class TestJars {
+
+	private final ClassPool classPool = new ClassPool(true);
+	private final Map<String, byte[]> entries = new LinkedHashMap<>();
+	private final Set<String> stored = new HashSet<>();
+	private Manifest manifest;
+
+	/**
+	 * Create a jar with empty classes.
+	 *
+	 * @param jar
+	 *            Jar file, missing parent directories are created
+	 * @param classNames
+	 *            Class names
+	 * @return the jar file
+	 */
+	static Path create(Path jar, String... classNames) throws Exception {
+		return new TestJars().classes(classNames).write(jar);
+	}
+
+	/**
+	 * Create a jar with classes.
+	 *
+	 * @param jar
+	 *            Jar file, missing parent directories are created
+	 * @param classes
+	 *            Classes
+	 * @return the jar file
+	 */
+	static Path create(Path jar, CtClass... classes) throws Exception {
+		return new TestJars().classes(classes).write(jar);
+	}
+
+	/**
+	 * Add empty classes.
+	 */
+	TestJars classes(String... classNames) throws Exception {
+		for (String className : classNames) {
+			classes(classPool.makeClass(className));
+		}
+		return this;
+	}
+
+	/**
+	 * Add classes.
+	 */
+	TestJars classes(CtClass... classes) throws Exception {
+		for (CtClass ctClass : classes) {
+			entry(ctClass.getName().replace('.', '/') + ".class", ctClass.toBytecode());
+		}
+		return this;
+	}
+
+	/**
+	 * Add a deflated entry.
+	 */
+	TestJars entry(String name, byte[] content) {
+		entries.put(name, content);
+		return this;
+	}
+
+	/**
+	 * Add a stored entry.
+	 */
+	TestJars stored(String name, byte[] content) {
+		stored.add(name);
+		return entry(name, content);
+	}
+
+	/**
+	 * Write the manifest as first entry.
+	 */
+	TestJars manifest(Manifest manifest) {
+		this.manifest = manifest;
+		return this;
+	}
+
+	/**
+	 * Write the jar file.
+	 *
+	 * @param jar
+	 *            Jar file, missing parent directories are created
+	 * @return the jar file
+	 */
+	Path write(Path jar) throws Exception {
+		Files.createDirectories(jar.getParent());
+		try (OutputStream out = Files.newOutputStream(jar)) {
+			write(out);
+		}
+		return jar;
+	}
+
+	/**
+	 * Get the content of the jar file.
+	 */
+	byte[] toByteArray() throws Exception {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		write(bytes);
+		return bytes.toByteArray();
+	}
+
+	private void write(OutputStream output) throws Exception {
+		try (JarOutputStream out = manifest != null ? new JarOutputStream(output, manifest) : new JarOutputStream(output)) {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				out.putNextEntry(createEntry(entry.getKey(), entry.getValue(), stored.contains(entry.getKey())));
+				out.write(entry.getValue());
+			}
+		}
+	}
+
+	private static ZipEntry createEntry(String name, byte[] content, boolean stored) {
+		final JarEntry entry = new JarEntry(name);
+		if (stored) {
+			final CRC32 crc = new CRC32();
+			crc.update(content);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(content.length);
+			entry.setCompressedSize(content.length);
+			entry.setCrc(crc.getValue());
+		}
+		return entry;
+	}
+}
@@ -0,0 +1,56 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.regex.Pattern;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewMethod;
+
+public class CallRedirectorTest {
+
+	public static class Fast {
+		public static int length(String s) {
+			return 100;
+		}
+
+		public static int length(CharSequence s) {
+			return 200;
+		}
+
+		public static int abs(int x) {
+			return -1;
+		}
+	}
+
+	@Test
+	public void testRedirect() throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.insertClassPath(new ClassClassPath(Fast.class));
+		final CtClass ctClass = classPool.makeClass("org.example.redirect.Caller");
+		ctClass.addMethod(CtNewMethod.make("public static int text(String s) { return s.length() + Math.abs(-3); }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public static int chars(CharSequence s) { return s.length(); }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public static int other(String s) { return s.length(); }", ctClass));
+		final Pattern callers = Pattern.compile("text|chars");
+
+		final String fast = Fast.class.getName();
+		Assertions.assertThat(new CallRedirector(classPool, "java.lang.String", "length", "()I", fast, "length").redirect(ctClass, callers)).isEqualTo(1);
+		Assertions.assertThat(new CallRedirector(classPool, "java.lang.CharSequence", "length", "()I", fast, "length").redirect(ctClass, callers)).isEqualTo(1);
+
+		// No target for a static call, nothing is changed
+		final byte[] before = ctClass.getDeclaredMethod("text").getMethodInfo().getCodeAttribute().getCode().clone();
+		Assertions.assertThatThrownBy(() -> new CallRedirector(classPool, "java.lang.Math", "abs", "(I)I", fast, "length").redirect(ctClass, null))
+				.isInstanceOf(HookException.class).hasMessageContaining("length(I)I");
+		Assertions.assertThat(ctClass.getDeclaredMethod("text").getMethodInfo().getCodeAttribute().getCode()).isEqualTo(before);
+
+		Assertions.assertThat(new CallRedirector(classPool, "java.lang.Math", "abs", "(I)I", fast, "abs").redirect(ctClass, null)).isEqualTo(1);
+
+		final Class<?> c = new HookManager.HookClassLoader(classPool).loadClass("org.example.redirect.Caller");
+		Assertions.assertThat(c.getMethod("text", String.class).invoke(null, "abc")).isEqualTo(99);
+		Assertions.assertThat(c.getMethod("chars", CharSequence.class).invoke(null, "abc")).isEqualTo(200);
+		Assertions.assertThat(c.getMethod("other", String.class).invoke(null, "abc")).isEqualTo(3);
+	}
+}
@@ -0,0 +1,113 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gotti.wurmunlimited.modloader.ModLoaderShared;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+/**
+ * Find all Logger.log calls in the methods of some larger classes, with a compiled {@link CodePattern} and with the
+ * byte search of the old {@link CodeReplacer}.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark -Dbenchmark=CodePatternBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CodePatternBenchmark {
+
+	private final List<CodeAttribute> methods = new ArrayList<>();
+	// invokevirtual Logger.log for each method, the constant pool index depends on the class
+	private final List<byte[]> searches = new ArrayList<>();
+	private CodePattern pattern;
+
+	@Setup
+	public void setUp() throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.insertClassPath(new ClassClassPath(getClass()));
+		for (Class<?> c : new Class<?>[] { ModLoaderShared.class, HookManager.class, CodeReplacer.class, GapInserter.class }) {
+			final CtClass ctClass = classPool.get(c.getName());
+			final ConstPool constPool = ctClass.getClassFile().getConstPool();
+			int index = 0;
+			for (int i = 1; i < constPool.getSize(); i++) {
+				if (constPool.getTag(i) == ConstPool.CONST_Methodref && "log".equals(constPool.getMethodrefName(i))
+						&& "java.util.logging.Logger".equals(constPool.getMethodrefClassName(i))) {
+					index = i;
+				}
+			}
+			for (Object method : ctClass.getClassFile().getMethods()) {
+				final CodeAttribute code = ((MethodInfo) method).getCodeAttribute();
+				if (code != null) {
+					methods.add(code);
+					searches.add(new byte[] { (byte) Opcode.INVOKEVIRTUAL, (byte) (index >> 8), (byte) index });
+				}
+			}
+		}
+		pattern = CodePattern.builder().invoke("java.util.logging.Logger", "log", null).build();
+	}
+
+	// Byte search as in CodeReplacer.findCode
+	private static int findCode(byte[] code, int from, byte[] search) {
+		for (int i = from, j = 0, backtrack = 0; i < code.length && j < search.length; i++) {
+			if (code[i] == search[j]) {
+				if (j == 0) {
+					backtrack = i;
+				}
+				j++;
+				if (j == search.length) {
+					return backtrack;
+				}
+			} else if (j > 0) {
+				i = backtrack;
+				j = 0;
+			}
+		}
+		return -1;
+	}
+
+	@Benchmark
+	public int pattern() {
+		int count = 0;
+		for (CodeAttribute method : methods) {
+			final CodeMatcher matcher = pattern.matcher(method);
+			while (matcher.find()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Benchmark
+	public int byteSearch() {
+		int count = 0;
+		for (int i = 0; i < methods.size(); i++) {
+			final byte[] code = methods.get(i).getCode();
+			for (int pos = findCode(code, 0, searches.get(i)); pos != -1; pos = findCode(code, pos + 1, searches.get(i))) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,141 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.assertj.core.api.Assertions;
+import org.gotti.wurmunlimited.modloader.ModLoaderShared;
+import org.junit.Test;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+public class CodePatternTest {
+
+	@SuppressWarnings("unused")
+	private static class Sample {
+		private int counter;
+
+		int compute(int amount) {
+			int total = amount * 3;
+			if (total > 1000) {
+				total = 1000;
+			}
+			counter += total;
+			return Math.max(total, 123456);
+		}
+
+		int aligned(int a) {
+			return a * 27;
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static class Other {
+		long value(long a, long b) {
+			return Math.max(a, b) + Math.max(b, 7L);
+		}
+	}
+
+	private static CodeAttribute getCode(Class<?> c, String method) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.insertClassPath(new ClassClassPath(c));
+		return classPool.get(c.getName()).getDeclaredMethod(method).getMethodInfo().getCodeAttribute();
+	}
+
+	private static List<Integer> findAll(CodeMatcher matcher) {
+		final List<Integer> starts = new ArrayList<>();
+		while (matcher.find()) {
+			starts.add(matcher.start());
+		}
+		return starts;
+	}
+
+	@Test
+	public void testSymbolicOperands() throws Exception {
+		final CodeAttribute code = getCode(Sample.class, "compute");
+		final CodePattern pattern = CodePattern.builder()
+				.load("total")
+				.constant(123456)
+				.invoke("java.lang.Math", "max", "(II)I").as("call")
+				.build();
+
+		final CodeMatcher matcher = pattern.matcher(code);
+		Assertions.assertThat(matcher.find()).isTrue();
+		final int call = matcher.position("call");
+		Assertions.assertThat(code.getCode()[call] & 0xff).isEqualTo(Opcode.INVOKESTATIC);
+		Assertions.assertThat(matcher.end()).isEqualTo(call + 3);
+		final ConstPool constPool = code.getConstPool();
+		Assertions.assertThat(constPool.getMethodrefName(matcher.operand("call"))).isEqualTo("max");
+		Assertions.assertThat(matcher.find()).isFalse();
+
+		final CodePattern field = CodePattern.builder()
+				.opcode(Opcode.ALOAD_0)
+				.opcode(Opcode.DUP)
+				.field(Opcode.GETFIELD, Sample.class.getName(), "counter")
+				.load("total").as("total")
+				.opcode(Opcode.IADD)
+				.field(Opcode.PUTFIELD, null, "counter")
+				.build();
+		final CodeMatcher fieldMatcher = field.matcher(code);
+		Assertions.assertThat(fieldMatcher.find()).isTrue();
+		Assertions.assertThat(fieldMatcher.operand("total")).isEqualTo(2);
+
+		// sipush 1000 and the wildcard compare
+		Assertions.assertThat(findAll(CodePattern.builder().constant(1000).build().matcher(code))).hasSize(2);
+		Assertions.assertThat(findAll(CodePattern.builder().load("total").constant(1000).any().build().matcher(code))).hasSize(1);
+
+		// Unknown local variables never match
+		Assertions.assertThat(CodePattern.builder().load("missing").build().matcher(code).find()).isFalse();
+	}
+
+	@Test
+	public void testInstructionBoundaries() throws Exception {
+		// iload_1 bipush 27 (0x1b which is iload_1) imul
+		final CodeAttribute code = getCode(Sample.class, "aligned");
+		Assertions.assertThat(findAll(CodePattern.builder().opcode(Opcode.ILOAD_1).build().matcher(code))).containsExactly(0);
+		Assertions.assertThat(findAll(CodePattern.builder().load(1).constant(27).opcode(Opcode.IMUL).build().matcher(code))).containsExactly(0);
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		final CodePattern pattern = CodePattern.builder().invoke("java.lang.Math", "max", null).as("call").build();
+
+		final CodeAttribute sample = getCode(Sample.class, "compute");
+		final CodeAttribute other = getCode(Other.class, "value");
+		Assertions.assertThat(findAll(pattern.matcher(sample))).hasSize(1);
+		Assertions.assertThat(findAll(pattern.matcher(other))).hasSize(2);
+
+		final CodeMatcher matcher = pattern.matcher(other);
+		Assertions.assertThat(matcher.find()).isTrue();
+		Assertions.assertThat(other.getConstPool().getMethodrefType(matcher.operand("call"))).isEqualTo("(JJ)J");
+		matcher.reset();
+		Assertions.assertThat(findAll(matcher)).hasSize(2);
+	}
+
+	@Test
+	public void testInstructionLengths() throws Exception {
+		final CodePattern any = CodePattern.builder().any().build();
+		for (Class<?> c : new Class<?>[] { CodeMatcher.class, GapInserter.class, ModLoaderShared.class }) {
+			final ClassPool classPool = new ClassPool(true);
+			classPool.insertClassPath(new ClassClassPath(c));
+			for (Object method : classPool.get(c.getName()).getClassFile().getMethods()) {
+				final CodeAttribute code = ((MethodInfo) method).getCodeAttribute();
+				if (code == null) {
+					continue;
+				}
+				final List<Integer> expected = new ArrayList<>();
+				final CodeIterator iterator = code.iterator();
+				while (iterator.hasNext()) {
+					expected.add(iterator.next());
+				}
+				Assertions.assertThat(findAll(any.matcher(code))).isEqualTo(expected);
+			}
+		}
+	}
+}
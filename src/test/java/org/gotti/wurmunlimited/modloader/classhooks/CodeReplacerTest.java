@@ -0,0 +1,376 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.gotti.wurmunlimited.modloader.ModLoaderShared;
+import org.junit.Test;
+
+import javassist.NotFoundException;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+public class CodeReplacerTest {
+
+	// Opcodes without operands which are used to build replacements
+	private static final int[] FILLERS = { Opcode.ICONST_M1, Opcode.ICONST_0, Opcode.ICONST_1, Opcode.ICONST_2, Opcode.ICONST_3, Opcode.ICONST_4, Opcode.ICONST_5, Opcode.LCONST_0,
+			Opcode.LCONST_1, Opcode.FCONST_0, Opcode.FCONST_1, Opcode.FCONST_2, Opcode.DCONST_0, Opcode.DCONST_1, Opcode.POP, Opcode.POP2, Opcode.DUP, Opcode.SWAP, Opcode.IADD,
+			Opcode.LADD, Opcode.ISUB, Opcode.IMUL, Opcode.IDIV, Opcode.IREM, Opcode.INEG, Opcode.ISHL, Opcode.ISHR, Opcode.IAND, Opcode.IOR, Opcode.IXOR, Opcode.I2L, Opcode.I2F,
+			Opcode.I2D, Opcode.L2I, Opcode.F2I, Opcode.D2I, Opcode.I2B, Opcode.I2C, Opcode.I2S, Opcode.LCMP, Opcode.ARRAYLENGTH, Opcode.MONITORENTER, Opcode.MONITOREXIT };
+
+	private static class Patch {
+		final byte[] search;
+		final byte[] replacement;
+		final boolean all;
+
+		Patch(byte[] search, byte[] replacement, boolean all) {
+			this.search = search;
+			this.replacement = replacement;
+			this.all = all;
+		}
+	}
+
+	/**
+	 * Methods with switches, loops, exception handlers, uninitialized values and long jumps.
+	 */
+	@SuppressWarnings("unused")
+	private static class Sample {
+		private int value;
+
+		Sample(int value) {
+			this.value = value;
+		}
+
+		int tableSwitch(int x) {
+			switch (x) {
+			case 1:
+				return value;
+			case 2:
+				return x * 3;
+			case 3:
+				value += x;
+				return value;
+			default:
+				return -x;
+			}
+		}
+
+		int lookupSwitch(String s) {
+			switch (s) {
+			case "one":
+				return 1;
+			case "two":
+				return value + 2;
+			default:
+				return s.length();
+			}
+		}
+
+		int loops(int[] values) {
+			int sum = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i] > value) {
+					sum += values[i];
+				} else {
+					sum -= i;
+				}
+			}
+			int i = 0;
+			while (sum > 100 && i++ < 10) {
+				sum /= 2;
+			}
+			return sum;
+		}
+
+		Object uninitialized(boolean b, int v) {
+			return new Sample(b ? v : -v);
+		}
+
+		int exceptions(String s) {
+			try {
+				return Integer.parseInt(s) + value;
+			} catch (NumberFormatException e) {
+				return -1;
+			} finally {
+				value++;
+			}
+		}
+
+		long longJumps(int x, long[] values) {
+			long sum = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (x > i) {
+					sum += values[i] * x + value;
+					sum ^= sum << 3;
+					sum += Long.rotateLeft(sum, x) - values.length * 7L;
+					sum -= Math.max(sum, values[i]) / (i + 1);
+				} else if (x < -i) {
+					sum += Math.min(values[i], x * 11L) * 13;
+					sum ^= sum >>> 5;
+					sum += Long.numberOfTrailingZeros(sum) + value * 17L;
+				}
+				switch ((int) (sum & 3)) {
+				case 0:
+					sum += 19;
+					break;
+				case 1:
+					sum -= x * 23L;
+					break;
+				default:
+					sum *= 29;
+				}
+			}
+			return sum;
+		}
+	}
+
+	private static byte[] readClass(Class<?> c) throws Exception {
+		try (InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	private static ClassFile parse(byte[] classfile) throws Exception {
+		return new ClassFile(new DataInputStream(new ByteArrayInputStream(classfile)));
+	}
+
+	private static CodeAttribute getCode(ClassFile classFile, int method) {
+		return ((MethodInfo) classFile.getMethods().get(method)).getCodeAttribute();
+	}
+
+	private static int indexOf(byte[] code, byte[] search, int from) {
+		for (int i = from; i + search.length <= code.length; i++) {
+			int j = 0;
+			while (j < search.length && code[i + j] == search[j]) {
+				j++;
+			}
+			if (j == search.length) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Find a fragment starting at an instruction. Gaps change the branch offsets and the switch tables which could
+	 * create matches inside an instruction.
+	 */
+	private static int indexOfInstruction(CodeAttribute codeAttribute, byte[] search, int from) throws Exception {
+		final byte[] code = codeAttribute.getCode();
+		final CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			final int pos = iterator.next();
+			if (pos >= from && indexOf(code, search, pos) == pos) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Reference implementation applying each replacement on its own with {@link CodeIterator#insertGap(int, int)}
+	 */
+	private static int applySequentially(CodeAttribute codeAttribute, List<Patch> patches) throws Exception {
+		int count = 0;
+		for (Patch patch : patches) {
+			int from = 0;
+			boolean found = false;
+			int pos;
+			while ((pos = indexOfInstruction(codeAttribute, patch.search, from)) != -1) {
+				int gap = 0;
+				if (patch.replacement.length > patch.search.length) {
+					gap = codeAttribute.iterator().insertGap(pos, patch.replacement.length - patch.search.length);
+				}
+				final byte[] code = codeAttribute.getCode();
+				from = pos + gap + patch.search.length;
+				System.arraycopy(patch.replacement, 0, code, pos, patch.replacement.length);
+				Arrays.fill(code, pos + patch.replacement.length, from, (byte) Opcode.NOP);
+				found = true;
+				count++;
+				if (!patch.all) {
+					break;
+				}
+			}
+			if (!found) {
+				throw new NotFoundException("code");
+			}
+		}
+		return count;
+	}
+
+	private static int applyBatch(CodeAttribute codeAttribute, List<Patch> patches) throws Exception {
+		final CodeReplacer replacer = new CodeReplacer(codeAttribute);
+		for (Patch patch : patches) {
+			if (patch.all) {
+				replacer.replaceAll(patch.search, patch.replacement);
+			} else {
+				replacer.replace(patch.search, patch.replacement);
+			}
+		}
+		return replacer.apply();
+	}
+
+	private static boolean isBranch(int opcode) {
+		return (Opcode.IFEQ <= opcode && opcode <= Opcode.LOOKUPSWITCH) || (Opcode.IFNULL <= opcode && opcode <= Opcode.JSR_W);
+	}
+
+	/**
+	 * Pick up to four fragments of one to four instructions and replace them with shorter or longer code. The
+	 * replacements only use opcodes missing in the method and the fragments never contain a NOP, so one replacement
+	 * can not create a match for another.
+	 */
+	private static List<Patch> createPatches(CodeAttribute codeAttribute, Random random) throws Exception {
+		final List<Patch> patches = new ArrayList<>();
+		final byte[] code = codeAttribute.getCode();
+		final List<Integer> starts = new ArrayList<>();
+		final CodeIterator iterator = codeAttribute.iterator();
+		while (iterator.hasNext()) {
+			starts.add(iterator.next());
+		}
+		starts.add(code.length);
+		final Set<Integer> boundaries = new HashSet<>(starts);
+
+		final boolean[] present = new boolean[256];
+		for (byte b : code) {
+			present[b & 0xff] = true;
+		}
+		final List<Integer> fillers = new ArrayList<>();
+		for (int filler : FILLERS) {
+			if (!present[filler]) {
+				fillers.add(filler);
+			}
+		}
+		if (fillers.isEmpty()) {
+			return patches;
+		}
+
+		final int count = 1 + random.nextInt(4);
+		for (int attempt = 0; attempt < 50 && patches.size() < count; attempt++) {
+			final int first = random.nextInt(starts.size() - 1);
+			final int last = Math.min(starts.size() - 1, first + 1 + random.nextInt(4));
+			boolean simple = true;
+			for (int k = first; k < last; k++) {
+				simple &= !isBranch(code[starts.get(k)] & 0xff);
+			}
+			final byte[] search = Arrays.copyOfRange(code, starts.get(first), starts.get(last));
+			for (byte b : search) {
+				simple &= b != Opcode.NOP;
+			}
+			for (int pos = indexOf(code, search, 0); simple && pos != -1; pos = indexOf(code, search, pos + 1)) {
+				simple &= boundaries.contains(pos);
+			}
+			if (!simple) {
+				continue;
+			}
+
+			final byte[] replacement = new byte[1 + random.nextInt(search.length + 6)];
+			for (int i = 0; i < replacement.length; i++) {
+				replacement[i] = (byte) (int) fillers.get(random.nextInt(fillers.size()));
+			}
+			patches.add(new Patch(search, replacement, random.nextBoolean()));
+		}
+		return patches;
+	}
+
+	private static void assertSameCode(CodeAttribute actual, CodeAttribute expected) {
+		Assertions.assertThat(actual.getCode()).isEqualTo(expected.getCode());
+
+		final ExceptionTable actualTable = actual.getExceptionTable();
+		final ExceptionTable expectedTable = expected.getExceptionTable();
+		Assertions.assertThat(actualTable.size()).isEqualTo(expectedTable.size());
+		for (int i = 0; i < actualTable.size(); i++) {
+			Assertions.assertThat(actualTable.startPc(i)).isEqualTo(expectedTable.startPc(i));
+			Assertions.assertThat(actualTable.endPc(i)).isEqualTo(expectedTable.endPc(i));
+			Assertions.assertThat(actualTable.handlerPc(i)).isEqualTo(expectedTable.handlerPc(i));
+		}
+
+		final List<?> actualAttributes = actual.getAttributes();
+		final List<?> expectedAttributes = expected.getAttributes();
+		Assertions.assertThat(actualAttributes).hasSameSizeAs(expectedAttributes);
+		for (int i = 0; i < actualAttributes.size(); i++) {
+			final AttributeInfo actualAttribute = (AttributeInfo) actualAttributes.get(i);
+			final AttributeInfo expectedAttribute = (AttributeInfo) expectedAttributes.get(i);
+			Assertions.assertThat(actualAttribute.getName()).isEqualTo(expectedAttribute.getName());
+			Assertions.assertThat(actualAttribute.get()).as(actualAttribute.getName()).isEqualTo(expectedAttribute.get());
+		}
+	}
+
+	@Test
+	public void testSequentialEquivalence() throws Exception {
+		final Random random = new Random(4711);
+		int applied = 0;
+		int missing = 0;
+		for (Class<?> c : Arrays.asList(Sample.class, CodeReplacer.class, GapInserter.class, HookManager.class, ModLoaderShared.class)) {
+			final byte[] classfile = readClass(c);
+			final int methods = parse(classfile).getMethods().size();
+			for (int m = 0; m < methods; m++) {
+				final int method = m;
+				for (int trial = 0; trial < 20; trial++) {
+					final ClassFile original = parse(classfile);
+					final ClassFile batch = parse(classfile);
+					final ClassFile sequential = parse(classfile);
+					if (getCode(batch, method) == null) {
+						break;
+					}
+					final List<Patch> patches = createPatches(getCode(batch, method), random);
+					if (patches.isEmpty()) {
+						continue;
+					}
+
+					int expected;
+					try {
+						expected = applySequentially(getCode(sequential, method), patches);
+					} catch (NotFoundException e) {
+						// A fragment was already replaced by an earlier one. Nothing is changed in this case
+						Assertions.assertThatThrownBy(() -> applyBatch(getCode(batch, method), patches)).isInstanceOf(NotFoundException.class);
+						assertSameCode(getCode(batch, method), getCode(original, method));
+						missing++;
+						continue;
+					}
+					Assertions.assertThat(applyBatch(getCode(batch, method), patches)).isEqualTo(expected);
+					assertSameCode(getCode(batch, method), getCode(sequential, method));
+					applied++;
+				}
+			}
+		}
+		Assertions.assertThat(applied).isGreaterThan(500);
+		Assertions.assertThat(missing).isGreaterThan(0);
+	}
+
+	@Test
+	public void testReplaceCode() throws Exception {
+		final ClassFile classFile = parse(readClass(Sample.class));
+		final MethodInfo method = classFile.getMethod("uninitialized");
+		final CodeAttribute codeAttribute = method.getCodeAttribute();
+		// iload_1 ifeq
+		final byte[] search = { Opcode.ILOAD_1, (byte) Opcode.IFEQ };
+		final int pos = indexOf(codeAttribute.getCode(), search, 0);
+		final int length = codeAttribute.getCodeLength();
+
+		new CodeReplacer(codeAttribute).replaceCode(search, new byte[] { Opcode.ICONST_1, Opcode.POP, Opcode.ILOAD_1, (byte) Opcode.IFEQ });
+		Assertions.assertThat(codeAttribute.getCodeLength()).isEqualTo(length + 2);
+		Assertions.assertThat(Arrays.copyOfRange(codeAttribute.getCode(), pos, pos + 4)).isEqualTo(new byte[] { Opcode.ICONST_1, Opcode.POP, Opcode.ILOAD_1, (byte) Opcode.IFEQ });
+
+		Assertions.assertThatThrownBy(() -> new CodeReplacer(codeAttribute).replaceCode(new byte[] { (byte) Opcode.MONITORENTER }, new byte[0])).isInstanceOf(NotFoundException.class);
+	}
+}
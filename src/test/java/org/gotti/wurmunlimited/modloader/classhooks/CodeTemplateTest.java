@@ -0,0 +1,77 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+
+public class CodeTemplateTest {
+
+	private static final String TEMPLATE = String.join("\n",
+			"{",
+			"#if test.enabled",
+			"	$_ = $_ * ${test.multiplier};",
+			"#if !test.verbose",
+			"	$_ = $_ + ${test.offset};",
+			"#else",
+			"	System.out.println(${test.message});",
+			"#endif",
+			"#else",
+			"	System.out.println(\"disabled\");",
+			"#endif",
+			"}");
+
+	@Test
+	public void testSpecialize() throws Exception {
+		final Map<String, Object> constants = new HashMap<>();
+		constants.put("test.enabled", true);
+		constants.put("test.verbose", "false");
+		constants.put("test.multiplier", 3);
+		constants.put("test.offset", -7L);
+		constants.put("test.message", "say \"hi\"\n");
+
+		Assertions.assertThat(CodeTemplate.specialize(TEMPLATE, constants)).isEqualTo("{\n	$_ = $_ * 3;\n	$_ = $_ + (-7L);\n}");
+		constants.put("test.verbose", true);
+		Assertions.assertThat(CodeTemplate.specialize(TEMPLATE, constants)).isEqualTo("{\n	$_ = $_ * 3;\n	System.out.println(\"say \\\"hi\\\"\\n\");\n}");
+		constants.put("test.enabled", false);
+		constants.remove("test.multiplier");
+		Assertions.assertThat(CodeTemplate.specialize(TEMPLATE, constants)).isEqualTo("{\n	System.out.println(\"disabled\");\n}");
+
+		Assertions.assertThat(CodeTemplate.toLiteral("c", 'x')).isEqualTo("'x'");
+		Assertions.assertThat(CodeTemplate.toLiteral("f", 1.5f)).isEqualTo("1.5f");
+		Assertions.assertThat(CodeTemplate.toLiteral("d", Double.NaN)).isEqualTo("java.lang.Double.NaN");
+
+		Assertions.assertThatThrownBy(() -> CodeTemplate.specialize("${test.missing}", constants)).isInstanceOf(HookException.class).hasMessageContaining("test.missing");
+		Assertions.assertThatThrownBy(() -> CodeTemplate.specialize("#if test.enabled\n", constants)).isInstanceOf(HookException.class).hasMessageContaining("#endif");
+		Assertions.assertThatThrownBy(() -> CodeTemplate.specialize("#if test.offset\n#endif", constants)).isInstanceOf(HookException.class).hasMessageContaining("boolean");
+	}
+
+	@Test
+	public void testCompile() throws Exception {
+		final Map<String, Object> constants = new HashMap<>();
+		constants.put("test.enabled", true);
+		constants.put("test.verbose", false);
+		constants.put("test.multiplier", 3);
+		constants.put("test.offset", -7L);
+
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass ctClass = classPool.makeClass("org.example.template.Scaled");
+		final CtMethod method = CtNewMethod.make("public static long scale(long x) { return x + 1; }", ctClass);
+		ctClass.addMethod(method);
+		method.insertAfter(CodeTemplate.specialize(TEMPLATE, constants));
+
+		// No branch left and nothing of the disabled code
+		@SuppressWarnings("unchecked")
+		final Set<String> classNames = ctClass.getClassFile().getConstPool().getClassNames();
+		Assertions.assertThat(classNames).doesNotContain("java/lang/System");
+		final Class<?> c = new HookManager.HookClassLoader(classPool).loadClass("org.example.template.Scaled");
+		Assertions.assertThat(c.getMethod("scale", long.class).invoke(null, 4L)).isEqualTo(8L);
+	}
+}
@@ -0,0 +1,224 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.StackMapTable;
+
+public class HookClassLoaderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testConcurrentLoad() throws Exception {
+		final int classes = 300;
+		final int threads = 16;
+
+		final ClassPool classPool = new ClassPool(true);
+		for (int i = 0; i < classes; i++) {
+			CtClass ctClass = classPool.makeClass("org.example.stress.C" + i);
+			if (i % 10 != 0) {
+				// Chain the classes so loading one class triggers loads of others
+				ctClass.setSuperclass(classPool.get("org.example.stress.C" + (i - 1)));
+			}
+			ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+		}
+
+		final HookManager.HookClassLoader loader = new HookManager.HookClassLoader(classPool);
+		final Map<String, Class<?>> loaded = new ConcurrentHashMap<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int offset = t * 17;
+				futures.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < classes; i++) {
+						String name = "org.example.stress.C" + ((classes - 1 - i + offset) % classes);
+						Class<?> c = loader.loadClass(name);
+						Class<?> previous = loaded.putIfAbsent(name, c);
+						Assertions.assertThat(previous == null || previous == c).isTrue();
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Assertions.assertThat(loaded).hasSize(classes);
+		Assertions.assertThat(loaded.values()).allMatch(c -> c.getClassLoader() == loader);
+	}
+
+	@Test
+	public void testPackageFromManifest() throws Exception {
+		final Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VENDOR, "Vendor");
+		final Attributes packageAttributes = new Attributes();
+		packageAttributes.put(Attributes.Name.IMPLEMENTATION_TITLE, "Package title");
+		manifest.getEntries().put("org/example/manifest/", packageAttributes);
+
+		final ClassPool classPool = new ClassPool(true);
+		final Path jar = folder.getRoot().toPath().resolve("manifest.jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest)) {
+			for (String name : Arrays.asList("org.example.manifest.First", "org.example.manifest.Second")) {
+				out.putNextEntry(new JarEntry(name.replace('.', '/') + ".class"));
+				out.write(classPool.makeClass(name).toBytecode());
+			}
+		}
+		classPool.appendClassPath(jar.toString());
+
+		final HookManager.HookClassLoader loader = new HookManager.HookClassLoader(classPool);
+		for (String name : Arrays.asList("org.example.manifest.First", "org.example.manifest.Second")) {
+			Package pkg = loader.loadClass(name).getPackage();
+			Assertions.assertThat(pkg.getImplementationTitle()).isEqualTo("Package title");
+			Assertions.assertThat(pkg.getImplementationVendor()).isEqualTo("Vendor");
+		}
+	}
+
+	@Test
+	public void testStackMapRebuild() throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		final CtClass ctClass = classPool.makeClass("org.example.stackmap.Branches");
+		ctClass.getClassFile().setMajorVersion(ClassFile.JAVA_8);
+		final CtMethod method = CtNewMethod.make("public static int sign(int x) { return x > 0 ? 1 : -1; }", ctClass);
+		ctClass.addMethod(method);
+
+		// Drop the stack map as if the code was modified without rebuilding it
+		final MethodInfo methodInfo = method.getMethodInfo();
+		final List<?> attributes = methodInfo.getCodeAttribute().getAttributes();
+		attributes.removeIf(attribute -> attribute instanceof StackMapTable);
+
+		final HookManager.HookClassLoader loader = new HookManager.HookClassLoader(classPool);
+		loader.pendingStackMaps.add(classPool, ctClass, methodInfo, "first");
+		loader.pendingStackMaps.add(classPool, ctClass, methodInfo, "second");
+		Assertions.assertThat(loader.pendingStackMaps.getPendingClasses()).isEqualTo(1);
+
+		final Class<?> c = loader.loadClass("org.example.stackmap.Branches");
+		Assertions.assertThat(c.getMethod("sign", int.class).invoke(null, 5)).isEqualTo(1);
+		Assertions.assertThat(loader.pendingStackMaps.getRequests()).isEqualTo(2);
+		Assertions.assertThat(loader.pendingStackMaps.getRebuilds()).isEqualTo(1);
+		loader.pendingStackMaps.report();
+		Assertions.assertThat(loader.pendingStackMaps.getPendingClasses()).isEqualTo(0);
+	}
+
+	/**
+	 * Grow small past MaxInlineSize and large past HugeMethodLimit of the limits used in testJitLimits.
+	 */
+	private static ClassPool growMethods(Path jar) throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.appendClassPath(jar.toString());
+		final CtClass ctClass = classPool.get("org.example.jit.Growing");
+		ctClass.getDeclaredMethod("small").insertBefore("$1 = $1 * 3 + 7; $1 = $1 * 5 + 11;");
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			body.append("$1 = $1 * 31 + 1000000;");
+		}
+		ctClass.getDeclaredMethod("large").insertBefore(body.toString());
+		return classPool;
+	}
+
+	@Test
+	public void testJitLimits() throws Exception {
+		final Path jar = folder.getRoot().toPath().resolve("jit.jar");
+		try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+			final ClassPool classPool = new ClassPool(true);
+			final CtClass ctClass = classPool.makeClass("org.example.jit.Growing");
+			ctClass.addMethod(CtNewMethod.make("public static int small(int x) { return x + 1; }", ctClass));
+			ctClass.addMethod(CtNewMethod.make("public static int large(int x) { return x + 2; }", ctClass));
+			ctClass.addMethod(CtNewMethod.make("public static int same(int x) { return x + 3; }", ctClass));
+			out.putNextEntry(new JarEntry("org/example/jit/Growing.class"));
+			out.write(ctClass.toBytecode());
+		}
+
+		final ClassPool warnPool = growMethods(jar);
+		final CtClass growing = warnPool.get("org.example.jit.Growing");
+		final JitLimits warn = new JitLimits(JitLimits.Mode.WARN, 100, 60, 10);
+		final HookManager.HookClassLoader loader = new HookManager.HookClassLoader(warnPool, warn);
+		loader.pendingStackMaps.add(warnPool, growing, growing.getDeclaredMethod("large").getMethodInfo(), "grower");
+
+		final List<String> messages = warn.check(warnPool, growing, Collections.emptyMap(), "early");
+		Assertions.assertThat(messages).hasSize(2);
+		Assertions.assertThat(messages.get(0)).contains("small(I)I", "MaxInlineSize", "unknown (loaded by early)");
+		Assertions.assertThat(messages.get(1)).contains("large(I)I", "HugeMethodLimit");
+
+		// Modifications are attributed to the current mod
+		loader.modifiedMethods.setCurrentMod("inliner");
+		loader.modifiedMethods.add(growing, growing.getDeclaredMethod("small").getMethodInfo());
+		loader.modifiedMethods.setCurrentMod(null);
+		Assertions.assertThat(warn.check(warnPool, growing, loader.modifiedMethods.remove(growing.getName()), null).get(0)).contains("small(I)I", "Modified by inliner");
+
+		// Warnings only
+		Assertions.assertThat(loader.loadClass("org.example.jit.Growing").getMethod("same", int.class).invoke(null, 1)).isEqualTo(4);
+		Assertions.assertThat(warn.getCrossings()).isEqualTo(6);
+		warn.report();
+
+		final ClassPool rejectPool = growMethods(jar);
+		final CtClass rejected = rejectPool.get("org.example.jit.Growing");
+		final HookManager.HookClassLoader rejecting = new HookManager.HookClassLoader(rejectPool, new JitLimits(JitLimits.Mode.REJECT, 100, 60, 10));
+		rejecting.pendingStackMaps.add(rejectPool, rejected, rejected.getDeclaredMethod("large").getMethodInfo(), "grower");
+		// The original class is loaded instead
+		final Class<?> original = rejecting.loadClass("org.example.jit.Growing");
+		Assertions.assertThat(original.getMethod("small", int.class).invoke(null, 1)).isEqualTo(2);
+		Assertions.assertThat(original.getMethod("large", int.class).invoke(null, 1)).isEqualTo(3);
+		Assertions.assertThat(rejected.isFrozen()).isTrue();
+	}
+
+	@Test
+	public void testModifiedMethods() throws Exception {
+		final HookManager hookManager = HookManager.getInstance();
+		final CtClass target = hookManager.getClassPool().makeClass("org.example.jit.Target");
+		target.addMethod(CtNewMethod.make("public static int twice(int x) { return x * 2; }", target));
+		final CtClass ctClass = hookManager.getClassPool().makeClass("org.example.jit.Modified");
+		ctClass.addMethod(CtNewMethod.make("public static int untouched(int x) { return x + 1; }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public static int redirected(int x) { return untouched(x); }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public static int replaced(int x) { return x + 1; }", ctClass));
+
+		final String previous = hookManager.setCurrentMod("modifier");
+		try {
+			hookManager.redirectCalls(ctClass.getName(), "redirected", ctClass.getName(), "untouched", "(I)I", target.getName(), "twice");
+			new CodeReplacer(ctClass.getDeclaredMethod("replaced").getMethodInfo().getCodeAttribute()).replaceCode(new byte[] { Bytecode.ICONST_1 }, new byte[] { Bytecode.ICONST_2 });
+		} finally {
+			hookManager.setCurrentMod(previous);
+		}
+
+		final Map<String, Set<String>> modified = ((HookManager.HookClassLoader) hookManager.getLoader()).modifiedMethods.remove(ctClass.getName());
+		Assertions.assertThat(modified).containsOnlyKeys("redirected(I)I", "replaced(I)I");
+		Assertions.assertThat(modified.get("redirected(I)I")).containsExactly("modifier");
+	}
+}
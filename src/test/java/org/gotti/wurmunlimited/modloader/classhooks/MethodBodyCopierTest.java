@@ -0,0 +1,81 @@
+package org.gotti.wurmunlimited.modloader.classhooks;
+
+import java.util.function.IntPredicate;
+
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+public class MethodBodyCopierTest {
+
+	// Stand-in for org.example.body.Inventory
+	public static class FastInventory {
+		int[] weights;
+
+		public int total() {
+			int sum = 0;
+			for (int i = 0; i < weights.length; i++) {
+				sum += weight(i);
+			}
+			return sum;
+		}
+
+		int weight(int i) {
+			return 0;
+		}
+	}
+
+	public static class BrokenInventory {
+		int[] missing;
+
+		public int total() {
+			return missing.length;
+		}
+
+		public static int weight(int i) {
+			return i;
+		}
+
+		public int heavy() {
+			final IntPredicate heavy = w -> w > 5;
+			return heavy.test(6) ? 1 : 0;
+		}
+	}
+
+	@Test
+	public void testCopy() throws Exception {
+		final ClassPool classPool = new ClassPool(true);
+		classPool.insertClassPath(new ClassClassPath(FastInventory.class));
+		final CtClass ctClass = classPool.makeClass("org.example.body.Inventory");
+		ctClass.addField(CtField.make("private int[] weights;", ctClass));
+		ctClass.addConstructor(CtNewConstructor.make("public Inventory(int[] weights) { this.weights = weights; }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public int total() { return -1; }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("private int weight(int i) { return weights[i] * 10; }", ctClass));
+		ctClass.addMethod(CtNewMethod.make("public int heavy() { return -1; }", ctClass));
+
+		final MethodBodyCopier copier = new MethodBodyCopier(classPool, null);
+		final CtMethod total = ctClass.getDeclaredMethod("total");
+		final byte[] before = total.getMethodInfo().getCodeAttribute().getCode().clone();
+		Assertions.assertThatThrownBy(() -> copier.copy(total, classPool.get(BrokenInventory.class.getName()), "total")).isInstanceOf(HookException.class)
+				.hasMessageContaining("missing");
+		Assertions.assertThatThrownBy(() -> copier.copy(ctClass.getDeclaredMethod("weight"), classPool.get(BrokenInventory.class.getName()), "weight"))
+				.isInstanceOf(HookException.class).hasMessageContaining("static");
+		Assertions.assertThatThrownBy(() -> copier.copy(ctClass.getDeclaredMethod("heavy"), classPool.get(BrokenInventory.class.getName()), "heavy"))
+				.isInstanceOf(HookException.class).hasMessageContaining("invokedynamic");
+		Assertions.assertThat(total.getMethodInfo().getCodeAttribute().getCode()).isEqualTo(before);
+
+		copier.copy(total, classPool.get(FastInventory.class.getName()), "total");
+
+		final Class<?> c = new HookManager.HookClassLoader(classPool).loadClass("org.example.body.Inventory");
+		final Object inventory = c.getConstructor(int[].class).newInstance(new int[] { 1, 2, 3 });
+		Assertions.assertThat(c.getMethod("total").invoke(inventory)).isEqualTo(60);
+		Assertions.assertThat(c.getDeclaredMethods()).hasSize(3);
+	}
+}
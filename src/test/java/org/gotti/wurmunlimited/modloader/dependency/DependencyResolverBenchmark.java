@@ -0,0 +1,120 @@
+package org.gotti.wurmunlimited.modloader.dependency;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolve a large synthetic mod set with dense dependencies.
+ * <p>
+ * Run with <code>mvn verify -Pbenchmark -Dbenchmark=DependencyResolverBenchmark</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DependencyResolverBenchmark {
+
+	private static class Provider implements DependencyProvider {
+		private final String name;
+		private final List<String> requires = new ArrayList<>();
+		private final List<String> after = new ArrayList<>();
+		private final boolean onDemand;
+
+		Provider(String name, boolean onDemand) {
+			this.name = name;
+			this.onDemand = onDemand;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public Collection<String> getRequires() {
+			return requires;
+		}
+
+		@Override
+		public Collection<String> getConflicts() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Collection<String> getBefore() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Collection<String> getAfter() {
+			return after;
+		}
+
+		@Override
+		public boolean isOnDemand() {
+			return onDemand;
+		}
+	}
+
+	@Param({ "1000", "10000" })
+	private int size;
+
+	@Param({ "8" })
+	private int edges;
+
+	private List<Provider> providers;
+
+	@Setup
+	public void setUp() {
+		final Random random = new Random(42);
+		providers = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			providers.add(new Provider(String.format("mod%05d", i), i % 4 == 0));
+		}
+		// Edges only point to lower indexes to keep the graph acyclic
+		for (int i = 1; i < size; i++) {
+			final Provider provider = providers.get(i);
+			for (int e = 0; e < edges; e++) {
+				final Provider other = providers.get(random.nextInt(i));
+				if (e % 2 == 0) {
+					provider.requires.add(other.getName());
+				} else {
+					other.after.add(provider.getName());
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public List<Provider> order() {
+		return new DependencyResolver<Provider>().order(providers);
+	}
+
+	@Benchmark
+	public List<List<Provider>> orderLayers() {
+		return new DependencyResolver<Provider>().orderLayers(providers);
+	}
+
+	@Benchmark
+	public List<String> legacy() {
+		return LegacyDependencyResolver.order(providers, null);
+	}
+}
@@ -1,9 +1,13 @@
 package org.gotti.wurmunlimited.modloader.dependency;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
@@ -91,6 +95,16 @@ public class DependencyResolverTest {
 		Assertions.assertThat(result).extracting("name").containsExactly("B", "A", "C");
 	}
 	
+	@Test
+	public void testEntryAddBefore() {
+		b.before = Collections.singleton("C");
+		final DependencyEntry entry = new DependencyEntry(b);
+		entry.addBefore(" A ");
+		entry.addAfter("C ");
+		Assertions.assertThat(entry.getBefore()).containsExactly("C", "A");
+		Assertions.assertThat(entry.getAfter()).containsExactly("C");
+	}
+	
 	@Test
 	public void testCycle() {
 		a.after = Collections.singleton("B");
@@ -182,4 +196,97 @@ public class DependencyResolverTest {
 		List<DependencyProvider> result = new DependencyResolver<>().order(Arrays.asList(c, a, b));
 		Assertions.assertThat(result).extracting("name").containsExactly("B", "C");
 	}
+	
+	@Test
+	public void testCache() {
+		final Map<String, List<String>> orders = new HashMap<>();
+		final DependencyOrderCache cache = new DependencyOrderCache() {
+			@Override
+			public List<String> getOrder(String key) {
+				return orders.get(key);
+			}
+			
+			@Override
+			public void putOrder(String key, List<String> order) {
+				orders.put(key, order);
+			}
+		};
+		
+		b.before = Collections.singleton("C");
+		List<DependencyProvider> result = new DependencyResolver<>().cache(cache).order(Arrays.asList(c, a, b));
+		Assertions.assertThat(result).extracting("name").containsExactly("A", "C", "B");
+		Assertions.assertThat(orders).hasSize(1);
+		
+		// Same input is served from the cache
+		orders.replaceAll((key, order) -> Arrays.asList("C", "B", "A"));
+		result = new DependencyResolver<>().cache(cache).order(Arrays.asList(c, a, b));
+		Assertions.assertThat(result).extracting("name").containsExactly("C", "B", "A");
+		
+		// Changed input is resolved again
+		b.before = Collections.emptyList();
+		result = new DependencyResolver<>().cache(cache).order(Arrays.asList(c, a, b));
+		Assertions.assertThat(result).extracting("name").containsExactly("A", "B", "C");
+		Assertions.assertThat(orders).hasSize(2);
+	}
+	
+	@Test
+	public void testLayers() {
+		final Entry d = new Entry("D");
+		a.requires = Collections.singleton("B");
+		c.before = Collections.singleton("D");
+		List<List<DependencyProvider>> result = new DependencyResolver<>().orderLayers(Arrays.asList(d, c, a, b));
+		Assertions.assertThat(result).hasSize(2);
+		Assertions.assertThat(result.get(0)).extracting("name").containsExactly("B", "D");
+		Assertions.assertThat(result.get(1)).extracting("name").containsExactly("A", "C");
+	}
+	
+	@Test
+	public void testLegacyEquivalence() {
+		final Random random = new Random(4711);
+		for (int run = 0; run < 500; run++) {
+			final int size = 1 + random.nextInt(30);
+			final List<Entry> entries = new ArrayList<>();
+			for (int i = 0; i < size; i++) {
+				entries.add(new Entry("M" + random.nextInt(size * 2)));
+			}
+			for (Entry entry : entries) {
+				entry.onDemand = random.nextInt(3) == 0;
+				entry.requires = randomNames(random, entries, 0.05, false);
+				entry.before = randomNames(random, entries, 0.1, true);
+				entry.after = randomNames(random, entries, 0.05, true);
+			}
+			
+			final Map<String, Integer> expectedLayers = new HashMap<>();
+			List<String> expectedOrder;
+			try {
+				expectedOrder = LegacyDependencyResolver.order(entries, expectedLayers);
+			} catch (DependencyException e) {
+				Assertions.assertThatThrownBy(() -> new DependencyResolver<Entry>().order(entries)).hasMessage(e.getMessage());
+				continue;
+			}
+			
+			final List<Entry> order = new DependencyResolver<Entry>().order(entries);
+			Assertions.assertThat(order).extracting("name").containsExactlyElementsOf(expectedOrder);
+			
+			final List<List<Entry>> layers = new DependencyResolver<Entry>().orderLayers(entries);
+			for (int layer = 0; layer < layers.size(); layer++) {
+				for (Entry entry : layers.get(layer)) {
+					Assertions.assertThat(expectedLayers.get(entry.name)).as(entry.name).isEqualTo(layer);
+				}
+			}
+		}
+	}
+	
+	private static List<String> randomNames(Random random, List<Entry> entries, double probability, boolean missing) {
+		final List<String> names = new ArrayList<>();
+		for (Entry entry : entries) {
+			if (random.nextDouble() < probability) {
+				names.add(entry.name);
+			}
+		}
+		if (missing && random.nextDouble() < probability) {
+			names.add("Missing");
+		}
+		return names;
+	}
 }
@@ -0,0 +1,93 @@
+package org.gotti.wurmunlimited.modloader.dependency;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * The set based resolver the indexed graph replaced. Used as reference for the results of {@link DependencyResolver}.
+ * Requires and conflicts are not checked.
+ */
+class LegacyDependencyResolver {
+
+	private static class Node {
+		final String name;
+		final boolean onDemand;
+		final Set<String> before = new HashSet<>();
+		final Set<String> after = new HashSet<>();
+
+		Node(DependencyProvider provider) {
+			this.name = provider.getName();
+			this.onDemand = provider.isOnDemand();
+			this.before.addAll(DependencyEntry.parse(provider.getRequires()));
+			this.before.addAll(provider.getBefore());
+			this.after.addAll(provider.getAfter());
+		}
+	}
+
+	static List<String> order(List<? extends DependencyProvider> mods, Map<String, Integer> layers) {
+		Map<String, Node> entries = new LinkedHashMap<>();
+		mods.forEach(mod -> entries.put(mod.getName(), new Node(mod)));
+
+		for (Node mod : entries.values()) {
+			mod.before.removeIf(name -> !entries.containsKey(name) || name.equals(mod.name));
+			mod.after.removeIf(name -> !entries.containsKey(name) || name.equals(mod.name));
+		}
+		for (Node mod : entries.values()) {
+			mod.after.forEach(name -> entries.get(name).before.add(mod.name));
+		}
+		for (Node mod : entries.values()) {
+			mod.before.forEach(name -> entries.get(name).after.add(mod.name));
+		}
+
+		boolean pruned;
+		do {
+			final Set<String> toRemove = new HashSet<>();
+			for (Node mod : entries.values()) {
+				if (mod.onDemand && mod.after.isEmpty()) {
+					mod.before.forEach(name -> entries.get(name).after.remove(mod.name));
+					toRemove.add(mod.name);
+				}
+			}
+			pruned = entries.keySet().removeAll(toRemove);
+		} while (pruned);
+
+		Set<Node> blocked = new HashSet<>();
+		TreeSet<Node> ready = new TreeSet<>(Comparator.comparing((Node node) -> node.name));
+		List<String> order = new LinkedList<>();
+		for (Node mod : entries.values()) {
+			if (mod.before.isEmpty()) {
+				ready.add(mod);
+			} else {
+				blocked.add(mod);
+			}
+		}
+		Map<String, Integer> layer = layers != null ? layers : new HashMap<>();
+		while (!ready.isEmpty()) {
+			Node entry = ready.pollFirst();
+			int current = layer.computeIfAbsent(entry.name, name -> 0);
+			for (String after : entry.after) {
+				Node mod = entries.get(after);
+				layer.merge(after, current + 1, Math::max);
+				mod.before.remove(entry.name);
+				if (mod.before.isEmpty()) {
+					blocked.remove(mod);
+					ready.add(mod);
+				}
+			}
+			order.add(entry.name);
+		}
+
+		if (!blocked.isEmpty()) {
+			throw new DependencyException("Unresolved order for the following elements: " + blocked.stream().map(node -> node.name).sorted().collect(Collectors.joining(", ")));
+		}
+		return order;
+	}
+}